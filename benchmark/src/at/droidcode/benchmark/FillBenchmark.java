@@ -0,0 +1,72 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.droidcode.raster.IntRaster;
+import at.droidcode.raster.PaintDescriptor;
+
+/**
+ * Paint drawn over the whole canvas, as done by fillWithPaint().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+public class FillBenchmark {
+	@Param({ "OPAQUE", "TRANSLUCENT", "ERASER" })
+	public String paint;
+
+	@Param({ "true", "false" })
+	public boolean parallel;
+
+	private PaintDescriptor descriptor;
+	private IntRaster raster;
+
+	@Setup
+	public void setUp() {
+		if ("ERASER".equals(paint)) {
+			descriptor = Workloads.eraser(1f);
+		} else {
+			descriptor = Workloads.brush("OPAQUE".equals(paint) ? 0xFF2060C0 : 0x802060C0, 1f);
+		}
+		raster = new IntRaster(Workloads.WIDTH, Workloads.HEIGHT);
+		raster.setParallel(parallel);
+		raster.fill(Workloads.brush(0xFFFFFFFF, 1f));
+	}
+
+	@Benchmark
+	public IntRaster fill() {
+		raster.fill(descriptor);
+		return raster;
+	}
+}
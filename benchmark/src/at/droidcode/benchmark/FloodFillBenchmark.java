@@ -0,0 +1,91 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.droidcode.raster.FillMask;
+import at.droidcode.raster.FloodFill;
+import at.droidcode.raster.IntRaster;
+import at.droidcode.raster.PaintDescriptor;
+
+/**
+ * Region around a tap filled by the fill tool, on a canvas split into regions by random strokes.
+ * Scaled canvases keep the strokes in the first surface, the rest is one large empty region.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+public class FloodFillBenchmark {
+	@Param({ "0", "32", "128" })
+	public int tolerance;
+
+	@Param({ "true", "false" })
+	public boolean antiAlias;
+
+	@Param({ "1", "8" })
+	public int scale;
+
+	@Param({ "true", "false" })
+	public boolean parallel;
+
+	private FloodFill floodFill;
+	private FillMask mask;
+	private PaintDescriptor paint;
+	private IntRaster raster;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(Workloads.SEED);
+		raster = new IntRaster(Workloads.WIDTH * scale, Workloads.HEIGHT * scale);
+		raster.fill(Workloads.brush(0xFFFFFFFF, 1f));
+		for (int i = 0; i < 8; i++) {
+			raster.drawStroke(Workloads.stroke(random, 64), Workloads.brush(Workloads.color(random), 6f));
+		}
+		floodFill = new FloodFill();
+		floodFill.setParallel(parallel);
+		mask = search();
+		paint = Workloads.brush(0xFF2060C0, 1f);
+	}
+
+	@Benchmark
+	public FillMask search() {
+		return floodFill.fill(raster, 0, 0, raster.getWidth(), raster.getHeight(), 0, 0, tolerance, antiAlias);
+	}
+
+	@Benchmark
+	public IntRaster draw() {
+		mask.draw(raster, paint);
+		return raster;
+	}
+}
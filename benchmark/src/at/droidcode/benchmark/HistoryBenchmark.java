@@ -0,0 +1,103 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.droidcode.commands.Command;
+import at.droidcode.commands.CommandManager;
+import at.droidcode.raster.IntRaster;
+
+/**
+ * Commit, undo and redo of the CommandManager with a history of a given depth, in both history
+ * modes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+public class HistoryBenchmark {
+	private static final int STROKE_SAMPLES = 48;
+	private static final int EXTRA_COMMANDS = 64; // committed in turn by commit()
+
+	@Param({ "16", "128", "512" })
+	public int depth;
+
+	@Param({ "REPLAY", "TILES" })
+	public CommandManager.HistoryMode mode;
+
+	private IntRaster raster;
+	private CommandManager manager;
+	private Command[] extra;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(Workloads.SEED);
+		raster = new IntRaster(Workloads.WIDTH, Workloads.HEIGHT);
+		manager = new CommandManager();
+		manager.setHistoryMode(mode);
+		manager.reset(raster);
+		for (int i = 0; i < depth; i++) {
+			manager.commitCommand(newStroke(random), raster);
+		}
+		extra = new Command[EXTRA_COMMANDS];
+		for (int i = 0; i < extra.length; i++) {
+			extra[i] = newStroke(random);
+		}
+	}
+
+	private static Command newStroke(Random random) {
+		return new Command(Workloads.brush(Workloads.color(random), 4f + random.nextInt(20)), Workloads.stroke(
+				random, STROKE_SAMPLES));
+	}
+
+	/**
+	 * Commit a stroke on top of the history. The stroke is stepped back without redrawing, so the
+	 * next commit discards it and the depth stays the same.
+	 */
+	@Benchmark
+	public void commit() {
+		manager.commitCommand(extra[next], raster);
+		next = (next + 1) % extra.length;
+		manager.stepBack(false);
+	}
+
+	/**
+	 * Undo the newest command and redo it, which leaves the history as it was.
+	 */
+	@Benchmark
+	public void undoRedo() {
+		manager.undoLast();
+		manager.redoLast();
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.droidcode.commands.PixelCodec;
+import at.droidcode.raster.IntRaster;
+
+/**
+ * Encoding and decoding of a full image with the PixelCodec, which keyframes, tile deltas and the
+ * journal use for every snapshot.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+public class PixelCodecBenchmark {
+	private static final int DRAWING_STROKES = 40;
+
+	/** A drawing compresses well, noise is the worst case. */
+	@Param({ "DRAWING", "NOISE" })
+	public String image;
+
+	private int[] pixels;
+	private int[] encoded;
+	private int encodedLength;
+	private int[] decoded;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(Workloads.SEED);
+		IntRaster raster = new IntRaster(Workloads.WIDTH, Workloads.HEIGHT);
+		if ("DRAWING".equals(image)) {
+			for (int i = 0; i < DRAWING_STROKES; i++) {
+				raster.drawStroke(Workloads.stroke(random, 48),
+						Workloads.brush(Workloads.color(random), 4f + random.nextInt(20)));
+			}
+		} else {
+			int[] p = raster.pixels();
+			for (int i = 0; i < p.length; i++) {
+				p[i] = random.nextInt();
+			}
+		}
+		pixels = raster.pixels();
+		encoded = new int[PixelCodec.maxEncodedLength(pixels.length)];
+		encodedLength = PixelCodec.encode(pixels, 0, pixels.length, encoded, 0);
+		decoded = new int[pixels.length];
+	}
+
+	@Benchmark
+	public int encode() {
+		return PixelCodec.encode(pixels, 0, pixels.length, encoded, 0);
+	}
+
+	@Benchmark
+	public int decode() {
+		return PixelCodec.decode(encoded, 0, encodedLength, decoded, 0);
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import at.droidcode.raster.IntRaster;
+import at.droidcode.raster.PaintDescriptor;
+import at.droidcode.raster.StrokeBuffer;
+
+/**
+ * Recording touch samples into a StrokeBuffer the way PaintRunner.updatePath() does, and
+ * rasterizing the finished stroke.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+public class StrokeBenchmark {
+	@Param({ "32", "256" })
+	public int samples;
+
+	@Param({ "4", "24", "200" })
+	public float width;
+
+	/** Tile-parallel rasterization, only used by draw(). */
+	@Param({ "true", "false" })
+	public boolean parallel;
+
+	private float[] touch;
+	private StrokeBuffer buffer;
+	private StrokeBuffer stroke;
+	private PaintDescriptor brush;
+	private IntRaster raster;
+
+	@Setup
+	public void setUp() {
+		Random random = new Random(Workloads.SEED);
+		touch = new float[samples * 2];
+		Workloads.touchSamples(random, touch);
+		buffer = new StrokeBuffer(16); // grows during warmup like the one of PaintRunner
+		stroke = Workloads.stroke(random, samples);
+		brush = Workloads.brush(0x80FF4000, width);
+		raster = new IntRaster(Workloads.WIDTH, Workloads.HEIGHT);
+		raster.setParallel(parallel);
+	}
+
+	@Benchmark
+	public StrokeBuffer record() {
+		buffer.reset();
+		for (int i = 0; i < samples; i++) {
+			buffer.add(touch[i * 2], touch[i * 2 + 1], 1f, i * Workloads.SAMPLE_MILLIS);
+		}
+		return buffer;
+	}
+
+	@Benchmark
+	public IntRaster draw() {
+		raster.drawStroke(stroke, brush);
+		return raster;
+	}
+}
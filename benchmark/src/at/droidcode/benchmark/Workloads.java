@@ -0,0 +1,104 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.benchmark;
+
+import java.util.Random;
+
+import at.droidcode.raster.PaintDescriptor;
+import at.droidcode.raster.StrokeBuffer;
+
+/**
+ * Deterministic input for the benchmarks. Every generator takes a Random seeded with SEED, so runs
+ * are comparable across machines and commits.
+ */
+final class Workloads {
+	static final long SEED = 42;
+	static final int WIDTH = 800; // surface of a typical phone in landscape
+	static final int HEIGHT = 480;
+	static final long SAMPLE_MILLIS = 16; // touch events arrive at about 60 Hz
+
+	private Workloads() {
+	}
+
+	/**
+	 * @param color ARGB color.
+	 * @param width Stroke width.
+	 * @return Brush as the app configures it: anti-aliased, round caps and joins.
+	 */
+	static PaintDescriptor brush(int color, float width) {
+		return new PaintDescriptor(color, width, PaintDescriptor.Cap.ROUND, PaintDescriptor.Join.ROUND,
+				PaintDescriptor.Style.STROKE, true, true, false);
+	}
+
+	/**
+	 * @param width Stroke width.
+	 * @return Brush that erases, like picking a transparent color.
+	 */
+	static PaintDescriptor eraser(float width) {
+		return new PaintDescriptor(0, width, PaintDescriptor.Cap.ROUND, PaintDescriptor.Join.ROUND,
+				PaintDescriptor.Style.STROKE, true, true, true);
+	}
+
+	/**
+	 * @return Opaque color with random hue.
+	 */
+	static int color(Random random) {
+		return 0xFF000000 | random.nextInt(0x1000000);
+	}
+
+	/**
+	 * Fill x, y pairs with the touch samples of a finger moving along a smooth random curve inside
+	 * the surface, as MotionEvents would report them.
+	 * 
+	 * @param random Source of the curve.
+	 * @param points Array of x, y pairs to fill.
+	 */
+	static void touchSamples(Random random, float[] points) {
+		float x = random.nextFloat() * WIDTH;
+		float y = random.nextFloat() * HEIGHT;
+		double heading = random.nextDouble() * 2 * Math.PI;
+		for (int i = 0; i < points.length / 2; i++) {
+			points[i * 2] = x;
+			points[i * 2 + 1] = y;
+			heading += (random.nextDouble() - 0.5) * 0.6;
+			final float speed = 4f + random.nextFloat() * 12f; // pixels per sample
+			x += (float) Math.cos(heading) * speed;
+			y += (float) Math.sin(heading) * speed;
+			if (x < 0 || x >= WIDTH || y < 0 || y >= HEIGHT) {
+				// Turn around at the edge of the surface.
+				heading += Math.PI;
+				x = Math.max(0, Math.min(WIDTH - 1, x));
+				y = Math.max(0, Math.min(HEIGHT - 1, y));
+			}
+		}
+	}
+
+	/**
+	 * @param random Source of the curve.
+	 * @param samples Number of touch samples.
+	 * @return Stroke recorded from touchSamples().
+	 */
+	static StrokeBuffer stroke(Random random, int samples) {
+		float[] points = new float[samples * 2];
+		touchSamples(random, points);
+		StrokeBuffer stroke = new StrokeBuffer(samples);
+		for (int i = 0; i < samples; i++) {
+			stroke.add(points[i * 2], points[i * 2 + 1], 1f, i * SAMPLE_MILLIS);
+		}
+		return stroke;
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.commands;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import at.droidcode.raster.FloodFill;
+import at.droidcode.raster.IntRaster;
+import at.droidcode.raster.PaintDescriptor;
+import at.droidcode.raster.StrokeBuffer;
+
+/**
+ * A history written to a CommandJournal and read back must draw the same image and undo and redo
+ * the same way.
+ */
+public class CommandJournalTest {
+	private static final int WIDTH = 400;
+	private static final int HEIGHT = 300;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void readBackHistoryReplaysTheSameImage() throws IOException {
+		CommandManager manager = new CommandManager();
+		assertReplays(manager, 200);
+	}
+
+	@Test
+	public void spilledHistoryReplaysTheSameImage() throws IOException {
+		CommandManager manager = new CommandManager();
+		manager.setSpillFile(folder.newFile("spill"), 64L * 1024 * 1024);
+		manager.setByteBudget(64 * 1024);
+		assertReplays(manager, 300);
+	}
+
+	@Test
+	public void cutOffRecordEndsTheJournal() throws IOException {
+		File file = folder.newFile("journal");
+		IntRaster raster = new IntRaster(WIDTH, HEIGHT);
+		CommandManager manager = new CommandManager();
+		manager.reset(raster);
+		CommandJournal journal = new CommandJournal(file);
+		manager.setJournal(journal);
+		Random random = new Random(11);
+		for (int i = 0; i < 10; i++) {
+			manager.commitCommand(new Command(brush(random), stroke(random)), raster);
+		}
+		journal.close(false);
+		final long length = file.length();
+		RandomAccessFile cut = new RandomAccessFile(file, "rw");
+		cut.setLength(length - 3);
+		cut.close();
+
+		CommandJournal.Session session = CommandJournal.read(file);
+		assertNotNull(session);
+		assertEquals(9, session.commands().size());
+		assertEquals(9, session.index());
+	}
+
+	@Test
+	public void coalesceIntoStrokeEndsTheJournal() throws IOException {
+		File file = folder.newFile("journal");
+		IntRaster raster = new IntRaster(WIDTH, HEIGHT);
+		CommandManager manager = new CommandManager();
+		manager.reset(raster);
+		CommandJournal journal = new CommandJournal(file);
+		manager.setJournal(journal);
+		Random random = new Random(13);
+		for (int i = 0; i < 3; i++) {
+			manager.commitCommand(new Command(brush(random), stroke(random)), raster);
+		}
+		journal.coalesce(new Command(brush(random), 10f, 10f, 0));
+		manager.commitCommand(new Command(brush(random), stroke(random)), raster);
+		journal.close(false);
+
+		CommandJournal.Session session = CommandJournal.read(file);
+		assertNotNull(session);
+		assertEquals(3, session.commands().size());
+		assertEquals(3, session.index());
+	}
+
+	@Test
+	public void missingJournalReadsAsNothing() {
+		assertNull(CommandJournal.read(new File(folder.getRoot(), "none")));
+	}
+
+	/**
+	 * Record strokes, taps that coalesce, fills, undos, redos and commits that discard undone
+	 * commands, read the journal back and compare the restored history with the one written.
+	 */
+	private void assertReplays(CommandManager manager, int steps) throws IOException {
+		File file = folder.newFile("journal");
+		IntRaster raster = new IntRaster(WIDTH, HEIGHT);
+		manager.reset(raster);
+		CommandJournal journal = new CommandJournal(file);
+		manager.setJournal(journal);
+		FloodFill floodFill = new FloodFill();
+		Random random = new Random(7);
+		long time = 0;
+		for (int i = 0; i < steps; i++) {
+			time += 16;
+			switch (random.nextInt(8)) {
+			case 0:
+				manager.undoLast();
+				break;
+			case 1:
+				manager.redoLast();
+				break;
+			case 2:
+				// Taps in quick succession coalesce into the previous command.
+				final float x = random.nextFloat() * WIDTH;
+				final float y = random.nextFloat() * HEIGHT;
+				manager.commitCommand(new Command(brush(random), x, y, time), raster);
+				break;
+			case 3:
+				manager.commitCommand(new Command(brush(random), floodFill.fill(raster, 0, 0, WIDTH, HEIGHT,
+						random.nextInt(WIDTH), random.nextInt(HEIGHT), 32, true)), raster);
+				break;
+			case 4:
+				if (random.nextInt(8) == 0) {
+					manager.commitCommand(new Command(brush(random)), raster);
+					break;
+				}
+				// otherwise a stroke
+			default:
+				time += 1000;
+				manager.commitCommand(new Command(brush(random), stroke(random)), raster);
+			}
+		}
+		assertTrue(journal.sync());
+
+		CommandJournal.Session session = CommandJournal.read(file);
+		assertNotNull(session);
+		assertEquals(WIDTH, session.width());
+		assertEquals(HEIGHT, session.height());
+		assertTrue(session.index() > 0);
+		IntRaster restored = new IntRaster(session.width(), session.height());
+		assertTrue(session.restoreOriginal(restored));
+		// Restored aside and adopted, like the app does off the UI thread.
+		CommandManager background = new CommandManager();
+		background.restore(restored, session.commands(), session.index());
+		CommandManager restoredManager = new CommandManager();
+		restoredManager.adopt(background);
+		assertArrayEquals(raster.pixels(), restored.pixels());
+
+		manager.redoLast();
+		restoredManager.redoLast();
+		assertArrayEquals(raster.pixels(), restored.pixels());
+		for (int i = 0; i < 5; i++) {
+			manager.undoLast();
+			restoredManager.undoLast();
+			assertArrayEquals("undo " + i, raster.pixels(), restored.pixels());
+		}
+		journal.close(false);
+	}
+
+	private static PaintDescriptor brush(Random random) {
+		final int color = 0xFF000000 | random.nextInt(0x1000000);
+		final boolean eraser = random.nextInt(10) == 0;
+		return new PaintDescriptor(color, 2f + random.nextInt(30), PaintDescriptor.Cap.ROUND,
+				PaintDescriptor.Join.ROUND, PaintDescriptor.Style.STROKE, true, false, eraser);
+	}
+
+	private static StrokeBuffer stroke(Random random) {
+		StrokeBuffer stroke = new StrokeBuffer(24);
+		float x = random.nextFloat() * WIDTH;
+		float y = random.nextFloat() * HEIGHT;
+		for (int i = 0; i < 24; i++) {
+			stroke.add(x, y, 1f, i * 16);
+			x += random.nextFloat() * 40 - 20;
+			y += random.nextFloat() * 40 - 20;
+		}
+		return stroke;
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * The region of a flood fill must not depend on the order the tiles are searched in.
+ */
+public class FloodFillTest {
+	private static final int WIDTH = 1400; // large enough for the parallel search
+	private static final int HEIGHT = 1000;
+
+	private static IntRaster raster;
+
+	@BeforeClass
+	public static void drawRegions() {
+		Random random = new Random(42);
+		raster = new IntRaster(WIDTH, HEIGHT);
+		raster.fill(paint(0xFFFFFFFF, 1f));
+		for (int i = 0; i < 24; i++) {
+			StrokeBuffer stroke = new StrokeBuffer(64);
+			float x = random.nextFloat() * WIDTH;
+			float y = random.nextFloat() * HEIGHT;
+			for (int j = 0; j < 64; j++) {
+				stroke.add(x, y, 1f, j * 16);
+				x = Math.max(0, Math.min(WIDTH - 1, x + random.nextFloat() * 160 - 80));
+				y = Math.max(0, Math.min(HEIGHT - 1, y + random.nextFloat() * 160 - 80));
+			}
+			raster.drawStroke(stroke, paint(0xFF000000 | random.nextInt(0x1000000), 2f + random.nextInt(12)));
+		}
+	}
+
+	@Test
+	public void parallelSearchFindsTheSameRegion() throws IOException {
+		Random random = new Random(7);
+		final int[] tolerances = { 0, 32, 128, 255 };
+		for (int i = 0; i < 16; i++) {
+			final int x = random.nextInt(WIDTH);
+			final int y = random.nextInt(HEIGHT);
+			final int tolerance = tolerances[i % tolerances.length];
+			final boolean antiAlias = i % 2 == 0;
+			assertArrayEquals("seed " + x + "," + y + " tolerance " + tolerance,
+					bytes(fill(false, 0, 0, WIDTH, HEIGHT, x, y, tolerance, antiAlias)),
+					bytes(fill(true, 0, 0, WIDTH, HEIGHT, x, y, tolerance, antiAlias)));
+		}
+	}
+
+	@Test
+	public void parallelSearchStaysInTheArea() throws IOException {
+		final int left = 300;
+		final int top = 200;
+		final int right = 1350;
+		final int bottom = 990;
+		FillMask sequential = fill(false, left, top, right, bottom, 700, 500, 32, true);
+		assertArrayEquals(bytes(sequential), bytes(fill(true, left, top, right, bottom, 700, 500, 32, true)));
+		int[] bounds = new int[4];
+		sequential.getBounds(bounds);
+		assertTrue(bounds[0] >= left && bounds[1] >= top && bounds[2] <= right && bounds[3] <= bottom);
+	}
+
+	@Test
+	public void memoryLimitEndsTheRegion() {
+		IntRaster blank = new IntRaster(1024, 256);
+		FloodFill floodFill = new FloodFill();
+		floodFill.setMaxBytes(3 * 256 * 256 / 4); // three tiles without anti-aliasing
+		FillMask mask = floodFill.fill(blank, 0, 0, 1024, 256, 0, 0, 0, false);
+		assertNotNull(mask);
+		int[] bounds = new int[4];
+		mask.getBounds(bounds);
+		assertArrayEquals(new int[] { 0, 0, 768, 256 }, bounds);
+		assertEquals(256, mask.spanCount());
+	}
+
+	private static FillMask fill(boolean parallel, int left, int top, int right, int bottom, int x, int y,
+			int tolerance, boolean antiAlias) {
+		FloodFill floodFill = new FloodFill();
+		floodFill.setParallel(parallel);
+		FillMask mask = floodFill.fill(raster, left, top, right, bottom, x, y, tolerance, antiAlias);
+		assertNotNull(mask);
+		return mask;
+	}
+
+	private static byte[] bytes(FillMask mask) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		mask.writeTo(new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	private static PaintDescriptor paint(int color, float width) {
+		return new PaintDescriptor(color, width, PaintDescriptor.Cap.ROUND, PaintDescriptor.Join.ROUND,
+				PaintDescriptor.Style.STROKE, true, false, false);
+	}
+}
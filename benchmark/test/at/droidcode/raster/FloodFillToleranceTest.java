@@ -0,0 +1,125 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * A pixel is filled if no channel differs from the seed by more than the tolerance, pixels next to
+ * the region are covered by how far they are beyond it.
+ */
+public class FloodFillToleranceTest {
+	private static final int[] TOLERANCES = { 0, 1, 31, 32, 127, 254, 255 };
+	private static final int[] SHIFTS = { 24, 16, 8, 0 }; // alpha, red, green, blue
+	private static final int ROWS = 3;
+
+	@Test
+	public void regionEndsAtTheTolerance() {
+		for (int s = 0; s < SHIFTS.length; s++) {
+			IntRaster raster = gradient(SHIFTS[s]);
+			for (int t = 0; t < TOLERANCES.length; t++) {
+				final int tolerance = TOLERANCES[t];
+				FillMask mask = new FloodFill().fill(raster, 0, 0, 256, ROWS, 0, 1, tolerance, false);
+				int[] bounds = new int[4];
+				mask.getBounds(bounds);
+				assertArrayEquals("shift " + SHIFTS[s] + " tolerance " + tolerance,
+						new int[] { 0, 0, tolerance + 1, ROWS }, bounds);
+				assertEquals(ROWS, mask.spanCount());
+				assertEquals(0, mask.edgeCount());
+			}
+		}
+	}
+
+	@Test
+	public void edgeStartsBeyondTheTolerance() {
+		for (int s = 0; s < SHIFTS.length; s++) {
+			IntRaster raster = gradient(SHIFTS[s]);
+			for (int t = 0; t < TOLERANCES.length; t++) {
+				final int tolerance = TOLERANCES[t];
+				FillMask mask = new FloodFill().fill(raster, 0, 0, 256, ROWS, 0, 1, tolerance, true);
+				int[] coverage = draw(mask, 256);
+				for (int x = 0; x < 256; x++) {
+					int expected = 0;
+					if (x <= tolerance) {
+						expected = 255;
+					} else if (x == tolerance + 1) {
+						expected = 255 * (FloodFill.EDGE_SOFTNESS - 1) / FloodFill.EDGE_SOFTNESS;
+					}
+					assertEquals("shift " + SHIFTS[s] + " tolerance " + tolerance + " x " + x, expected,
+							coverage[x]);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void edgeCoverageFallsOffWithDistance() {
+		final int tolerance = 32;
+		final int softness = FloodFill.EDGE_SOFTNESS;
+		final int[] beyond = { 1, softness / 2, softness - 1, softness };
+		for (int i = 0; i < beyond.length; i++) {
+			// The left half has the seed color, the right half the distance.
+			IntRaster raster = new IntRaster(8, ROWS);
+			int[] pixels = new int[8 * ROWS];
+			for (int p = 0; p < pixels.length; p++) {
+				pixels[p] = p % 8 < 4 ? 0xFF000000 : 0xFF000000 | tolerance + beyond[i];
+			}
+			raster.setPixels(pixels, 0, 8, 0, 0, 8, ROWS);
+			FillMask mask = new FloodFill().fill(raster, 0, 0, 8, ROWS, 0, 0, tolerance, true);
+			final int expected = 255 * (FloodFill.EDGE_SOFTNESS - beyond[i]) / FloodFill.EDGE_SOFTNESS;
+			assertEquals(expected > 0 ? ROWS : 0, mask.edgeCount());
+			assertEquals("beyond " + beyond[i], expected, draw(mask, 8)[4]);
+		}
+	}
+
+	/**
+	 * @return Raster in which the channel grows by one per column, the same in every row.
+	 */
+	private static IntRaster gradient(int shift) {
+		final int base = shift == 24 ? 0 : 0xFF000000;
+		IntRaster raster = new IntRaster(256, ROWS);
+		int[] pixels = new int[256 * ROWS];
+		for (int i = 0; i < pixels.length; i++) {
+			pixels[i] = base | (i % 256) << shift;
+		}
+		raster.setPixels(pixels, 0, 256, 0, 0, 256, ROWS);
+		return raster;
+	}
+
+	/**
+	 * @return Coverage of each column of the middle row, drawn with opaque black on a transparent
+	 *         Raster.
+	 */
+	private static int[] draw(FillMask mask, int width) {
+		IntRaster raster = new IntRaster(width, ROWS);
+		mask.draw(raster, paint(0xFF000000, 1f));
+		int[] row = new int[width];
+		raster.getPixels(row, 0, width, 0, 1, width, 1);
+		for (int x = 0; x < width; x++) {
+			row[x] >>>= 24;
+		}
+		return row;
+	}
+
+	private static PaintDescriptor paint(int color, float width) {
+		return new PaintDescriptor(color, width, PaintDescriptor.Cap.ROUND, PaintDescriptor.Join.ROUND,
+				PaintDescriptor.Style.STROKE, true, false, false);
+	}
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Strokes and fills split into tiles and drawn by the tile workers must give the same pixels as
+ * drawing them on the calling thread.
+ */
+public class IntRasterTest {
+	private static final int WIDTH = 1200;
+	private static final int HEIGHT = 900;
+
+	@Test
+	public void parallelStrokesMatchSequentialOnes() {
+		IntRaster sequential = new IntRaster(WIDTH, HEIGHT);
+		sequential.setParallel(false);
+		IntRaster parallel = new IntRaster(WIDTH, HEIGHT);
+		draw(sequential, new Random(3));
+		draw(parallel, new Random(3));
+		assertFalse(Arrays.equals(new IntRaster(WIDTH, HEIGHT).pixels(), sequential.pixels()));
+		assertArrayEquals(sequential.pixels(), parallel.pixels());
+	}
+
+	@Test
+	public void parallelFillsMatchSequentialOnes() {
+		IntRaster sequential = new IntRaster(WIDTH, HEIGHT);
+		sequential.setParallel(false);
+		IntRaster parallel = new IntRaster(WIDTH, HEIGHT);
+		draw(sequential, new Random(5));
+		draw(parallel, new Random(5));
+		PaintDescriptor translucent = paint(0x803060C0, 1f);
+		sequential.fill(translucent);
+		parallel.fill(translucent);
+		assertArrayEquals(sequential.pixels(), parallel.pixels());
+	}
+
+	/**
+	 * Wide strokes cross many tiles, some are translucent, some erase, some are not anti-aliased.
+	 */
+	private static void draw(IntRaster raster, Random random) {
+		raster.fill(paint(0xFFFFFFFF, 1f));
+		final PaintDescriptor.Cap[] caps = PaintDescriptor.Cap.values();
+		for (int i = 0; i < 40; i++) {
+			StrokeBuffer stroke = new StrokeBuffer(32);
+			float x = random.nextFloat() * WIDTH;
+			float y = random.nextFloat() * HEIGHT;
+			for (int j = 0; j < 32; j++) {
+				stroke.add(x, y, 1f, j * 16);
+				x += random.nextFloat() * 120 - 60;
+				y += random.nextFloat() * 120 - 60;
+			}
+			final int color = (i % 3 == 0 ? 0x80000000 : 0xFF000000) | random.nextInt(0x1000000);
+			final float width = 20f + random.nextInt(200);
+			raster.drawStroke(stroke, new PaintDescriptor(color, width, caps[i % caps.length],
+					PaintDescriptor.Join.ROUND, PaintDescriptor.Style.STROKE, i % 4 != 0, false, i % 7 == 6));
+		}
+		float[] points = new float[16];
+		for (int i = 0; i < points.length; i++) {
+			points[i] = random.nextFloat() * (i % 2 == 0 ? WIDTH : HEIGHT);
+		}
+		raster.drawPoints(points, points.length / 2, paint(0xC0FF8000, 300f));
+	}
+
+	private static PaintDescriptor paint(int color, float width) {
+		return new PaintDescriptor(color, width, PaintDescriptor.Cap.ROUND, PaintDescriptor.Join.ROUND,
+				PaintDescriptor.Style.STROKE, true, false, false);
+	}
+}
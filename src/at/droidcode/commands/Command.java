@@ -16,64 +16,315 @@
 
 package at.droidcode.commands;
 
-import android.graphics.Canvas;
-import android.graphics.Paint;
-import android.graphics.Path;
-import android.graphics.Point;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import at.droidcode.raster.FillMask;
+import at.droidcode.raster.PaintDescriptor;
+import at.droidcode.raster.Raster;
+import at.droidcode.raster.StrokeBuffer;
 
 public class Command implements Runnable {
-	private Canvas cmdCanvas;
-	private final Paint cmdPaint;
-	private final Path cmdPath;
-	private final Point cmdPoint;
+	// Header, ten fields and padding, see StrokeBuffer.arrayBytes() for arrays.
+	private static final int SHALLOW_BYTES = 64;
+
+	// Serialized kinds of commands.
+	private static final byte KIND_PATH = 0;
+	private static final byte KIND_POINTS = 1;
+	private static final byte KIND_FILL = 2;
+	private static final byte KIND_FLOOD_FILL = 3;
+
+	private Raster cmdRaster;
+	private final PaintDescriptor cmdPaint;
+	private final StrokeBuffer cmdStroke;
+	private float[] cmdPoints; // x, y pairs, more than one if taps were coalesced
+	private int pointCount;
+	private final boolean coversCanvas;
+	private long timeMillis; // input time of the newest point
+	private long drawNanos; // time the first run took, used to estimate replay cost
+	private TileDelta tileDelta; // only set in tile history mode
+	private final FillMask fillMask; // only set for flood fills
 
 	/**
-	 * A command representing a drawn path.
+	 * A command representing a drawn stroke.
 	 * 
-	 * @param paint Paint which was used to draw. Will be copied.
-	 * @param path Path which which was drawn. Will be copied.
+	 * @param paint Paint which was used to draw.
+	 * @param stroke Samples of the stroke. Will be copied.
 	 */
-	public Command(Paint paint, Path path) {
-		cmdPaint = new Paint(paint);
-		cmdPath = new Path(path);
-		cmdPoint = null;
+	public Command(PaintDescriptor paint, StrokeBuffer stroke) {
+		this(stroke.copy(), paint);
+	}
+
+	private Command(StrokeBuffer stroke, PaintDescriptor paint) {
+		cmdPaint = paint;
+		cmdStroke = stroke;
+		coversCanvas = false;
+		fillMask = null;
 	}
 
 	/**
 	 * A command representing a drawn point.
 	 * 
-	 * @param paint Paint which was used to draw. Will be copied.
-	 * @param point Cooridinates of point which was drawn. Will be copied.
+	 * @param paint Paint which was used to draw.
+	 * @param x X coordinate of the point which was drawn.
+	 * @param y Y coordinate of the point which was drawn.
+	 * @param timeMillis Time of the touch, taps in quick succession are coalesced.
 	 */
-	public Command(Paint paint, Point point) {
-		cmdPaint = new Paint(paint);
-		cmdPath = null;
-		cmdPoint = new Point(point);
+	public Command(PaintDescriptor paint, float x, float y, long timeMillis) {
+		this(paint, new float[] { x, y });
+		this.timeMillis = timeMillis;
+	}
+
+	private Command(PaintDescriptor paint, float[] points) {
+		cmdPaint = paint;
+		cmdStroke = null;
+		cmdPoints = points;
+		pointCount = points.length / 2;
+		coversCanvas = false;
+		fillMask = null;
 	}
 
 	/**
 	 * A command representing paint drawn over the whole canvas.
 	 * 
-	 * @param paint Paint which was used to draw. Will be copied.
+	 * @param paint Paint which was used to draw.
+	 */
+	public Command(PaintDescriptor paint) {
+		cmdPaint = paint;
+		cmdStroke = null;
+		coversCanvas = paint.coversCanvas();
+		fillMask = null;
+	}
+
+	/**
+	 * A command representing a flood fill. Only the mask is kept, redrawing does not search again.
+	 * 
+	 * @param paint Paint which was used to fill.
+	 * @param mask Pixels the fill covers.
 	 */
-	public Command(Paint paint) {
-		cmdPaint = new Paint(paint);
-		cmdPath = null;
-		cmdPoint = null;
+	public Command(PaintDescriptor paint, FillMask mask) {
+		cmdPaint = paint;
+		cmdStroke = null;
+		coversCanvas = false;
+		fillMask = mask;
+	}
+
+	void setRaster(Raster raster) {
+		cmdRaster = raster;
+	}
+
+	void setDrawNanos(long nanos) {
+		drawNanos = nanos;
+	}
+
+	void setTileDelta(TileDelta delta) {
+		tileDelta = delta;
 	}
 
-	void setCanvas(Canvas canvas) {
-		cmdCanvas = canvas;
+	TileDelta tileDelta() {
+		return tileDelta;
+	}
+
+	/**
+	 * @return True if this command replaces every pixel of the canvas regardless of what was drawn
+	 *         before, so replaying can start with it.
+	 */
+	boolean coversCanvas() {
+		return coversCanvas;
+	}
+
+	/**
+	 * @param next Command committed right after this one.
+	 * @param windowMillis Maximum time between both touches. Input time is used rather than commit
+	 *            time, so that replaying the same input builds the same history.
+	 * @return True if both are points drawn with an equal Paint in quick succession.
+	 */
+	boolean canCoalesce(Command next, long windowMillis) {
+		return cmdPoints != null && next.cmdPoints != null && next.timeMillis - timeMillis < windowMillis
+				&& cmdPaint.equals(next.cmdPaint);
+	}
+
+	/**
+	 * Append the points of the next command, so that both are drawn, undone and redone as one.
+	 * 
+	 * @param next Command for which canCoalesce() returned true.
+	 */
+	void coalesce(Command next) {
+		if ((pointCount + next.pointCount) * 2 > cmdPoints.length) {
+			float[] points = new float[Math.max(cmdPoints.length * 2, (pointCount + next.pointCount) * 2)];
+			System.arraycopy(cmdPoints, 0, points, 0, pointCount * 2);
+			cmdPoints = points;
+		}
+		System.arraycopy(next.cmdPoints, 0, cmdPoints, pointCount * 2, next.pointCount * 2);
+		pointCount += next.pointCount;
+		timeMillis = next.timeMillis;
+		drawNanos += next.drawNanos;
+		TileDelta merged = null;
+		if (tileDelta != null && next.tileDelta != null) {
+			merged = TileDelta.merge(tileDelta, next.tileDelta);
+		}
+		if (merged == null) {
+			// Undo falls back to replaying, the deltas of both commands are dropped.
+			if (tileDelta != null) {
+				tileDelta.freeSpilled();
+			}
+			if (next.tileDelta != null) {
+				next.tileDelta.freeSpilled();
+			}
+		}
+		tileDelta = merged;
+	}
+
+	/**
+	 * Compute the area this command draws on, padded for the stroke width and anti-aliasing.
+	 * 
+	 * @param bounds Array to store left, top, right and bottom in.
+	 * @param width Width of the Raster, used if the command covers the whole canvas.
+	 * @param height Height of the Raster, used if the command covers the whole canvas.
+	 */
+	void getBounds(int[] bounds, int width, int height) {
+		// Square caps reach up to sqrt(2) * half the width on diagonals.
+		final float pad = cmdPaint.strokeWidth() * 0.75f + 2f;
+		if (cmdStroke != null) {
+			float[] b = new float[4];
+			cmdStroke.getBounds(b);
+			bounds[0] = (int) Math.floor(b[0] - pad);
+			bounds[1] = (int) Math.floor(b[1] - pad);
+			bounds[2] = (int) Math.ceil(b[2] + pad);
+			bounds[3] = (int) Math.ceil(b[3] + pad);
+		} else if (cmdPoints != null) {
+			float left = cmdPoints[0], top = cmdPoints[1], right = left, bottom = top;
+			for (int i = 1; i < pointCount; i++) {
+				left = Math.min(left, cmdPoints[i * 2]);
+				top = Math.min(top, cmdPoints[i * 2 + 1]);
+				right = Math.max(right, cmdPoints[i * 2]);
+				bottom = Math.max(bottom, cmdPoints[i * 2 + 1]);
+			}
+			bounds[0] = (int) (left - pad);
+			bounds[1] = (int) (top - pad);
+			bounds[2] = (int) (right + pad) + 1;
+			bounds[3] = (int) (bottom + pad) + 1;
+		} else if (fillMask != null) {
+			fillMask.getBounds(bounds);
+		} else {
+			bounds[0] = 0;
+			bounds[1] = 0;
+			bounds[2] = width;
+			bounds[3] = height;
+		}
+	}
+
+	/**
+	 * @return Number of bytes this command, its geometry and its TileDelta occupy.
+	 */
+	int byteSize() {
+		int bytes = SHALLOW_BYTES + PaintDescriptor.BYTES;
+		if (cmdStroke != null) {
+			bytes += cmdStroke.byteSize();
+		} else if (cmdPoints != null) {
+			bytes += StrokeBuffer.arrayBytes(cmdPoints.length);
+		} else if (fillMask != null) {
+			bytes += fillMask.byteSize();
+		}
+		if (tileDelta != null) {
+			bytes += tileDelta.byteSize();
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return Time in nanoseconds it took to draw this command when it was committed.
+	 */
+	long drawNanos() {
+		return drawNanos;
 	}
 
 	@Override
 	public void run() {
-		if (cmdPath != null) {
-			cmdCanvas.drawPath(cmdPath, cmdPaint);
-		} else if (cmdPoint != null) {
-			cmdCanvas.drawPoint(cmdPoint.x, cmdPoint.y, cmdPaint);
+		draw(cmdRaster);
+	}
+
+	/**
+	 * Draw this command onto a Raster other than the one it was committed to.
+	 * 
+	 * @param raster Raster to draw on.
+	 */
+	public void draw(Raster raster) {
+		if (cmdStroke != null) {
+			raster.drawStroke(cmdStroke, cmdPaint);
+		} else if (cmdPoints != null) {
+			raster.drawPoints(cmdPoints, pointCount, cmdPaint);
+		} else if (fillMask != null) {
+			fillMask.draw(raster, cmdPaint);
 		} else {
-			cmdCanvas.drawPaint(cmdPaint);
+			raster.fill(cmdPaint);
+		}
+	}
+
+	/**
+	 * Write the geometry and paint of this command, without any TileDelta.
+	 * 
+	 * @param out Stream to write to.
+	 * @throws IOException If writing fails.
+	 */
+	void writeTo(DataOutputStream out) throws IOException {
+		if (cmdStroke != null) {
+			out.writeByte(KIND_PATH);
+			cmdPaint.writeTo(out);
+			cmdStroke.writeTo(out);
+		} else if (cmdPoints != null) {
+			out.writeByte(KIND_POINTS);
+			cmdPaint.writeTo(out);
+			out.writeInt(pointCount);
+			for (int i = 0; i < pointCount * 2; i++) {
+				out.writeFloat(cmdPoints[i]);
+			}
+		} else if (fillMask != null) {
+			out.writeByte(KIND_FLOOD_FILL);
+			cmdPaint.writeTo(out);
+			fillMask.writeTo(out);
+		} else {
+			out.writeByte(KIND_FILL);
+			cmdPaint.writeTo(out);
+		}
+	}
+
+	/**
+	 * Read a command written by writeTo().
+	 * 
+	 * @param in Stream to read from.
+	 * @return New Command.
+	 * @throws IOException If reading fails or the data is invalid.
+	 */
+	static Command readFrom(DataInputStream in) throws IOException {
+		final byte kind = in.readByte();
+		PaintDescriptor paint = PaintDescriptor.readFrom(in);
+		switch (kind) {
+		case KIND_PATH:
+			return new Command(StrokeBuffer.readFrom(in), paint);
+		case KIND_POINTS:
+			final int count = in.readInt();
+			if (count <= 0 || count > Integer.MAX_VALUE / 2) {
+				throw new IOException("Invalid point count " + count);
+			}
+			// Grow with the data read, a damaged count must not allocate more than the file holds.
+			float[] points = new float[Math.min(count, 1024) * 2];
+			for (int i = 0; i < count * 2; i++) {
+				if (i == points.length) {
+					float[] grown = new float[(int) Math.min(points.length * 2L, count * 2)];
+					System.arraycopy(points, 0, grown, 0, i);
+					points = grown;
+				}
+				points[i] = in.readFloat();
+			}
+			return new Command(paint, points);
+		case KIND_FILL:
+			return new Command(paint);
+		case KIND_FLOOD_FILL:
+			return new Command(paint, FillMask.readFrom(in));
+		default:
+			throw new IOException("Unknown command " + kind);
 		}
 	}
 }
@@ -0,0 +1,504 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.commands;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import at.droidcode.raster.Raster;
+
+/**
+ * Append-only binary journal of the history, written on a background thread. It starts with a
+ * checkpoint holding the original image, the command stack and the command index, followed by
+ * committed, coalesced, undone and redone commands. Writing a new checkpoint replaces the file, which
+ * keeps it from growing without bounds. Checkpoints are encoded on the background thread too, only
+ * the references are taken while the history is locked.
+ */
+public class CommandJournal {
+	private static final int MAGIC = 0x54504a33; // "TPJ3"
+	private static final byte RECORD_CHECKPOINT = 1;
+	private static final byte RECORD_COMMIT = 2;
+	private static final byte RECORD_COALESCE = 3;
+	private static final byte RECORD_UNDO = 4;
+	private static final byte RECORD_REDO = 5;
+	private static final byte[] SYNC = new byte[0];
+
+	private final File file;
+	private final File tmpFile;
+	private final LinkedBlockingQueue<Object> queue; // byte[] records and Checkpoints
+	private final WriterThread writerThread;
+	private final ByteArrayOutputStream recordBytes;
+	private final DataOutputStream recordOut;
+	private int enqueued;
+	private int written;
+	private int checkpoints;
+	private volatile int latestCheckpoint; // newest checkpoint that may still be written
+	private volatile boolean failed;
+	private volatile boolean deleted; // closed for good, the writer removes what it wrote last
+
+	/**
+	 * History at the time of a checkpoint. Snapshots and commands below the top of the stack do not
+	 * change anymore, the top command may still coalesce and is encoded right away.
+	 */
+	private static class Checkpoint {
+		final int sequence;
+		final Snapshot original;
+		final List<Command> commands;
+		final int index;
+		final byte[] top;
+		final SpillFile spillFile; // held until the checkpoint is encoded
+
+		Checkpoint(int sequence, Snapshot original, List<Command> commands, int index, byte[] top,
+				SpillFile spillFile) {
+			this.sequence = sequence;
+			this.original = original;
+			this.commands = commands;
+			this.index = index;
+			this.top = top;
+			this.spillFile = spillFile;
+		}
+	}
+
+	/**
+	 * State read back from a journal.
+	 */
+	public static class Session {
+		private final Snapshot original;
+		private final List<Command> commands;
+		private final int index;
+
+		Session(Snapshot original, List<Command> commands, int index) {
+			this.original = original;
+			this.commands = commands;
+			this.index = index;
+		}
+
+		/**
+		 * @return Width of the original image.
+		 */
+		public int width() {
+			return original.width();
+		}
+
+		/**
+		 * @return Height of the original image.
+		 */
+		public int height() {
+			return original.height();
+		}
+
+		/**
+		 * Draw the original image.
+		 * 
+		 * @param target Raster of width() and height().
+		 * @return False if the data is corrupt.
+		 */
+		public boolean restoreOriginal(Raster target) {
+			try {
+				original.restore(target, new int[original.scratchSize()]);
+			} catch (ArrayIndexOutOfBoundsException e) {
+				return false;
+			}
+			return true;
+		}
+
+		/**
+		 * @return Command stack, including undone commands.
+		 */
+		public List<Command> commands() {
+			return commands;
+		}
+
+		/**
+		 * @return Number of commands that are not undone.
+		 */
+		public int index() {
+			return index;
+		}
+	}
+
+	private class WriterThread extends Thread {
+		private final ByteArrayOutputStream checkpointBytes = new ByteArrayOutputStream();
+		private final DataOutputStream checkpointOut = new DataOutputStream(checkpointBytes);
+		private FileOutputStream stream;
+		private boolean skipping; // records after a checkpoint that was not written
+
+		WriterThread() {
+			super("CommandJournal");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				Object record;
+				try {
+					record = queue.take();
+				} catch (InterruptedException e) {
+					break;
+				}
+				if (!failed && !deleted) {
+					try {
+						write(record);
+					} catch (IOException e) {
+						failed = true;
+					}
+				}
+				if (record instanceof Checkpoint && ((Checkpoint) record).spillFile != null) {
+					((Checkpoint) record).spillFile.release();
+				}
+				synchronized (CommandJournal.this) {
+					written++;
+					CommandJournal.this.notifyAll();
+				}
+			}
+			closeStream();
+			if (deleted) {
+				file.delete();
+				tmpFile.delete();
+			}
+		}
+
+		private void write(Object record) throws IOException {
+			if (record instanceof Checkpoint) {
+				byte[] encoded = encode((Checkpoint) record);
+				skipping = encoded == null;
+				if (skipping) {
+					return;
+				}
+				// Write the new journal next to the old one so a crash leaves one intact.
+				closeStream();
+				FileOutputStream out = new FileOutputStream(tmpFile);
+				out.write(encoded);
+				out.getFD().sync();
+				out.close();
+				if (!tmpFile.renameTo(file)) {
+					throw new IOException("Cannot replace " + file);
+				}
+				stream = new FileOutputStream(file, true);
+			} else if (record == SYNC) {
+				if (stream != null) {
+					stream.getFD().sync();
+				}
+			} else if (stream != null && !skipping) {
+				stream.write((byte[]) record);
+			}
+		}
+
+		/**
+		 * @return Encoded checkpoint or null if a newer one was enqueued meanwhile, which also
+		 *         covers pixels that were discarded while they were read.
+		 */
+		private byte[] encode(Checkpoint checkpoint) throws IOException {
+			if (checkpoint.sequence != latestCheckpoint) {
+				return null;
+			}
+			checkpointBytes.reset();
+			try {
+				checkpointOut.writeByte(RECORD_CHECKPOINT);
+				checkpointOut.writeInt(MAGIC);
+				checkpointOut.writeInt(checkpoint.index);
+				checkpoint.original.writeTo(checkpointOut, new int[checkpoint.original.scratchSize()]);
+				final int count = checkpoint.commands.size();
+				checkpointOut.writeInt(count + (checkpoint.top != null ? 1 : 0));
+				for (int i = 0; i < count; i++) {
+					checkpoint.commands.get(i).writeTo(checkpointOut);
+				}
+				if (checkpoint.top != null) {
+					checkpointOut.write(checkpoint.top);
+				}
+			} catch (RuntimeException e) {
+				// The spilled pixels were discarded while reading them.
+				if (checkpoint.sequence == latestCheckpoint) {
+					throw e;
+				}
+				return null;
+			}
+			if (checkpoint.sequence != latestCheckpoint) {
+				return null;
+			}
+			byte[] encoded = checkpointBytes.toByteArray();
+			checkpointBytes.reset();
+			return encoded;
+		}
+
+		private void closeStream() {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					failed = true;
+				}
+				stream = null;
+			}
+		}
+	}
+
+	/**
+	 * Nothing is written until the first checkpoint, so an existing journal can be read first.
+	 * 
+	 * @param file Journal file in app-private storage.
+	 */
+	public CommandJournal(File file) {
+		this.file = file;
+		tmpFile = new File(file.getPath() + ".tmp");
+		queue = new LinkedBlockingQueue<Object>();
+		recordBytes = new ByteArrayOutputStream();
+		recordOut = new DataOutputStream(recordBytes);
+		writerThread = new WriterThread();
+		writerThread.start();
+	}
+
+	/**
+	 * Replace the journal with the complete history. Only the top command is encoded here, the rest
+	 * is encoded on the writer thread.
+	 * 
+	 * @param original Original image the commands are drawn on. Its pixels must stay readable until
+	 *            the next checkpoint or discard().
+	 * @param commands Command stack, including undone commands. It is copied.
+	 * @param index Number of commands that are not undone.
+	 * @param spillFile File the pixels may be spilled to, held until they are read, or null.
+	 */
+	synchronized void checkpoint(Snapshot original, List<Command> commands, int index, SpillFile spillFile) {
+		final int count = commands.size();
+		byte[] top = null;
+		if (count > 0) {
+			try {
+				commands.get(count - 1).writeTo(recordOut);
+			} catch (IOException e) {
+				failed = true;
+			}
+			top = recordBytes.toByteArray();
+			recordBytes.reset();
+		}
+		final int sequence = ++checkpoints;
+		latestCheckpoint = sequence;
+		if (spillFile != null) {
+			spillFile.hold();
+		}
+		enqueue(new Checkpoint(sequence, original, new ArrayList<Command>(commands.subList(0, Math.max(0,
+				count - 1))), index, top, spillFile));
+	}
+
+	/**
+	 * Drop checkpoints that are not written yet, for example because their spilled pixels are about
+	 * to be discarded. Records following a dropped checkpoint are dropped with it.
+	 */
+	synchronized void discard() {
+		latestCheckpoint = ++checkpoints;
+	}
+
+	/**
+	 * A command was pushed on the stack, discarding undone commands.
+	 */
+	synchronized void commit(Command command) {
+		writeCommand(RECORD_COMMIT, command);
+	}
+
+	/**
+	 * A command was merged into the command on top of the stack.
+	 */
+	synchronized void coalesce(Command command) {
+		writeCommand(RECORD_COALESCE, command);
+	}
+
+	synchronized void undo() {
+		enqueue(new byte[] { RECORD_UNDO });
+	}
+
+	synchronized void redo() {
+		enqueue(new byte[] { RECORD_REDO });
+	}
+
+	private void writeCommand(byte type, Command command) {
+		try {
+			recordOut.writeByte(type);
+			command.writeTo(recordOut);
+		} catch (IOException e) {
+			failed = true;
+		}
+		byte[] record = recordBytes.toByteArray();
+		recordBytes.reset();
+		enqueue(record);
+	}
+
+	private void enqueue(Object record) {
+		enqueued++;
+		queue.add(record);
+	}
+
+	/**
+	 * Block until everything enqueued so far is written and synced to the storage device.
+	 * 
+	 * @return False if writing failed at some point.
+	 */
+	public boolean sync() {
+		return sync(0);
+	}
+
+	/**
+	 * Block until everything enqueued so far is written and synced to the storage device, or until
+	 * the timeout passed. The writer thread goes on after a timeout.
+	 * 
+	 * @param timeoutMillis Maximum time to wait, 0 to wait without a limit.
+	 * @return False if writing failed at some point or did not finish in time.
+	 */
+	public synchronized boolean sync(long timeoutMillis) {
+		enqueue(SYNC);
+		final int target = enqueued;
+		final long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (written < target && writerThread.isAlive()) {
+			long remaining = 0;
+			if (timeoutMillis > 0) {
+				remaining = deadline - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return false;
+				}
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				break;
+			}
+		}
+		return !failed && written >= target;
+	}
+
+	/**
+	 * Write what is left and stop the writer thread.
+	 * 
+	 * @param delete True to delete the journal, for example if the session ended on purpose.
+	 */
+	public void close(boolean delete) {
+		close(delete, 0);
+	}
+
+	/**
+	 * Like close(boolean), but wait at most about twice the timeout, for example on the UI thread.
+	 * Records the writer thread did not get to are lost, the journal ends before them.
+	 * 
+	 * @param delete True to delete the journal, records are not written then.
+	 * @param timeoutMillis Maximum time to wait for the sync and for the writer thread to stop, 0
+	 *            to wait without a limit.
+	 */
+	public void close(boolean delete, long timeoutMillis) {
+		if (delete) {
+			deleted = true;
+		} else {
+			sync(timeoutMillis);
+		}
+		writerThread.interrupt();
+		try {
+			writerThread.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			// the thread is a daemon, it does not keep the process alive
+		}
+		if (delete) {
+			file.delete();
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Read back the history. A record cut off by a crash ends the journal without an error, a
+	 * checkpoint that cannot be decoded deletes the journal so that it does not fail again.
+	 * 
+	 * @param file Journal file.
+	 * @return Session or null if there is no valid journal.
+	 */
+	public static Session read(File file) {
+		if (!file.exists()) {
+			return null;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readByte() != RECORD_CHECKPOINT || in.readInt() != MAGIC) {
+				return null;
+			}
+			int index = in.readInt();
+			Snapshot original = Snapshot.readFrom(in);
+			final int count = in.readInt();
+			if (index < 0 || index > count) {
+				return null;
+			}
+			ArrayList<Command> commands = new ArrayList<Command>(count);
+			for (int i = 0; i < count; i++) {
+				commands.add(Command.readFrom(in));
+			}
+			try {
+				while (true) {
+					final byte type = in.readByte();
+					switch (type) {
+					case RECORD_COMMIT:
+						Command command = Command.readFrom(in);
+						while (commands.size() > index) {
+							commands.remove(commands.size() - 1);
+						}
+						commands.add(command);
+						index++;
+						break;
+					case RECORD_COALESCE:
+						Command next = Command.readFrom(in);
+						// Only written for points with an equal Paint, anything else is damage.
+						if (index == 0 || !commands.get(index - 1).canCoalesce(next, Long.MAX_VALUE)) {
+							throw new EOFException("Invalid coalesce record");
+						}
+						commands.get(index - 1).coalesce(next);
+						break;
+					case RECORD_UNDO:
+						index = Math.max(0, index - 1);
+						break;
+					case RECORD_REDO:
+						index = Math.min(commands.size(), index + 1);
+						break;
+					default:
+						throw new EOFException("Unknown record " + type);
+					}
+				}
+			} catch (IOException e) {
+				// Journal ends here, everything before is valid.
+			} catch (RuntimeException e) {
+				// A damaged record, everything before is valid.
+			}
+			return new Session(original, commands, index);
+		} catch (IOException e) {
+			return null;
+		} catch (RuntimeException e) {
+			file.delete();
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// already read
+				}
+			}
+		}
+	}
+}
@@ -16,124 +16,695 @@
 
 package at.droidcode.commands;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
-import android.graphics.Bitmap;
-import android.graphics.Bitmap.Config;
-import android.graphics.Canvas;
-import android.graphics.Color;
-import android.graphics.Paint;
-import android.graphics.PorterDuff;
-import android.graphics.PorterDuffXfermode;
+import at.droidcode.raster.Raster;
 
 public class CommandManager {
-	private static final int MAXCOMMANDS = 256;
-	private Bitmap originalBitmap;
+	/**
+	 * How undo and redo restore a previous state.
+	 */
+	public enum HistoryMode {
+		/** Redraw a keyframe or the original image and replay the commands following it. */
+		REPLAY,
+		/** Copy back the pixels of the tiles a command touched. */
+		TILES
+	}
+
+	private static final int BUDGET_HEAP_DIVISOR = 4; // by default use at most 1/4 of the heap
+	private static final int KEYFRAME_BUDGET_DIVISOR = 2; // keyframes get half of the budget
+	private static final int MIN_KEYFRAME_SPACING = 8;
+	private static final int MAX_KEYFRAME_SPACING = 64;
+	private static final int TYPICAL_DEPTH = 256; // spread keyframes over this many commands
+	private static final int SCRATCH_ROWS = 16;
+	private static final int MAX_SCRATCH_WIDTH = 2048; // Snapshots split wider content rects
+	private static final long REPLAY_BUDGET_NANOS = 50 * 1000 * 1000L;
+	private static final long COALESCE_WINDOW_MILLIS = 300;
+	private static final int CHECKPOINT_INTERVAL = 64; // journal records between checkpoints
+	private Snapshot originalPixels;
+	private Raster workingRaster; // not owned, commands are drawn onto it
 	private int commandIndex; // [0..commandStack.size()]
+	private int keyframeSpacing;
+	private long byteBudget;
+	private long historyBytes; // original, commands and keyframes
+	private long keyframeBytes;
+	private int[] scratch;
+	private HistoryMode historyMode;
+	private SpillFile spillFile;
+	private boolean spillFailed;
+	private CommandJournal journal;
+	private boolean coalescing; // off while restoring, the journal keeps no input times
+	private int journalRecords; // since the last checkpoint
 
-	private final Canvas bitmapCanvas;
-	private final Paint transparencyPaint;
 	private final LinkedList<Command> commandStack;
+	private final ArrayList<Keyframe> keyframes; // ordered by index
+	private final int[] commandBounds; // left, top, right, bottom
+	private final int[] changedBounds; // area of the working Raster changed since takeChangedBounds()
 
 	/**
-	 * Enables undo and redo actions via a stack of commands that are applied to an original Bitmap
-	 * if a command needs to be un- or redone.
-	 * 
-	 * @param originalBitmap Bitmap representing the original state of the image. Will be copied.
+	 * Snapshot of the working Raster after the first index commands of the stack were applied.
+	 */
+	private static class Keyframe {
+		private int index;
+		private final Snapshot pixels;
+
+		Keyframe(int index, Snapshot pixels) {
+			this.index = index;
+			this.pixels = pixels;
+		}
+	}
+
+	/**
+	 * Enables undo and redo actions via a stack of commands that are applied to an original image
+	 * if a command needs to be un- or redone. The original image, keyframes and TileDeltas are kept
+	 * compressed and the oldest commands are merged into the original image once the history
+	 * exceeds its byte budget.
 	 */
 	public CommandManager() {
 		commandIndex = 0;
 		commandStack = new LinkedList<Command>();
+		keyframes = new ArrayList<Keyframe>();
+		commandBounds = new int[4];
+		changedBounds = new int[4];
+		historyMode = HistoryMode.REPLAY;
+		coalescing = true;
+		byteBudget = Runtime.getRuntime().maxMemory() / BUDGET_HEAP_DIVISOR;
+	}
+
+	/**
+	 * Select how undo and redo work for commands committed from now on. Commands that were
+	 * committed in another mode keep working the way they were recorded.
+	 * 
+	 * @param mode HistoryMode to use.
+	 */
+	public synchronized void setHistoryMode(HistoryMode mode) {
+		historyMode = mode;
+	}
+
+	/**
+	 * @return HistoryMode used for newly committed commands.
+	 */
+	public synchronized HistoryMode historyMode() {
+		return historyMode;
+	}
+
+	/**
+	 * Limit the memory the history may use. Old commands are merged into the original image if the
+	 * limit is exceeded.
+	 * 
+	 * @param bytes Maximum number of bytes for the original image, commands and keyframes.
+	 */
+	public synchronized void setByteBudget(long bytes) {
+		byteBudget = bytes;
+		trimToBudget();
+	}
+
+	/**
+	 * Move the pixel data of old history entries to a memory-mapped file instead of merging the
+	 * commands into the original image once the byte budget is exceeded. Commands without pixel
+	 * data are still merged. The data is read back when an undo needs it.
+	 * 
+	 * @param file Scratch file in app-private storage, will be truncated. Null to stop spilling.
+	 * @param maxBytes Size the file must not grow beyond.
+	 */
+	public synchronized void setSpillFile(File file, long maxBytes) {
+		if (spillFile != null) {
+			// Entries can still point into the old file, start over.
+			if (originalPixels != null) {
+				reset(workingRaster);
+			}
+			spillFile.delete();
+			spillFile = null;
+		}
+		spillFailed = false;
+		if (file != null) {
+			try {
+				spillFile = new SpillFile(file, maxBytes);
+			} catch (IOException e) {
+				spillFailed = true;
+			}
+		}
+	}
+
+	/**
+	 * Record every change of the history in a journal, starting with a checkpoint of the current
+	 * state.
+	 * 
+	 * @param journal CommandJournal to write to or null to stop journaling.
+	 */
+	public synchronized void setJournal(CommandJournal journal) {
+		this.journal = journal;
+		checkpoint();
+	}
+
+	/**
+	 * Rebuild a history, for example one read from a CommandJournal. Commands are drawn and
+	 * recorded again in the current HistoryMode, then the undone ones are undone.
+	 * 
+	 * @param original Raster showing the original image. Commands will be drawn onto it.
+	 * @param commands Command stack, including undone commands.
+	 * @param index Number of commands that are not undone.
+	 */
+	public synchronized void restore(Raster original, List<Command> commands, int index) {
+		CommandJournal restoredJournal = journal;
+		journal = null;
+		coalescing = false;
+		reset(original);
+		for (int i = 0; i < commands.size(); i++) {
+			commitCommand(commands.get(i), original);
+		}
+		coalescing = true;
+		boolean replay = false;
+		while (commandIndex > index) {
+			replay |= stepBack(!replay);
+		}
+		if (replay) {
+			List<Command> replayed = beginReplay(workingRaster);
+			for (int i = 0; i < replayed.size(); i++) {
+				replayed.get(i).draw(workingRaster);
+			}
+		}
+		journal = restoredJournal;
+		checkpoint();
+	}
+
+	/**
+	 * Take over the history of another manager, for example one restored on another thread while
+	 * this one kept serving the UI. The current history is cleared, the other manager is left empty.
+	 * 
+	 * @param other CommandManager without a SpillFile or journal.
+	 */
+	public synchronized void adopt(CommandManager other) {
+		synchronized (other) {
+			clear();
+			originalPixels = other.originalPixels;
+			workingRaster = other.workingRaster;
+			scratch = other.scratch;
+			keyframes.addAll(other.keyframes);
+			commandStack.addAll(other.commandStack);
+			commandIndex = other.commandIndex;
+			keyframeSpacing = other.keyframeSpacing;
+			historyBytes = other.historyBytes;
+			keyframeBytes = other.keyframeBytes;
+			other.clear();
+		}
+		trimToBudget();
+		checkpoint();
+	}
 
-		bitmapCanvas = new Canvas();
-		transparencyPaint = new Paint();
-		transparencyPaint.setColor(Color.TRANSPARENT);
-		transparencyPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+	/**
+	 * @return Approximate number of bytes the history currently occupies on the heap.
+	 */
+	public synchronized long byteSize() {
+		return historyBytes;
 	}
 
 	/**
-	 * Clear Bitmap and command stack.
+	 * Clear the original image and command stack.
 	 */
-	public void clear() {
-		if (originalBitmap != null) {
-			originalBitmap.recycle();
-			originalBitmap = null;
+	public synchronized void clear() {
+		if (journal != null) {
+			journal.discard();
+		}
+		if (spillFile != null) {
+			spillFile.clear();
 		}
+		originalPixels = null;
+		workingRaster = null;
+		scratch = null;
+		keyframes.clear();
 		commandStack.clear();
 		commandIndex = 0;
+		historyBytes = 0;
+		keyframeBytes = 0;
 	}
 
 	/**
-	 * Clear the command stack and set an original Bitmap.
+	 * Clear the command stack and set an original Raster.
 	 * 
-	 * @param originalBitmap Bitmap representing the original state of the image. Will be copied.
+	 * @param original Raster representing the original state of the image. A compressed copy is
+	 *            kept. Commands are expected to be drawn onto this Raster.
 	 */
-	public void reset(Bitmap originalBitmap) {
-		if (this.originalBitmap != null) {
-			this.originalBitmap.recycle();
-			commandStack.clear();
-			commandIndex = 0;
-		}
-		this.originalBitmap = originalBitmap.copy(Config.ARGB_8888, true);
-		bitmapCanvas.setBitmap(this.originalBitmap);
+	public synchronized void reset(Raster original) {
+		clear();
+		workingRaster = original;
+		final int width = Math.max(Math.min(original.getWidth(), MAX_SCRATCH_WIDTH), TileDelta.TILE_SIZE);
+		scratch = new int[2 * width * SCRATCH_ROWS + 1];
+		originalPixels = capture(original);
+		historyBytes = originalPixels.byteSize();
+		updateKeyframeSpacing(originalPixels.byteSize());
+		checkpoint();
 	}
 
 	/**
-	 * Apply the Command to the supplied Bitmap-Canvas and push it on the command stack. Any
-	 * previously undone commands on the command stack will be discarded.
+	 * Apply the Command to the supplied Raster and push it on the command stack. Any previously
+	 * undone commands on the command stack will be discarded.
 	 * 
 	 * @param command Command to draw and save.
-	 * @param canvas Bitmap-Canvas to apply the command to.
+	 * @param raster Raster to apply the command to.
 	 */
-	public synchronized void commitCommand(Command command, Canvas canvas) {
-		command.setCanvas(canvas);
-		command.run();
+	public synchronized void commitCommand(Command command, Raster raster) {
+		commitCommand(command, raster, command);
+	}
+
+	/**
+	 * Like commitCommand(Command, Raster), but let the caller produce the pixels of the command for
+	 * this first time, for example by merging a layer the command was already rasterized into. The
+	 * result must match what the command draws, replays will draw the command itself.
+	 * 
+	 * @param command Command to save.
+	 * @param raster Raster the command is applied to when it is redone.
+	 * @param firstDraw Draws the command onto the working Raster.
+	 */
+	public synchronized void commitCommand(Command command, Raster raster, Runnable firstDraw) {
+		command.setRaster(raster);
+		TileDelta delta = null;
+		if (workingRaster != null) {
+			markChanged(command);
+			if (historyMode == HistoryMode.TILES) {
+				delta = new TileDelta(workingRaster, commandBounds, scratch);
+			}
+		}
+		long start = System.nanoTime();
+		firstDraw.run();
+		command.setDrawNanos(System.nanoTime() - start);
+		if (delta != null) {
+			delta.captureAfter(workingRaster, scratch);
+			command.setTileDelta(delta);
+		}
+		if (coalescing && commandIndex > 0 && commandIndex == commandStack.size()) {
+			Command previous = commandStack.getLast();
+			if (previous.canCoalesce(command, COALESCE_WINDOW_MILLIS)) {
+				// A burst of taps becomes one command. A keyframe right after the previous command
+				// misses the new points.
+				if (!keyframes.isEmpty() && keyframes.get(keyframes.size() - 1).index == commandIndex) {
+					removeKeyframe(keyframes.size() - 1);
+				}
+				historyBytes -= previous.byteSize();
+				previous.coalesce(command);
+				historyBytes += previous.byteSize();
+				if (journal != null) {
+					journal.coalesce(command);
+					journalRecordAdded();
+				}
+				trimToBudget();
+				return;
+			}
+		}
 		if (commandIndex < commandStack.size()) {
 			// Remove remaining undone commands on top of the stack first.
 			for (int i = commandStack.size(); i > commandIndex; i--) {
-				commandStack.removeLast();
+				historyBytes -= discard(commandStack.removeLast());
+			}
+			// Keyframes above the index show undone commands.
+			for (int i = keyframes.size() - 1; i >= 0 && keyframes.get(i).index > commandIndex; i--) {
+				removeKeyframe(i);
 			}
 		}
-		if (commandIndex == MAXCOMMANDS) {
-			// Apply first command to the Bitmap and remove it from the stack.
-			Command removed = commandStack.removeFirst();
-			removed.setCanvas(bitmapCanvas);
-			removed.run();
+		commandStack.add(command);
+		commandIndex++;
+		historyBytes += command.byteSize();
+		if (journal != null) {
+			journal.commit(command);
+			journalRecordAdded();
+		}
+		if (keyframeNeeded()) {
+			addKeyframe();
+		}
+		trimToBudget();
+	}
+
+	/**
+	 * Undos the last action by decrementing the command index. If the command has a TileDelta its
+	 * tiles are copied back, otherwise all previous commands following up to it are applied after
+	 * restoring the nearest keyframe or the original image first. Everything happens on the working
+	 * Raster.
+	 */
+	public synchronized void undoLast() {
+		if (stepBack(true)) {
+			setBounds(changedBounds, 0, 0, workingRaster.getWidth(), workingRaster.getHeight());
+			List<Command> commands = beginReplay(workingRaster);
+			for (int i = 0; i < commands.size(); i++) {
+				commands.get(i).draw(workingRaster); // do on ui thread, no queue
+			}
+		}
+	}
+
+	/**
+	 * Redos the last undone command from the command stack on the working Raster and increments the
+	 * command index.
+	 */
+	public synchronized void redoLast() {
+		stepForward(true);
+	}
+
+	/**
+	 * Decrement the command index. Undoing a command with a TileDelta is cheap and done right away
+	 * if the working Raster is up to date.
+	 * 
+	 * @param applyDelta False if the working Raster is going to be rebuilt anyway.
+	 * @return True if the working Raster must be rebuilt with beginReplay().
+	 */
+	public synchronized boolean stepBack(boolean applyDelta) {
+		if (commandIndex == 0) {
+			return false;
+		}
+		commandIndex--;
+		if (journal != null) {
+			journal.undo();
+			journalRecordAdded();
+		}
+		TileDelta delta = commandStack.get(commandIndex).tileDelta();
+		if (applyDelta && delta != null) {
+			delta.undo(workingRaster, scratch);
+			markChanged(commandStack.get(commandIndex));
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Increment the command index and draw the redone command if the working Raster is up to date.
+	 * 
+	 * @param apply False if the working Raster is going to be rebuilt anyway.
+	 * @return True if the working Raster must be rebuilt with beginReplay().
+	 */
+	public synchronized boolean stepForward(boolean apply) {
+		if (commandIndex == commandStack.size()) {
+			return false;
+		}
+		Command command = commandStack.get(commandIndex);
+		commandIndex++;
+		if (journal != null) {
+			journal.redo();
+			journalRecordAdded();
+		}
+		if (!apply) {
+			return true;
+		}
+		if (command.tileDelta() != null) {
+			command.tileDelta().redo(workingRaster, scratch);
 		} else {
-			commandIndex++;
+			command.draw(workingRaster); // do on ui thread, no queue
 		}
-		commandStack.add(command);
+		markChanged(command);
+		return false;
+	}
+
+	/**
+	 * Get the area of the working Raster that commits, undos and redos changed since the last call.
+	 * States rebuilt with beginReplay() are not included.
+	 * 
+	 * @param bounds Array to store left, top, right and bottom of the area in.
+	 * @return False if nothing changed.
+	 */
+	public synchronized boolean takeChangedBounds(int[] bounds) {
+		if (isEmpty(changedBounds)) {
+			return false;
+		}
+		System.arraycopy(changedBounds, 0, bounds, 0, 4);
+		setBounds(changedBounds, 0, 0, 0, 0);
+		return true;
+	}
+
+	private void markChanged(Command command) {
+		command.getBounds(commandBounds, workingRaster.getWidth(), workingRaster.getHeight());
+		if (isEmpty(commandBounds)) {
+			return;
+		}
+		if (isEmpty(changedBounds)) {
+			System.arraycopy(commandBounds, 0, changedBounds, 0, 4);
+		} else {
+			setBounds(changedBounds, Math.min(changedBounds[0], commandBounds[0]),
+					Math.min(changedBounds[1], commandBounds[1]), Math.max(changedBounds[2], commandBounds[2]),
+					Math.max(changedBounds[3], commandBounds[3]));
+		}
+	}
+
+	private static boolean isEmpty(int[] bounds) {
+		return bounds[0] >= bounds[2] || bounds[1] >= bounds[3];
+	}
+
+	private static void setBounds(int[] bounds, int left, int top, int right, int bottom) {
+		bounds[0] = left;
+		bounds[1] = top;
+		bounds[2] = right;
+		bounds[3] = bottom;
 	}
 
 	/**
-	 * Undos the last action by decrementing the command index and then applying all previous
-	 * commands following up to it, after redrawing the original Bitmap first.
+	 * Start rebuilding the state at the current command index by restoring the nearest keyframe or
+	 * the original image. The returned commands have to be drawn onto the target in order to
+	 * complete it, which can happen on another thread without holding this manager's lock.
 	 * 
-	 * @param canvas Bitmap-Canvas to apply the commands to.
+	 * @param target Raster of the same size as the working Raster.
+	 * @return Commands following the restored state up to the command index.
 	 */
-	public synchronized void undoLast(Canvas canvas) {
-		if (commandIndex > 0) {
-			// clear canvas and redraw original
-			canvas.drawPaint(transparencyPaint);
-			canvas.drawBitmap(originalBitmap, 0, 0, null);
-			commandIndex--;
-			for (int i = 0; i < commandIndex; i++) {
-				Command command = commandStack.get(i);
-				command.run(); // do on ui thread, no queue
+	public synchronized List<Command> beginReplay(Raster target) {
+		Keyframe keyframe = keyframeAtOrBelow(commandIndex);
+		int first = keyframe != null ? keyframe.index : 0;
+		int cover = lastCoveringCommand(first, commandIndex);
+		if (cover >= 0) {
+			// Nothing below the covering command is visible.
+			target.eraseColor(0);
+			first = cover;
+		} else if (keyframe != null) {
+			keyframe.pixels.restore(target, scratch);
+		} else {
+			originalPixels.restore(target, scratch);
+		}
+		return new ArrayList<Command>(commandStack.subList(first, commandIndex));
+	}
+
+	/**
+	 * @return Index of the last command in [from..to) that covers the whole canvas, or -1.
+	 */
+	private int lastCoveringCommand(int from, int to) {
+		for (int i = to - 1; i >= from; i--) {
+			if (commandStack.get(i).coversCanvas()) {
+				return i;
 			}
 		}
+		return -1;
 	}
 
 	/**
-	 * Redos the last undone command from the command stack and increments the command index.
+	 * Replace the Raster commands are drawn onto, for example with a rebuilt back buffer. The
+	 * history is kept.
 	 * 
-	 * @param canvas Bitmap-Canvas to apply the command to.
+	 * @param raster Raster with the state at the current command index.
 	 */
-	public synchronized void redoLast(Canvas canvas) {
-		if (commandIndex < commandStack.size()) {
-			Command command = commandStack.get(commandIndex);
-			command.run(); // do on ui thread, no queue
-			commandIndex++;
+	public synchronized void setWorkingRaster(Raster raster) {
+		workingRaster = raster;
+	}
+
+	private Snapshot capture(Raster raster) {
+		return new Snapshot(raster, scratch);
+	}
+
+	/**
+	 * Spill the pixel data of the oldest entries or merge the oldest commands into the original
+	 * image until the history uses no more than three quarters of the budget, so that this does
+	 * not happen on every commit. Undone commands are never merged.
+	 */
+	private void trimToBudget() {
+		if (historyBytes <= byteBudget || originalPixels == null) {
+			return;
+		}
+		final long target = byteBudget - byteBudget / 4;
+		if (spillFile != null && !spillFailed) {
+			spillOldest(target);
+			if (historyBytes <= byteBudget) {
+				return;
+			}
+		}
+		long bytes = historyBytes;
+		int count = 0;
+		while (count < commandIndex && bytes > target) {
+			bytes -= commandStack.get(count).byteSize();
+			count++;
+		}
+		if (count == 0) {
+			return;
+		}
+
+		// A keyframe shortly above can become the new original without redrawing anything.
+		Keyframe keyframe = null;
+		for (int i = 0; i < keyframes.size(); i++) {
+			Keyframe k = keyframes.get(i);
+			if (k.index >= count && k.index <= commandIndex && k.index - count <= keyframeSpacing) {
+				keyframe = k;
+				break;
+			}
+		}
+		Snapshot replaced = originalPixels;
+		historyBytes -= replaced.byteSize();
+		if (keyframe != null) {
+			count = keyframe.index;
+			keyframes.remove(keyframe);
+			keyframeBytes -= keyframe.pixels.byteSize();
+			originalPixels = keyframe.pixels;
+		} else {
+			Raster raster = workingRaster.createCompatible(workingRaster.getWidth(), workingRaster.getHeight());
+			int first = lastCoveringCommand(0, count);
+			if (first < 0) {
+				originalPixels.restore(raster, scratch);
+				first = 0;
+			}
+			for (int i = first; i < count; i++) {
+				commandStack.get(i).draw(raster);
+			}
+			originalPixels = capture(raster);
+			raster.recycle();
+			historyBytes += originalPixels.byteSize();
+		}
+		// Only now, the new original may have been drawn from the spilled pixels of the old one.
+		replaced.freeSpilled();
+
+		for (int i = 0; i < count; i++) {
+			historyBytes -= discard(commandStack.removeFirst());
+		}
+		commandIndex -= count;
+		// A keyframe at index 0 would equal the original image.
+		for (int i = keyframes.size() - 1; i >= 0; i--) {
+			Keyframe k = keyframes.get(i);
+			k.index -= count;
+			if (k.index <= 0) {
+				removeKeyframe(i);
+			}
+		}
+		checkpoint();
+	}
+
+	/**
+	 * Replace the journal with the current state once enough records were appended since the last
+	 * checkpoint, which keeps the journal compact.
+	 */
+	private void journalRecordAdded() {
+		journalRecords++;
+		if (journalRecords >= CHECKPOINT_INTERVAL) {
+			checkpoint();
+		}
+	}
+
+	private void checkpoint() {
+		if (journal != null && originalPixels != null) {
+			journal.checkpoint(originalPixels, commandStack, commandIndex, spillFile);
+			journalRecords = 0;
+		}
+	}
+
+	/**
+	 * Move pixel data to the SpillFile, oldest first, until the heap usage reaches the target. If
+	 * writing fails spilling is turned off and the history falls back to merging commands.
+	 */
+	private void spillOldest(long target) {
+		try {
+			historyBytes -= originalPixels.spill(spillFile);
+			int k = 0;
+			for (int i = 0; i <= commandIndex && historyBytes > target; i++) {
+				while (k < keyframes.size() && keyframes.get(k).index <= i) {
+					Keyframe keyframe = keyframes.get(k++);
+					int freed = keyframe.pixels.spill(spillFile);
+					keyframeBytes -= freed;
+					historyBytes -= freed;
+				}
+				if (i < commandIndex) {
+					TileDelta delta = commandStack.get(i).tileDelta();
+					if (delta != null) {
+						historyBytes -= delta.spill(spillFile);
+					}
+				}
+			}
+		} catch (IOException e) {
+			spillFailed = true;
+		}
+	}
+
+	/**
+	 * A keyframe is due if enough commands were committed since the last one or the last command
+	 * covering the canvas, or if replaying them would take longer than the replay budget.
+	 */
+	private boolean keyframeNeeded() {
+		if (historyMode == HistoryMode.TILES || workingRaster == null) {
+			return false;
+		}
+		Keyframe last = keyframeAtOrBelow(commandIndex);
+		int first = last != null ? last.index : 0;
+		first = Math.max(first, lastCoveringCommand(first, commandIndex));
+		if (commandIndex - first >= keyframeSpacing) {
+			return true;
+		}
+		long cost = 0;
+		for (int i = first; i < commandIndex; i++) {
+			cost += commandStack.get(i).drawNanos();
+		}
+		return cost > REPLAY_BUDGET_NANOS;
+	}
+
+	/**
+	 * Snapshot the working Raster at the current index. Evicts the oldest keyframes if their share
+	 * of the budget would be exceeded, because recent states are the most likely to be undone to.
+	 */
+	private void addKeyframe() {
+		Snapshot pixels = capture(workingRaster);
+		final long share = byteBudget / KEYFRAME_BUDGET_DIVISOR;
+		while (!keyframes.isEmpty() && keyframeBytes + pixels.byteSize() > share) {
+			removeKeyframe(0);
+		}
+		if (keyframeBytes + pixels.byteSize() <= share) {
+			keyframes.add(new Keyframe(commandIndex, pixels));
+			keyframeBytes += pixels.byteSize();
+			historyBytes += pixels.byteSize();
+		}
+		updateKeyframeSpacing(pixels.byteSize());
+	}
+
+	/**
+	 * Space keyframes so that the budget share fits enough of them to cover a typical history.
+	 * Better compressed images get denser keyframes.
+	 */
+	private void updateKeyframeSpacing(int frameBytes) {
+		final long fitting = byteBudget / KEYFRAME_BUDGET_DIVISOR / Math.max(1, frameBytes);
+		if (fitting > 0) {
+			keyframeSpacing = (int) Math.max(MIN_KEYFRAME_SPACING,
+					Math.min(MAX_KEYFRAME_SPACING, TYPICAL_DEPTH / fitting));
+		} else {
+			keyframeSpacing = Integer.MAX_VALUE;
+		}
+	}
+
+	private void removeKeyframe(int i) {
+		Keyframe keyframe = keyframes.remove(i);
+		keyframeBytes -= keyframe.pixels.byteSize();
+		historyBytes -= keyframe.pixels.byteSize();
+		keyframe.pixels.freeSpilled();
+	}
+
+	/**
+	 * Free the spilled pixels of a Command removed from the stack.
+	 * 
+	 * @return Heap bytes the Command occupied.
+	 */
+	private static int discard(Command command) {
+		TileDelta delta = command.tileDelta();
+		if (delta != null) {
+			delta.freeSpilled();
+		}
+		return command.byteSize();
+	}
+
+	private Keyframe keyframeAtOrBelow(int index) {
+		for (int i = keyframes.size() - 1; i >= 0; i--) {
+			Keyframe keyframe = keyframes.get(i);
+			if (keyframe.index <= index) {
+				return keyframe;
+			}
 		}
+		return null;
 	}
 }
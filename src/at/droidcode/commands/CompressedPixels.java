@@ -0,0 +1,265 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.commands;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import at.droidcode.raster.Raster;
+
+/**
+ * A rectangle of Raster pixels stored with the PixelCodec. The rectangle is encoded in bands of
+ * rows so that only a small scratch buffer is needed instead of a full uncompressed copy. The
+ * encoded bands can be moved to a SpillFile and are then read back on demand.
+ */
+class CompressedPixels {
+	private static final int OBJECT_BYTES = 32; // rough overhead of this object and its arrays
+
+	private final int left;
+	private final int top;
+	private final int width;
+	private final int height;
+	private final int bandRows;
+	private final int[][] bands; // null entries were spilled
+	private final int[] bandLengths;
+	private long[] bandPositions; // positions in the SpillFile
+	private SpillFile spillFile;
+	private int byteSize;
+
+	/**
+	 * Copy and encode a rectangle of the Raster.
+	 *
+	 * @param raster Raster to copy the pixels from.
+	 * @param scratch Buffer for at least two rows of the rectangle plus one int.
+	 */
+	CompressedPixels(Raster raster, int left, int top, int width, int height, int[] scratch) {
+		this.left = left;
+		this.top = top;
+		this.width = width;
+		this.height = height;
+		bandRows = Math.max(1, Math.min(height, (scratch.length - 1) / 2 / Math.max(1, width)));
+		bands = new int[(height + bandRows - 1) / bandRows][];
+		bandLengths = new int[bands.length];
+
+		// Pixels are read into the front of the scratch buffer and encoded behind them. Encoding
+		// needs at most one int more than the input.
+		final int encodedOffset = width * bandRows;
+		int bytes = OBJECT_BYTES;
+		for (int b = 0; b < bands.length; b++) {
+			final int y = b * bandRows;
+			final int rows = Math.min(bandRows, height - y);
+			raster.getPixels(scratch, 0, width, left, top + y, width, rows);
+			final int length = PixelCodec.encode(scratch, 0, width * rows, scratch, encodedOffset);
+			bands[b] = new int[length];
+			bandLengths[b] = length;
+			System.arraycopy(scratch, encodedOffset, bands[b], 0, length);
+			bytes += length * 4 + 16;
+		}
+		byteSize = bytes;
+	}
+
+	private CompressedPixels(int left, int top, int width, int height, int bandRows, int[][] bands) {
+		this.left = left;
+		this.top = top;
+		this.width = width;
+		this.height = height;
+		this.bandRows = bandRows;
+		this.bands = bands;
+		bandLengths = new int[bands.length];
+		int bytes = OBJECT_BYTES;
+		for (int b = 0; b < bands.length; b++) {
+			bandLengths[b] = bands[b].length;
+			bytes += bands[b].length * 4 + 16;
+		}
+		byteSize = bytes;
+	}
+
+	/**
+	 * @return Size of the scratch buffer restore() needs.
+	 */
+	int scratchSize() {
+		return 2 * width * bandRows + 1;
+	}
+
+	/**
+	 * @return True if the rectangle lies within a Raster of the size.
+	 */
+	boolean isInside(int rasterWidth, int rasterHeight) {
+		return left >= 0 && top >= 0 && left <= rasterWidth - width && top <= rasterHeight - height;
+	}
+
+	/**
+	 * Write the encoded bands, reading back spilled ones.
+	 * 
+	 * @param out Stream to write to.
+	 * @param scratch Buffer at least as large as the one used for encoding.
+	 * @throws IOException If writing fails.
+	 */
+	void writeTo(DataOutputStream out, int[] scratch) throws IOException {
+		out.writeInt(left);
+		out.writeInt(top);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(bandRows);
+		out.writeInt(bands.length);
+		final int encodedOffset = width * bandRows;
+		for (int b = 0; b < bands.length; b++) {
+			int[] band = band(b, scratch, encodedOffset);
+			final int offset = band == scratch ? encodedOffset : 0;
+			out.writeInt(bandLengths[b]);
+			for (int i = 0; i < bandLengths[b]; i++) {
+				out.writeInt(band[offset + i]);
+			}
+		}
+	}
+
+	/**
+	 * Read pixels written by writeTo().
+	 * 
+	 * @param in Stream to read from.
+	 * @return Pixels kept on the heap.
+	 * @throws IOException If reading fails or the data is invalid.
+	 */
+	static CompressedPixels readFrom(DataInputStream in) throws IOException {
+		final int left = in.readInt();
+		final int top = in.readInt();
+		final int width = in.readInt();
+		final int height = in.readInt();
+		final int bandRows = in.readInt();
+		final int count = in.readInt();
+		if (width <= 0 || height <= 0 || bandRows <= 0 || (long) width * bandRows >= Integer.MAX_VALUE
+				|| count != (height + bandRows - 1) / bandRows) {
+			throw new IOException("Invalid pixel header");
+		}
+		// Arrays grow with the data read, damaged sizes must not allocate more than the stream holds.
+		int[][] bands = new int[Math.min(count, 64)][];
+		for (int b = 0; b < count; b++) {
+			final int length = in.readInt();
+			if (length < 0 || length > PixelCodec.maxEncodedLength(width * bandRows)) {
+				throw new IOException("Invalid band length " + length);
+			}
+			if (b == bands.length) {
+				int[][] grown = new int[Math.min(bands.length * 2, count)][];
+				System.arraycopy(bands, 0, grown, 0, b);
+				bands = grown;
+			}
+			int[] band = new int[Math.min(length, 4096)];
+			for (int i = 0; i < length; i++) {
+				if (i == band.length) {
+					int[] grown = new int[(int) Math.min(band.length * 2L, length)];
+					System.arraycopy(band, 0, grown, 0, i);
+					band = grown;
+				}
+				band[i] = in.readInt();
+			}
+			bands[b] = band;
+		}
+		return new CompressedPixels(left, top, width, height, bandRows, bands);
+	}
+
+	/**
+	 * Decode the pixels and write them back to the same position of the Raster.
+	 *
+	 * @param scratch Buffer at least as large as the one used for encoding.
+	 */
+	void restore(Raster raster, int[] scratch) {
+		final int encodedOffset = width * bandRows;
+		for (int b = 0; b < bands.length; b++) {
+			final int y = b * bandRows;
+			final int rows = Math.min(bandRows, height - y);
+			int[] band = band(b, scratch, encodedOffset);
+			PixelCodec.decode(band, band == scratch ? encodedOffset : 0, bandLengths[b], scratch, 0);
+			raster.setPixels(scratch, 0, width, left, top + y, width, rows);
+		}
+	}
+
+	/**
+	 * Encoded band, read back from the SpillFile if it was spilled. The journal writer calls this
+	 * while the history may spill the same band.
+	 * 
+	 * @return The band or scratch, which then holds the band at encodedOffset.
+	 */
+	private int[] band(int b, int[] scratch, int encodedOffset) {
+		long position;
+		SpillFile file;
+		synchronized (this) {
+			if (bands[b] != null) {
+				return bands[b];
+			}
+			position = bandPositions[b];
+			file = spillFile;
+		}
+		file.read(position, scratch, encodedOffset, bandLengths[b]);
+		return scratch;
+	}
+
+	/**
+	 * Move the encoded bands to the file. Bands that do not fit anymore stay on the heap.
+	 * 
+	 * @return Number of bytes freed on the heap.
+	 * @throws IOException If the file cannot be written.
+	 */
+	int spill(SpillFile file) throws IOException {
+		synchronized (this) {
+			if (spillFile != null && spillFile != file) {
+				return 0; // already spilled to a different file
+			}
+			if (bandPositions == null) {
+				bandPositions = new long[bands.length];
+			}
+			spillFile = file;
+		}
+		int freed = 0;
+		for (int b = 0; b < bands.length; b++) {
+			if (bands[b] != null) {
+				long position = file.append(bands[b], 0, bandLengths[b]);
+				if (position < 0) {
+					break;
+				}
+				synchronized (this) {
+					bandPositions[b] = position;
+					bands[b] = null;
+				}
+				freed += bandLengths[b] * 4;
+			}
+		}
+		byteSize -= freed;
+		return freed;
+	}
+
+	/**
+	 * Give the space of spilled bands back to the SpillFile once this copy is discarded.
+	 */
+	synchronized void freeSpilled() {
+		if (spillFile == null) {
+			return;
+		}
+		for (int b = 0; b < bands.length; b++) {
+			if (bands[b] == null) {
+				spillFile.free(bandPositions[b], bandLengths[b]);
+			}
+		}
+	}
+
+	/**
+	 * @return Approximate number of bytes this object occupies on the heap, spilled bands excluded.
+	 */
+	int byteSize() {
+		return byteSize;
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.commands;
+
+/**
+ * Run-length encoding for ARGB pixels. Drawings consist mostly of flat areas, so runs of equal
+ * pixels compress well while noisy areas grow by at most one int.
+ * <p>
+ * The encoded stream is a sequence of tokens: a positive count n is followed by one pixel that is
+ * repeated n times, a negative count -n is followed by n literal pixels.
+ */
+public final class PixelCodec {
+	private static final int MIN_RUN = 3; // shorter runs are cheaper as literals
+
+	private PixelCodec() {
+	}
+
+	/**
+	 * @param length Number of pixels to encode.
+	 * @return Size an output buffer for encode() must have at least.
+	 */
+	public static int maxEncodedLength(int length) {
+		return length + 1;
+	}
+
+	/**
+	 * Encode pixels into a buffer.
+	 *
+	 * @param src Pixels to encode.
+	 * @param offset First pixel in src.
+	 * @param length Number of pixels to encode.
+	 * @param dst Output buffer with room for at least maxEncodedLength(length) ints.
+	 * @param dstOffset Position in dst of the first token. Must not overlap the input.
+	 * @return Number of ints written to dst.
+	 */
+	public static int encode(int[] src, int offset, int length, int[] dst, int dstOffset) {
+		final int end = offset + length;
+		int out = dstOffset;
+		int literalStart = offset;
+		int i = offset;
+		while (i < end) {
+			final int pixel = src[i];
+			int run = 1;
+			while (i + run < end && src[i + run] == pixel) {
+				run++;
+			}
+			if (run >= MIN_RUN) {
+				out = flushLiterals(src, literalStart, i, dst, out);
+				dst[out++] = run;
+				dst[out++] = pixel;
+				i += run;
+				literalStart = i;
+			} else {
+				i += run;
+			}
+		}
+		return flushLiterals(src, literalStart, end, dst, out) - dstOffset;
+	}
+
+	private static int flushLiterals(int[] src, int from, int to, int[] dst, int out) {
+		if (to > from) {
+			dst[out++] = from - to;
+			System.arraycopy(src, from, dst, out, to - from);
+			out += to - from;
+		}
+		return out;
+	}
+
+	/**
+	 * Decode pixels that were encoded with encode().
+	 *
+	 * @param src Encoded tokens.
+	 * @param srcOffset Position in src of the first token.
+	 * @param srcLength Number of ints in src to decode.
+	 * @param dst Buffer for the decoded pixels. Must not overlap the tokens.
+	 * @param offset Position in dst of the first decoded pixel.
+	 * @return Number of decoded pixels.
+	 */
+	public static int decode(int[] src, int srcOffset, int srcLength, int[] dst, int offset) {
+		final int end = srcOffset + srcLength;
+		int out = offset;
+		int i = srcOffset;
+		while (i < end) {
+			final int count = src[i++];
+			if (count > 0) {
+				final int pixel = src[i++];
+				final int last = out + count;
+				while (out < last) {
+					dst[out++] = pixel;
+				}
+			} else {
+				System.arraycopy(src, i, dst, out, -count);
+				i -= count;
+				out -= count;
+			}
+		}
+		return out - offset;
+	}
+}
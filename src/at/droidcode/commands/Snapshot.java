@@ -0,0 +1,183 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.commands;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import at.droidcode.raster.Raster;
+
+/**
+ * Compressed copy of a whole Raster: its background color and the pixels of its content rects. For
+ * a sparse Raster only the tiles that were drawn on are stored.
+ */
+class Snapshot {
+	private static final int OBJECT_BYTES = 32; // rough overhead of this object and its array
+
+	private final int width;
+	private final int height;
+	private final int background;
+	private final CompressedPixels[] areas;
+
+	/**
+	 * Copy and encode the Raster. Content rects too wide for the scratch buffer are split.
+	 * 
+	 * @param raster Raster to copy.
+	 * @param scratch Buffer for CompressedPixels.
+	 */
+	Snapshot(Raster raster, int[] scratch) {
+		width = raster.getWidth();
+		height = raster.getHeight();
+		background = raster.getBackground();
+		final int[] rects = raster.getContentRects();
+		final int maxWidth = (scratch.length - 1) / 2;
+		int count = 0;
+		for (int i = 0; i < rects.length; i += 4) {
+			count += (rects[i + 2] + maxWidth - 1) / maxWidth;
+		}
+		areas = new CompressedPixels[count];
+		int a = 0;
+		for (int i = 0; i < rects.length; i += 4) {
+			for (int x = 0; x < rects[i + 2]; x += maxWidth) {
+				areas[a++] = new CompressedPixels(raster, rects[i] + x, rects[i + 1],
+						Math.min(maxWidth, rects[i + 2] - x), rects[i + 3], scratch);
+			}
+		}
+	}
+
+	private Snapshot(int width, int height, int background, CompressedPixels[] areas) {
+		this.width = width;
+		this.height = height;
+		this.background = background;
+		this.areas = areas;
+	}
+
+	int width() {
+		return width;
+	}
+
+	int height() {
+		return height;
+	}
+
+	/**
+	 * @return Size of the scratch buffer restore() needs.
+	 */
+	int scratchSize() {
+		int size = 1;
+		for (int i = 0; i < areas.length; i++) {
+			size = Math.max(size, areas[i].scratchSize());
+		}
+		return size;
+	}
+
+	/**
+	 * Replace every pixel of the Raster with the copy.
+	 * 
+	 * @param raster Raster of the same size.
+	 * @param scratch Buffer at least as large as the one used for encoding.
+	 */
+	void restore(Raster raster, int[] scratch) {
+		raster.eraseColor(background);
+		for (int i = 0; i < areas.length; i++) {
+			areas[i].restore(raster, scratch);
+		}
+	}
+
+	/**
+	 * @return Approximate number of bytes this object occupies on the heap, spilled bands excluded.
+	 */
+	int byteSize() {
+		int bytes = OBJECT_BYTES + areas.length * 4;
+		for (int i = 0; i < areas.length; i++) {
+			bytes += areas[i].byteSize();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Move the encoded pixels to the file.
+	 * 
+	 * @return Number of bytes freed on the heap.
+	 * @throws IOException If the file cannot be written.
+	 */
+	int spill(SpillFile file) throws IOException {
+		int freed = 0;
+		for (int i = 0; i < areas.length; i++) {
+			freed += areas[i].spill(file);
+		}
+		return freed;
+	}
+
+	/**
+	 * Give the space of spilled areas back to the file once this copy is discarded.
+	 */
+	void freeSpilled() {
+		for (int i = 0; i < areas.length; i++) {
+			areas[i].freeSpilled();
+		}
+	}
+
+	/**
+	 * Write the size, background and areas, reading back spilled bands.
+	 * 
+	 * @param out Stream to write to.
+	 * @param scratch Buffer at least as large as the one used for encoding.
+	 * @throws IOException If writing fails.
+	 */
+	void writeTo(DataOutputStream out, int[] scratch) throws IOException {
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeInt(background);
+		out.writeInt(areas.length);
+		for (int i = 0; i < areas.length; i++) {
+			areas[i].writeTo(out, scratch);
+		}
+	}
+
+	/**
+	 * Read a Snapshot written by writeTo().
+	 * 
+	 * @param in Stream to read from.
+	 * @return Snapshot kept on the heap.
+	 * @throws IOException If reading fails or the data is invalid.
+	 */
+	static Snapshot readFrom(DataInputStream in) throws IOException {
+		final int width = in.readInt();
+		final int height = in.readInt();
+		final int background = in.readInt();
+		final int count = in.readInt();
+		if (width <= 0 || height <= 0 || count < 0) {
+			throw new IOException("Invalid snapshot header");
+		}
+		// Grow with the data read, a damaged count must not allocate more than the stream holds.
+		CompressedPixels[] areas = new CompressedPixels[Math.min(count, 64)];
+		for (int i = 0; i < count; i++) {
+			if (i == areas.length) {
+				CompressedPixels[] grown = new CompressedPixels[(int) Math.min(areas.length * 2L, count)];
+				System.arraycopy(areas, 0, grown, 0, i);
+				areas = grown;
+			}
+			areas[i] = CompressedPixels.readFrom(in);
+			if (!areas[i].isInside(width, height)) {
+				throw new IOException("Area outside of the snapshot");
+			}
+		}
+		return new Snapshot(width, height, background, areas);
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.commands;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Scratch file for history data that does not need to stay on the heap. The file is memory-mapped in
+ * fixed-size segments, an entry never spans two segments. Space of discarded entries is reused
+ * before the file grows. The journal writer reads from it while the history appends, so access is
+ * synchronized.
+ */
+public class SpillFile {
+	private static final int SEGMENT_BYTES = 4 * 1024 * 1024;
+	private static final int SEGMENT_INTS = SEGMENT_BYTES / 4;
+
+	private final File file;
+	private final long maxBytes;
+	private final RandomAccessFile randomAccessFile;
+	private final FileChannel channel;
+	private final ArrayList<IntBuffer> segments;
+	private final TreeMap<Long, Long> free; // start to end of unused ranges, in ints
+	private final ArrayList<long[]> deferred; // position and length, freed while held
+	private long size; // in ints
+	private long freeInts;
+	private int holds;
+
+	/**
+	 * Create or truncate the scratch file.
+	 * 
+	 * @param file File in app-private storage.
+	 * @param maxBytes Size the file must not grow beyond.
+	 * @throws IOException If the file cannot be opened.
+	 */
+	public SpillFile(File file, long maxBytes) throws IOException {
+		this.file = file;
+		this.maxBytes = maxBytes;
+		randomAccessFile = new RandomAccessFile(file, "rw");
+		randomAccessFile.setLength(0);
+		channel = randomAccessFile.getChannel();
+		segments = new ArrayList<IntBuffer>();
+		free = new TreeMap<Long, Long>();
+		deferred = new ArrayList<long[]>();
+	}
+
+	/**
+	 * Write ints to the first unused range they fit into, or to the end of the file.
+	 * 
+	 * @return Position of the data or -1 if it does not fit into the file anymore.
+	 * @throws IOException If a new segment cannot be mapped.
+	 */
+	synchronized long append(int[] data, int offset, int length) throws IOException {
+		if (length > SEGMENT_INTS) {
+			return -1;
+		}
+		long position = takeFree(length);
+		if (position < 0) {
+			position = segmentStart(size, length);
+			final int segment = (int) (position / SEGMENT_INTS);
+			if (segment == segments.size()) {
+				if ((long) (segment + 1) * SEGMENT_BYTES > maxBytes) {
+					return -1;
+				}
+				long start = (long) segment * SEGMENT_BYTES;
+				segments.add(channel.map(MapMode.READ_WRITE, start, SEGMENT_BYTES).asIntBuffer());
+			}
+			final long end = size;
+			size = position + length;
+			if (position > end) {
+				addFree(end, position); // rest of the previous segment
+			}
+		}
+		IntBuffer buffer = segments.get((int) (position / SEGMENT_INTS));
+		buffer.position((int) (position % SEGMENT_INTS));
+		buffer.put(data, offset, length);
+		return position;
+	}
+
+	/**
+	 * Mark ints as unused so append() can reuse them. While the file is held the range stays
+	 * readable until the last release().
+	 * 
+	 * @param position Position returned by append().
+	 * @param length Number of ints appended there.
+	 */
+	synchronized void free(long position, int length) {
+		if (holds > 0) {
+			deferred.add(new long[] { position, length });
+		} else {
+			addFree(position, position + length);
+		}
+	}
+
+	/**
+	 * Keep freed ranges readable, for example while a journal checkpoint reads spilled pixels on
+	 * another thread. Every call must be followed by release().
+	 */
+	synchronized void hold() {
+		holds++;
+	}
+
+	/**
+	 * End a hold(). The last one makes the ranges freed meanwhile available to append().
+	 */
+	synchronized void release() {
+		if (--holds == 0) {
+			for (int i = 0; i < deferred.size(); i++) {
+				long[] range = deferred.get(i);
+				addFree(range[0], range[0] + range[1]);
+			}
+			deferred.clear();
+		}
+	}
+
+	/**
+	 * @return Position length ints can start at without spanning two segments.
+	 */
+	private static long segmentStart(long position, int length) {
+		if (position % SEGMENT_INTS + length > SEGMENT_INTS) {
+			return position + SEGMENT_INTS - position % SEGMENT_INTS;
+		}
+		return position;
+	}
+
+	/**
+	 * Remove length ints from the first unused range they fit into.
+	 * 
+	 * @return Position of the ints or -1 if no range is large enough.
+	 */
+	private long takeFree(int length) {
+		Iterator<Map.Entry<Long, Long>> it = free.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Long, Long> range = it.next();
+			final long start = range.getKey();
+			final long end = range.getValue();
+			final long position = segmentStart(start, length);
+			if (position + length <= end) {
+				it.remove();
+				freeInts -= end - start;
+				if (position > start) {
+					addFree(start, position);
+				}
+				if (position + length < end) {
+					addFree(position + length, end);
+				}
+				return position;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Add an unused range, merged with its neighbours. A range at the end shrinks the file instead.
+	 */
+	private void addFree(long start, long end) {
+		SortedMap<Long, Long> head = free.headMap(start);
+		if (!head.isEmpty() && free.get(head.lastKey()) == start) {
+			final long before = head.lastKey();
+			free.remove(before);
+			freeInts -= start - before;
+			start = before;
+		}
+		Long after = free.get(end);
+		if (after != null) {
+			free.remove(end);
+			freeInts -= after - end;
+			end = after;
+		}
+		if (end >= size) {
+			size = start;
+		} else {
+			free.put(start, end);
+			freeInts += end - start;
+		}
+	}
+
+	/**
+	 * Read back ints that were appended before.
+	 * 
+	 * @param position Position returned by append().
+	 */
+	synchronized void read(long position, int[] dst, int offset, int length) {
+		IntBuffer buffer = segments.get((int) (position / SEGMENT_INTS));
+		buffer.position((int) (position % SEGMENT_INTS));
+		buffer.get(dst, offset, length);
+	}
+
+	/**
+	 * Discard all data. Positions returned earlier become invalid.
+	 */
+	synchronized void clear() {
+		segments.clear();
+		free.clear();
+		deferred.clear();
+		size = 0;
+		freeInts = 0;
+	}
+
+	/**
+	 * @return Number of bytes in use.
+	 */
+	public synchronized long byteSize() {
+		return (size - freeInts) * 4;
+	}
+
+	/**
+	 * Close and delete the file.
+	 */
+	public synchronized void delete() {
+		clear();
+		try {
+			channel.close();
+			randomAccessFile.close();
+		} catch (IOException e) {
+			// nothing left to do, the file is deleted anyway
+		}
+		file.delete();
+	}
+}
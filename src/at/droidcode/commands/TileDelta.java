@@ -0,0 +1,258 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.commands;
+
+import java.io.IOException;
+
+import at.droidcode.raster.Raster;
+
+/**
+ * Pixels of the fixed-size tiles a command touched, taken before and after it was drawn. Undo and
+ * redo copy these tiles back instead of replaying commands. Tiles are stored compressed. Commands
+ * covering the whole Raster keep Snapshots instead, which only hold the content of sparse Rasters.
+ */
+class TileDelta {
+	static final int TILE_SIZE = 64;
+
+	private final int[] tileRects; // x, y, width, height per tile
+	private final CompressedPixels[] before;
+	private final CompressedPixels[] after;
+	private final Snapshot wholeBefore; // only set if the bounds cover the whole Raster
+	private Snapshot wholeAfter;
+
+	/**
+	 * Snapshot the tiles of the Raster that intersect the bounds.
+	 *
+	 * @param raster Raster the command is about to be drawn on.
+	 * @param bounds Area the command will touch as left, top, right, bottom in Raster coordinates.
+	 * @param scratch Buffer for CompressedPixels, large enough for two tile rows.
+	 */
+	TileDelta(Raster raster, int[] bounds, int[] scratch) {
+		final int width = raster.getWidth();
+		final int height = raster.getHeight();
+		if (bounds[0] <= 0 && bounds[1] <= 0 && bounds[2] >= width && bounds[3] >= height) {
+			tileRects = new int[0];
+			before = new CompressedPixels[0];
+			after = new CompressedPixels[0];
+			wholeBefore = new Snapshot(raster, scratch);
+			return;
+		}
+		wholeBefore = null;
+		final int left = Math.max(0, bounds[0]) / TILE_SIZE;
+		final int top = Math.max(0, bounds[1]) / TILE_SIZE;
+		final int right = (Math.min(width, bounds[2]) + TILE_SIZE - 1) / TILE_SIZE;
+		final int bottom = (Math.min(height, bounds[3]) + TILE_SIZE - 1) / TILE_SIZE;
+		final int count = Math.max(0, right - left) * Math.max(0, bottom - top);
+
+		tileRects = new int[count * 4];
+		before = new CompressedPixels[count];
+		after = new CompressedPixels[count];
+
+		int i = 0;
+		for (int ty = top; ty < bottom; ty++) {
+			for (int tx = left; tx < right; tx++) {
+				int x = tx * TILE_SIZE;
+				int y = ty * TILE_SIZE;
+				tileRects[i * 4] = x;
+				tileRects[i * 4 + 1] = y;
+				tileRects[i * 4 + 2] = Math.min(TILE_SIZE, width - x);
+				tileRects[i * 4 + 3] = Math.min(TILE_SIZE, height - y);
+				before[i] = copyTile(raster, i, scratch);
+				i++;
+			}
+		}
+	}
+
+	private TileDelta(int[] tileRects, CompressedPixels[] before, CompressedPixels[] after) {
+		this.tileRects = tileRects;
+		this.before = before;
+		this.after = after;
+		wholeBefore = null;
+	}
+
+	/**
+	 * Combine the deltas of two consecutive commands into one that spans both.
+	 * 
+	 * @param older Delta of the first command.
+	 * @param newer Delta of the command drawn right after it.
+	 * @return Delta with the older before-state and the newer after-state of every tile, or null if
+	 *         either covers the whole Raster. Spilled pixels the result does not use are freed, but
+	 *         only if a delta is returned.
+	 */
+	static TileDelta merge(TileDelta older, TileDelta newer) {
+		if (older.wholeBefore != null || newer.wholeBefore != null) {
+			return null;
+		}
+		final int olderCount = older.before.length;
+		int count = olderCount;
+		int[] newerIndex = new int[olderCount]; // tile of newer at the same position, or -1
+		boolean[] shared = new boolean[newer.before.length];
+		for (int i = 0; i < olderCount; i++) {
+			newerIndex[i] = newer.indexOf(older.tileRects[i * 4], older.tileRects[i * 4 + 1]);
+			if (newerIndex[i] >= 0) {
+				shared[newerIndex[i]] = true;
+			}
+		}
+		for (int j = 0; j < shared.length; j++) {
+			if (!shared[j]) {
+				count++;
+			}
+		}
+
+		int[] rects = new int[count * 4];
+		CompressedPixels[] before = new CompressedPixels[count];
+		CompressedPixels[] after = new CompressedPixels[count];
+		System.arraycopy(older.tileRects, 0, rects, 0, olderCount * 4);
+		System.arraycopy(older.before, 0, before, 0, olderCount);
+		for (int i = 0; i < olderCount; i++) {
+			if (newerIndex[i] >= 0) {
+				// The state between both commands is dropped, free it if it was spilled.
+				if (older.after[i] != null) {
+					older.after[i].freeSpilled();
+				}
+				newer.before[newerIndex[i]].freeSpilled();
+				after[i] = newer.after[newerIndex[i]];
+			} else {
+				after[i] = older.after[i];
+			}
+		}
+		int i = olderCount;
+		for (int j = 0; j < shared.length; j++) {
+			if (!shared[j]) {
+				System.arraycopy(newer.tileRects, j * 4, rects, i * 4, 4);
+				before[i] = newer.before[j];
+				after[i] = newer.after[j];
+				i++;
+			}
+		}
+		return new TileDelta(rects, before, after);
+	}
+
+	private int indexOf(int x, int y) {
+		for (int i = 0; i < before.length; i++) {
+			if (tileRects[i * 4] == x && tileRects[i * 4 + 1] == y) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Snapshot the same tiles again after the command was drawn.
+	 */
+	void captureAfter(Raster raster, int[] scratch) {
+		if (wholeBefore != null) {
+			wholeAfter = new Snapshot(raster, scratch);
+			return;
+		}
+		for (int i = 0; i < after.length; i++) {
+			after[i] = copyTile(raster, i, scratch);
+		}
+	}
+
+	/**
+	 * Restore the tiles to their state before the command.
+	 */
+	void undo(Raster raster, int[] scratch) {
+		if (wholeBefore != null) {
+			wholeBefore.restore(raster, scratch);
+			return;
+		}
+		for (int i = 0; i < before.length; i++) {
+			before[i].restore(raster, scratch);
+		}
+	}
+
+	/**
+	 * Restore the tiles to their state after the command.
+	 */
+	void redo(Raster raster, int[] scratch) {
+		if (wholeBefore != null) {
+			wholeAfter.restore(raster, scratch);
+			return;
+		}
+		for (int i = 0; i < after.length; i++) {
+			after[i].restore(raster, scratch);
+		}
+	}
+
+	/**
+	 * @return Approximate number of bytes the compressed tiles occupy.
+	 */
+	int byteSize() {
+		int bytes = tileRects.length * 4;
+		if (wholeBefore != null) {
+			bytes += wholeBefore.byteSize();
+			if (wholeAfter != null) {
+				bytes += wholeAfter.byteSize();
+			}
+		}
+		for (int i = 0; i < before.length; i++) {
+			bytes += before[i].byteSize();
+			if (after[i] != null) {
+				bytes += after[i].byteSize();
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * Move the compressed tiles to the file.
+	 * 
+	 * @return Number of bytes freed on the heap.
+	 * @throws IOException If the file cannot be written.
+	 */
+	int spill(SpillFile file) throws IOException {
+		int freed = 0;
+		if (wholeBefore != null) {
+			freed += wholeBefore.spill(file);
+			if (wholeAfter != null) {
+				freed += wholeAfter.spill(file);
+			}
+		}
+		for (int i = 0; i < before.length; i++) {
+			freed += before[i].spill(file);
+			if (after[i] != null) {
+				freed += after[i].spill(file);
+			}
+		}
+		return freed;
+	}
+
+	/**
+	 * Give the space of spilled tiles back to the file once the command is discarded.
+	 */
+	void freeSpilled() {
+		if (wholeBefore != null) {
+			wholeBefore.freeSpilled();
+			if (wholeAfter != null) {
+				wholeAfter.freeSpilled();
+			}
+		}
+		for (int i = 0; i < before.length; i++) {
+			before[i].freeSpilled();
+			if (after[i] != null) {
+				after[i].freeSpilled();
+			}
+		}
+	}
+
+	private CompressedPixels copyTile(Raster raster, int i, int[] scratch) {
+		return new CompressedPixels(raster, tileRects[i * 4], tileRects[i * 4 + 1], tileRects[i * 4 + 2],
+				tileRects[i * 4 + 3], scratch);
+	}
+}
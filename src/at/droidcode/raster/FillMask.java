@@ -0,0 +1,219 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Pixels a flood fill covers: spans of whole pixels and, for anti-aliased fills, single pixels
+ * along the edge that are covered partially. Drawing the mask repeats the fill without searching
+ * again, so it is all a command needs to keep.
+ */
+public final class FillMask {
+	private final int[] spans; // y, left, right (exclusive) per span, by row and from left to right
+	private final int[] edges; // x, y, coverage per edge pixel, by row and from left to right
+	private final int[] bounds; // left, top, right, bottom of all pixels
+
+	/**
+	 * @param spans y, left, right (exclusive) per span, sorted by row and x.
+	 * @param edges x, y, coverage in [1..254] per pixel, sorted by row and x.
+	 */
+	FillMask(int[] spans, int[] edges) {
+		this.spans = spans;
+		this.edges = edges;
+		bounds = new int[] { Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE };
+		for (int i = 0; i < spans.length; i += 3) {
+			include(spans[i + 1], spans[i], spans[i + 2], spans[i] + 1);
+		}
+		for (int i = 0; i < edges.length; i += 3) {
+			include(edges[i], edges[i + 1], edges[i] + 1, edges[i + 1] + 1);
+		}
+	}
+
+	private void include(int left, int top, int right, int bottom) {
+		bounds[0] = Math.min(bounds[0], left);
+		bounds[1] = Math.min(bounds[1], top);
+		bounds[2] = Math.max(bounds[2], right);
+		bounds[3] = Math.max(bounds[3], bottom);
+	}
+
+	/**
+	 * @return Number of spans of whole pixels.
+	 */
+	public int spanCount() {
+		return spans.length / 3;
+	}
+
+	/**
+	 * @return Number of partially covered pixels.
+	 */
+	public int edgeCount() {
+		return edges.length / 3;
+	}
+
+	/**
+	 * @param out Array to store left, top, right and bottom in, all of them 0 for an empty mask.
+	 */
+	public void getBounds(int[] out) {
+		if (spans.length == 0 && edges.length == 0) {
+			out[0] = out[1] = out[2] = out[3] = 0;
+			return;
+		}
+		System.arraycopy(bounds, 0, out, 0, 4);
+	}
+
+	/**
+	 * @return Number of bytes the mask occupies.
+	 */
+	public int byteSize() {
+		return 48 + (spans.length + edges.length) * 4;
+	}
+
+	/**
+	 * Draw the paint over the pixels of the mask, or erase them if it is an eraser. Rows are read and
+	 * written once, parts outside of the Raster are skipped.
+	 * 
+	 * @param raster Raster to draw on.
+	 * @param paint Paint of the fill, only its color and whether it erases matter.
+	 */
+	public void draw(Raster raster, PaintDescriptor paint) {
+		if (spans.length == 0 && edges.length == 0) {
+			return;
+		}
+		final int color = paint.color();
+		final boolean eraser = paint.isEraser();
+		// Full coverage of an opaque color or the eraser replaces the pixels.
+		final boolean solid = eraser || color >>> 24 == 0xFF;
+		final int solidColor = eraser ? 0 : color;
+		final int width = raster.getWidth();
+		final int height = raster.getHeight();
+		int[] row = new int[Math.max(1, Math.min(width, bounds[2]) - Math.max(0, bounds[0]))];
+		int s = 0;
+		int e = 0;
+		while (s < spans.length || e < edges.length) {
+			final int y = Math.min(s < spans.length ? spans[s] : Integer.MAX_VALUE,
+					e < edges.length ? edges[e + 1] : Integer.MAX_VALUE);
+			int spanEnd = s;
+			int edgeEnd = e;
+			int left = Integer.MAX_VALUE;
+			int right = Integer.MIN_VALUE;
+			for (; spanEnd < spans.length && spans[spanEnd] == y; spanEnd += 3) {
+				left = Math.min(left, spans[spanEnd + 1]);
+				right = Math.max(right, spans[spanEnd + 2]);
+			}
+			for (; edgeEnd < edges.length && edges[edgeEnd + 1] == y; edgeEnd += 3) {
+				left = Math.min(left, edges[edgeEnd]);
+				right = Math.max(right, edges[edgeEnd] + 1);
+			}
+			left = Math.max(0, left);
+			right = Math.min(width, right);
+			if (y >= 0 && y < height && left < right) {
+				// A single span without edge pixels covers the whole row, nothing needs to be read.
+				if (!solid || spanEnd - s != 3 || edgeEnd != e) {
+					raster.getPixels(row, 0, row.length, left, y, right - left, 1);
+				}
+				for (; s < spanEnd; s += 3) {
+					final int end = Math.min(right, spans[s + 2]) - left;
+					final int start = Math.max(left, spans[s + 1]) - left;
+					if (solid) {
+						Arrays.fill(row, start, Math.max(start, end), solidColor);
+						continue;
+					}
+					for (int i = start; i < end; i++) {
+						row[i] = IntRaster.blend(row[i], color, 0xFF);
+					}
+				}
+				for (; e < edgeEnd; e += 3) {
+					final int i = edges[e] - left;
+					if (i >= 0 && i < right - left) {
+						row[i] = eraser ? IntRaster.erase(row[i], edges[e + 2])
+								: IntRaster.blend(row[i], color, edges[e + 2]);
+					}
+				}
+				raster.setPixels(row, 0, row.length, left, y, right - left, 1);
+			}
+			s = spanEnd;
+			e = edgeEnd;
+		}
+	}
+
+	/**
+	 * @param out Stream to write the spans and edge pixels to.
+	 * @throws IOException If writing fails.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(spans.length / 3);
+		for (int i = 0; i < spans.length; i++) {
+			out.writeInt(spans[i]);
+		}
+		out.writeInt(edges.length / 3);
+		for (int i = 0; i < edges.length; i++) {
+			out.writeInt(edges[i]);
+		}
+	}
+
+	/**
+	 * Read a mask written by writeTo().
+	 * 
+	 * @param in Stream to read from.
+	 * @return New FillMask.
+	 * @throws IOException If reading fails or the data is invalid.
+	 */
+	public static FillMask readFrom(DataInputStream in) throws IOException {
+		final int spanCount = in.readInt();
+		if (spanCount < 0 || spanCount > Integer.MAX_VALUE / 3) {
+			throw new IOException("Invalid span count " + spanCount);
+		}
+		int[] spans = readInts(in, spanCount * 3);
+		for (int i = 0; i < spans.length; i += 3) {
+			if (spans[i + 2] <= spans[i + 1] || i > 0 && spans[i] < spans[i - 3]) {
+				throw new IOException("Invalid span");
+			}
+		}
+		final int edgeCount = in.readInt();
+		if (edgeCount < 0 || edgeCount > Integer.MAX_VALUE / 3) {
+			throw new IOException("Invalid edge count " + edgeCount);
+		}
+		int[] edges = readInts(in, edgeCount * 3);
+		for (int i = 0; i < edges.length; i += 3) {
+			if (edges[i + 2] <= 0 || edges[i + 2] >= 0xFF || i > 0 && edges[i + 1] < edges[i - 2]) {
+				throw new IOException("Invalid edge pixel");
+			}
+		}
+		return new FillMask(spans, edges);
+	}
+
+	/**
+	 * Read ints into an array that grows with the data, so that a damaged count fails at the end of
+	 * the stream instead of allocating more than it holds.
+	 */
+	private static int[] readInts(DataInputStream in, int count) throws IOException {
+		int[] values = new int[Math.min(count, 3 * 1024)];
+		for (int i = 0; i < count; i++) {
+			if (i == values.length) {
+				int[] grown = new int[(int) Math.min(values.length * 2L, count)];
+				System.arraycopy(values, 0, grown, 0, i);
+				values = grown;
+			}
+			values[i] = in.readInt();
+		}
+		return values;
+	}
+}
@@ -0,0 +1,539 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+import java.util.ArrayList;
+
+/**
+ * Bucket fill that grows a region of similar color from a seed pixel. The area the fill may reach is
+ * split into tiles that are only read from the Raster once the region gets there. A tile keeps a bit
+ * per pixel for whether its color matches and one for whether it is filled, and the color distance
+ * of each pixel if edges are anti-aliased, so a fill takes a fraction of the memory of the pixels it
+ * reaches. Nothing is kept between fills.
+ * <p>
+ * The region is searched a scanline at a time: each span is extended left and right as far as the
+ * color matches, and the rows above and below are searched for new spans. The search goes in rounds,
+ * a tile only extends spans within its own bounds and hands the rows where the region may continue
+ * to its neighbours, which search from there in the next round, until no tile has anything left.
+ * Large areas search the tiles of a round in parallel. The region is the set of matching pixels
+ * connected to the seed no matter in which order it is grown, so the result is the same as searching
+ * on a single thread.
+ */
+public final class FloodFill {
+	/**
+	 * Color distance beyond the tolerance over which the coverage of anti-aliased edge pixels falls
+	 * to zero.
+	 */
+	public static final int EDGE_SOFTNESS = 96;
+
+	private static final int TILE_SHIFT = 8;
+	private static final int TILE_SIZE = 1 << TILE_SHIFT;
+	private static final int TILE_MASK = TILE_SIZE - 1;
+	private static final int TILE_PIXELS = TILE_SIZE * TILE_SIZE;
+	private static final int ROW_WORDS = TILE_SIZE / 32; // words of a bit set per tile row
+	private static final int PARALLEL_MIN_PIXELS = 1024 * 1024; // smaller areas stay on the calling thread
+
+	private boolean parallel = true;
+	private long maxBytes = Long.MAX_VALUE;
+
+	// State of the fill in progress, dropped when it returns.
+	private Raster raster;
+	private int left;
+	private int top;
+	private int width;
+	private int height;
+	private int tilesX;
+	private Tile[] tiles; // null until the region reaches them
+	private int loadedTiles;
+	private int maxTiles;
+	private int seed;
+	private int tolerance;
+	private boolean antiAlias;
+	private final ArrayList<int[]> pixelBuffers = new ArrayList<int[]>();
+
+	/**
+	 * Part of the area. Coordinates are relative to the area unless they are tile coordinates.
+	 */
+	private static final class Tile {
+		final int x0;
+		final int y0;
+		final int width;
+		final int height;
+		int[] pixels; // read from the Raster, until search() converts them
+		int[] match; // one bit per pixel whose color is within the tolerance
+		int[] filled;
+		byte[] distance; // color distance per pixel, only if anti-aliased
+		int[] stack = new int[64]; // pixels left to search, in tile coordinates
+		int stackSize;
+		int[] inbox = new int[0]; // row, first and last column of spans to search, in tile coordinates
+		int inboxSize;
+		int[] sent = new int[0]; // row, first and last column where the region may continue
+		int sentSize;
+		boolean queued;
+		int minX = Integer.MAX_VALUE; // bounding box of the filled pixels
+		int minY = Integer.MAX_VALUE;
+		int maxX = -1;
+		int maxY = -1;
+
+		Tile(int x0, int y0, int width, int height) {
+			this.x0 = x0;
+			this.y0 = y0;
+			this.width = width;
+			this.height = height;
+		}
+
+		void push(int index) {
+			if (stackSize == stack.length) {
+				int[] grown = new int[stack.length * 2];
+				System.arraycopy(stack, 0, grown, 0, stackSize);
+				stack = grown;
+			}
+			stack[stackSize++] = index;
+		}
+
+		void receive(int y, int first, int last) {
+			inbox = append(inbox, inboxSize, y, first, last);
+			inboxSize += 3;
+		}
+
+		void send(int y, int first, int last) {
+			sent = append(sent, sentSize, y, first, last);
+			sentSize += 3;
+		}
+
+		private static int[] append(int[] array, int length, int a, int b, int c) {
+			if (length + 3 > array.length) {
+				int[] grown = new int[Math.max(48, array.length * 2)];
+				System.arraycopy(array, 0, grown, 0, length);
+				array = grown;
+			}
+			array[length] = a;
+			array[length + 1] = b;
+			array[length + 2] = c;
+			return array;
+		}
+
+		boolean isAvailable(int index) {
+			return ((match[index >>> 5] & ~filled[index >>> 5]) >>> (index & 31) & 1) != 0;
+		}
+	}
+
+	/**
+	 * Large areas are searched on all processors by default. The region is the same either way.
+	 * 
+	 * @param enabled False to search on the calling thread only.
+	 */
+	public void setParallel(boolean enabled) {
+		parallel = enabled;
+	}
+
+	/**
+	 * Limit the memory a fill may use. Tiles that would exceed it are not read, the region ends
+	 * before them.
+	 * 
+	 * @param bytes Largest number of bytes, Long.MAX_VALUE for no limit.
+	 */
+	public void setMaxBytes(long bytes) {
+		maxBytes = bytes;
+	}
+
+	/**
+	 * Fill the region of pixels connected to the seed whose color is within the tolerance of the
+	 * seed color. The Raster is not changed, draw the returned mask with FillMask.draw().
+	 * 
+	 * @param raster Raster to read the colors from.
+	 * @param left Left edge of the area the fill may reach.
+	 * @param top Top edge of the area.
+	 * @param right Right edge of the area, exclusive.
+	 * @param bottom Bottom edge of the area, exclusive.
+	 * @param x X coordinate of the seed pixel.
+	 * @param y Y coordinate of the seed pixel.
+	 * @param tolerance Largest difference of any channel, unpremultiplied, in [0..255].
+	 * @param antiAlias True to partially cover pixels next to the region whose color is close to the
+	 *            tolerance.
+	 * @return The filled pixels in Raster coordinates or null if the seed lies outside of the area.
+	 */
+	public FillMask fill(Raster raster, int left, int top, int right, int bottom, int x, int y, int tolerance,
+			boolean antiAlias) {
+		left = Math.max(0, left);
+		top = Math.max(0, top);
+		right = Math.min(raster.getWidth(), right);
+		bottom = Math.min(raster.getHeight(), bottom);
+		if (x < left || y < top || x >= right || y >= bottom) {
+			return null;
+		}
+		this.raster = raster;
+		this.left = left;
+		this.top = top;
+		this.tolerance = tolerance;
+		this.antiAlias = antiAlias;
+		width = right - left;
+		height = bottom - top;
+		tilesX = (width + TILE_SIZE - 1) >> TILE_SHIFT;
+		tiles = new Tile[tilesX * ((height + TILE_SIZE - 1) >> TILE_SHIFT)];
+		loadedTiles = 0;
+		final long tileBytes = TILE_PIXELS / 4 + (antiAlias ? TILE_PIXELS : 0);
+		maxTiles = (int) Math.max(1, Math.min(Integer.MAX_VALUE, maxBytes / tileBytes));
+		final int[] seedPixel = new int[1];
+		raster.getPixels(seedPixel, 0, 1, x, y, 1, 1);
+		seed = seedPixel[0];
+		try {
+			final boolean large = width * height >= PARALLEL_MIN_PIXELS;
+			final TileWorkers workers = parallel && large ? TileWorkers.shared() : null;
+			search(workers, x - left, y - top);
+			return collect();
+		} finally {
+			this.raster = null;
+			tiles = null;
+			pixelBuffers.clear();
+		}
+	}
+
+	/**
+	 * Search the tiles that have spans left in rounds, passing the spans sent to neighbours on
+	 * between rounds, until every tile is done.
+	 */
+	private void search(TileWorkers workers, int seedX, int seedY) {
+		ArrayList<Tile> active = new ArrayList<Tile>();
+		deliver(active, seedY, seedX, seedX);
+		while (!active.isEmpty()) {
+			final Tile[] round = active.toArray(new Tile[active.size()]);
+			active.clear();
+			if (workers != null) {
+				workers.forEach(round.length, new TileWorkers.TileTask() {
+					@Override
+					public void run(int i) {
+						search(round[i]);
+					}
+				});
+			} else {
+				for (int i = 0; i < round.length; i++) {
+					search(round[i]);
+				}
+			}
+			for (int i = 0; i < round.length; i++) {
+				round[i].queued = false;
+			}
+			for (int i = 0; i < round.length; i++) {
+				final Tile from = round[i];
+				if (from.pixels != null) {
+					pixelBuffers.add(from.pixels);
+					from.pixels = null;
+				}
+				for (int j = 0; j < from.sentSize; j += 3) {
+					deliver(active, from.sent[j], from.sent[j + 1], from.sent[j + 2]);
+				}
+				from.sentSize = 0;
+			}
+		}
+	}
+
+	/**
+	 * Hand a span of a row to the tile it lies in, reading the tile first if the region did not get
+	 * there before.
+	 */
+	private void deliver(ArrayList<Tile> active, int y, int first, int last) {
+		final int index = (y >> TILE_SHIFT) * tilesX + (first >> TILE_SHIFT);
+		Tile tile = tiles[index];
+		if (tile == null) {
+			if (loadedTiles == maxTiles) {
+				return;
+			}
+			tile = load(first & ~TILE_MASK, y & ~TILE_MASK);
+			tiles[index] = tile;
+			loadedTiles++;
+		}
+		tile.receive(y - tile.y0, first - tile.x0, last - tile.x0);
+		if (!tile.queued) {
+			tile.queued = true;
+			active.add(tile);
+		}
+	}
+
+	private Tile load(int x0, int y0) {
+		Tile tile = new Tile(x0, y0, Math.min(TILE_SIZE, width - x0), Math.min(TILE_SIZE, height - y0));
+		final int buffers = pixelBuffers.size();
+		tile.pixels = buffers == 0 ? new int[TILE_PIXELS] : pixelBuffers.remove(buffers - 1);
+		raster.getPixels(tile.pixels, 0, TILE_SIZE, left + x0, top + y0, tile.width, tile.height);
+		return tile;
+	}
+
+	/**
+	 * Compare the pixels read from the Raster to the seed.
+	 */
+	private void convert(Tile tile) {
+		tile.match = new int[TILE_PIXELS >>> 5];
+		tile.filled = new int[TILE_PIXELS >>> 5];
+		if (antiAlias) {
+			tile.distance = new byte[TILE_PIXELS];
+		}
+		for (int y = 0; y < tile.height; y++) {
+			final int rowStart = y << TILE_SHIFT;
+			for (int x = 0; x < tile.width; x++) {
+				final int i = rowStart + x;
+				final int color = tile.pixels[i];
+				final int d = color == seed ? 0 : distance(color, seed);
+				if (d <= tolerance) {
+					tile.match[i >>> 5] |= 1 << (i & 31);
+				}
+				if (tile.distance != null) {
+					tile.distance[i] = (byte) d;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Grow the region from the spans the tile received. Spans end at the bounds of the tile, where
+	 * the region may continue the row beyond is sent to the neighbour.
+	 */
+	private void search(Tile tile) {
+		if (tile.match == null) {
+			convert(tile);
+		}
+		for (int i = 0; i < tile.inboxSize; i += 3) {
+			pushSpans(tile, tile.inbox[i], tile.inbox[i + 1], tile.inbox[i + 2]);
+		}
+		tile.inboxSize = 0;
+		while (tile.stackSize > 0) {
+			final int index = tile.stack[--tile.stackSize];
+			if (!tile.isAvailable(index)) {
+				continue; // reached by another span since it was pushed
+			}
+			final int y = index >>> TILE_SHIFT;
+			final int rowStart = y << TILE_SHIFT;
+			int x0 = index - rowStart;
+			int x1 = x0;
+			while (x0 > 0 && tile.isAvailable(rowStart + x0 - 1)) {
+				x0--;
+			}
+			while (x1 < tile.width - 1 && tile.isAvailable(rowStart + x1 + 1)) {
+				x1++;
+			}
+			setFilled(tile.filled, rowStart + x0, rowStart + x1);
+			tile.minX = Math.min(tile.minX, tile.x0 + x0);
+			tile.maxX = Math.max(tile.maxX, tile.x0 + x1);
+			tile.minY = Math.min(tile.minY, tile.y0 + y);
+			tile.maxY = Math.max(tile.maxY, tile.y0 + y);
+			if (x0 == 0 && tile.x0 > 0) {
+				tile.send(tile.y0 + y, tile.x0 - 1, tile.x0 - 1);
+			}
+			if (x1 == tile.width - 1 && tile.x0 + tile.width < width) {
+				tile.send(tile.y0 + y, tile.x0 + tile.width, tile.x0 + tile.width);
+			}
+			if (y > 0) {
+				pushSpans(tile, y - 1, x0, x1);
+			} else if (tile.y0 > 0) {
+				tile.send(tile.y0 - 1, tile.x0 + x0, tile.x0 + x1);
+			}
+			if (y < tile.height - 1) {
+				pushSpans(tile, y + 1, x0, x1);
+			} else if (tile.y0 + tile.height < height) {
+				tile.send(tile.y0 + tile.height, tile.x0 + x0, tile.x0 + x1);
+			}
+		}
+	}
+
+	/**
+	 * Push the first pixel of every run of matching pixels in [x0..x1] of the row that are not filled
+	 * yet.
+	 */
+	private static void pushSpans(Tile tile, int y, int x0, int x1) {
+		final int rowStart = y << TILE_SHIFT;
+		final int firstWord = (rowStart + x0) >>> 5;
+		final int lastWord = (rowStart + x1) >>> 5;
+		int carry = 0; // last pixel of the previous word was available
+		for (int w = firstWord; w <= lastWord; w++) {
+			int bits = tile.match[w] & ~tile.filled[w];
+			if (w == firstWord) {
+				bits &= -1 << (x0 & 31);
+			}
+			if (w == lastWord) {
+				bits &= -1 >>> (31 - (x1 & 31));
+			}
+			int starts = bits & ~(bits << 1 | carry);
+			carry = bits >>> 31;
+			while (starts != 0) {
+				tile.push((w << 5) + Integer.numberOfTrailingZeros(starts));
+				starts &= starts - 1;
+			}
+		}
+	}
+
+	/**
+	 * Set the bits [from..to].
+	 */
+	private static void setFilled(int[] bits, int from, int to) {
+		final int firstWord = from >>> 5;
+		final int lastWord = to >>> 5;
+		final int firstMask = -1 << (from & 31);
+		final int lastMask = -1 >>> (31 - (to & 31));
+		if (firstWord == lastWord) {
+			bits[firstWord] |= firstMask & lastMask;
+			return;
+		}
+		bits[firstWord] |= firstMask;
+		for (int w = firstWord + 1; w < lastWord; w++) {
+			bits[w] = -1;
+		}
+		bits[lastWord] |= lastMask;
+	}
+
+	/**
+	 * @return Word of the filled bits of the area holding x = word * 32, 0 outside of the area and in
+	 *         tiles the region did not reach.
+	 */
+	private int filledWord(int y, int word) {
+		if (y < 0 || y >= height || word < 0 || word << 5 >= width) {
+			return 0;
+		}
+		Tile tile = tiles[(y >> TILE_SHIFT) * tilesX + (word >> 3)];
+		if (tile == null || tile.filled == null) {
+			return 0;
+		}
+		return tile.filled[((y & TILE_MASK) << TILE_SHIFT >>> 5) + (word & (ROW_WORDS - 1))];
+	}
+
+	/**
+	 * @return Largest difference of the unpremultiplied channels.
+	 */
+	static int distance(int a, int b) {
+		int d = Math.abs((a >>> 24) - (b >>> 24));
+		d = Math.max(d, Math.abs((a >> 16 & 0xFF) - (b >> 16 & 0xFF)));
+		d = Math.max(d, Math.abs((a >> 8 & 0xFF) - (b >> 8 & 0xFF)));
+		return Math.max(d, Math.abs((a & 0xFF) - (b & 0xFF)));
+	}
+
+	/**
+	 * Collect the spans of the filled bits row by row and, if anti-aliased, the pixels around them.
+	 */
+	private FillMask collect() {
+		int minX = width;
+		int minY = height;
+		int maxX = -1;
+		int maxY = -1;
+		for (int i = 0; i < tiles.length; i++) {
+			if (tiles[i] != null) {
+				minX = Math.min(minX, tiles[i].minX);
+				minY = Math.min(minY, tiles[i].minY);
+				maxX = Math.max(maxX, tiles[i].maxX);
+				maxY = Math.max(maxY, tiles[i].maxY);
+			}
+		}
+		int[] spans = new int[Math.max(3, (maxY - minY + 1) * 3)];
+		int spanLength = 0;
+		int[] edges = new int[antiAlias ? 48 : 0];
+		int edgeLength = 0;
+		// Pixels next to the region were not filled, so their distance exceeds the tolerance.
+		final int limit = tolerance + EDGE_SOFTNESS;
+		final int firstWord = Math.max(0, minX - 1) >>> 5;
+		final int lastWord = Math.min(width - 1, maxX + 1) >>> 5;
+		for (int y = Math.max(0, minY - 1); y <= Math.min(height - 1, maxY + 1); y++) {
+			int start = -1; // of the span that continues in the next word
+			for (int w = firstWord; w <= lastWord; w++) {
+				final int filled = filledWord(y, w);
+				int bits = filled;
+				if (start >= 0) {
+					if (bits == -1) {
+						continue;
+					}
+					final int end = Integer.numberOfTrailingZeros(~bits);
+					spans = appendSpan(spans, spanLength, top + y, left + start, left + (w << 5) + end);
+					spanLength += 3;
+					start = -1;
+					bits &= -1 << end;
+				}
+				while (bits != 0) {
+					final int first = Integer.numberOfTrailingZeros(bits);
+					final int gaps = ~bits & -1 << first;
+					if (gaps == 0) {
+						start = (w << 5) + first;
+						break;
+					}
+					final int end = Integer.numberOfTrailingZeros(gaps);
+					final int wordLeft = left + (w << 5);
+					spans = appendSpan(spans, spanLength, top + y, wordLeft + first, wordLeft + end);
+					spanLength += 3;
+					bits &= -1 << end;
+				}
+
+				if (!antiAlias) {
+					continue;
+				}
+				final int around = filled << 1 | filledWord(y, w - 1) >>> 31 | filled >>> 1
+						| filledWord(y, w + 1) << 31 | filledWord(y - 1, w) | filledWord(y + 1, w);
+				int candidates = around & ~filled;
+				if ((w + 1) << 5 > width) {
+					candidates &= -1 >>> (32 - (width & 31));
+				}
+				if (candidates == 0) {
+					continue;
+				}
+				final Tile tile = tiles[(y >> TILE_SHIFT) * tilesX + (w >> 3)];
+				if (tile == null || tile.distance == null) {
+					continue; // not read because of the memory limit
+				}
+				final int rowStart = (y & TILE_MASK) << TILE_SHIFT;
+				while (candidates != 0) {
+					final int bit = Integer.numberOfTrailingZeros(candidates);
+					candidates &= candidates - 1;
+					final int x = (w << 5) + bit;
+					final int d = tile.distance[rowStart + (x & TILE_MASK)] & 0xFF;
+					final int coverage = d < limit ? 255 * (limit - d) / EDGE_SOFTNESS : 0;
+					if (coverage <= 0) {
+						continue;
+					}
+					if (edgeLength == edges.length) {
+						int[] grown = new int[edges.length * 2];
+						System.arraycopy(edges, 0, grown, 0, edgeLength);
+						edges = grown;
+					}
+					edges[edgeLength++] = left + x;
+					edges[edgeLength++] = top + y;
+					edges[edgeLength++] = Math.min(0xFE, coverage);
+				}
+			}
+			if (start >= 0) {
+				final int end = Math.min(width, (lastWord + 1) << 5);
+				spans = appendSpan(spans, spanLength, top + y, left + start, left + end);
+				spanLength += 3;
+			}
+		}
+		return new FillMask(trim(spans, spanLength), trim(edges, edgeLength));
+	}
+
+	private static int[] appendSpan(int[] spans, int length, int y, int start, int end) {
+		if (length + 3 > spans.length) {
+			int[] grown = new int[spans.length * 2];
+			System.arraycopy(spans, 0, grown, 0, length);
+			spans = grown;
+		}
+		spans[length] = y;
+		spans[length + 1] = start;
+		spans[length + 2] = end;
+		return spans;
+	}
+
+	private static int[] trim(int[] array, int length) {
+		if (array.length == length) {
+			return array;
+		}
+		int[] trimmed = new int[length];
+		System.arraycopy(array, 0, trimmed, 0, length);
+		return trimmed;
+	}
+}
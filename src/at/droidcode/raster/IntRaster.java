@@ -0,0 +1,415 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+import java.util.Arrays;
+
+/**
+ * Raster backed by an int array of unpremultiplied ARGB pixels, rendered in pure Java so the
+ * drawing engine runs headless. Shapes are rasterized into a coverage mask first, so that the
+ * overlapping segments of one stroke are blended once, then the mask is blended with the paint.
+ * <p>
+ * Strokes are always drawn with round caps and joins, which is what the app uses. Points are round
+ * for round caps and square otherwise.
+ * <p>
+ * Wide strokes and fills of large Rasters are split into tiles of the canvas that are rasterized
+ * in parallel. Every pixel is computed by exactly one tile, so the result is the same as drawing
+ * on a single thread.
+ */
+public class IntRaster implements Raster {
+	private static final float FLATNESS = 0.25f; // maximum distance of flattened curves, in pixels
+	private static final int TILE_SIZE = 64;
+	private static final int PARALLEL_MIN_PIXELS = 256 * 256; // smaller jobs stay on the calling thread
+
+	private final int width;
+	private final int height;
+	private final int[] pixels;
+	private byte[] coverage; // mask of the shape being drawn, grows as needed
+	private float[] polyline; // flattened stroke, grows as needed
+	private boolean parallel;
+
+	/**
+	 * @param width Width in pixels.
+	 * @param height Height in pixels.
+	 */
+	public IntRaster(int width, int height) {
+		this.width = width;
+		this.height = height;
+		pixels = new int[width * height];
+		coverage = new byte[0];
+		polyline = new float[64];
+		parallel = true;
+	}
+
+	/**
+	 * Large strokes and fills are split into tiles that are rasterized on all processors by
+	 * default. The pixels are the same either way.
+	 * 
+	 * @param enabled False to rasterize on the calling thread only.
+	 */
+	public void setParallel(boolean enabled) {
+		parallel = enabled;
+	}
+
+	/**
+	 * @return The pixels, row by row without padding. Changes show up in the Raster.
+	 */
+	public int[] pixels() {
+		return pixels;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public void drawStroke(StrokeBuffer stroke, PaintDescriptor paint) {
+		final int size = stroke.size();
+		if (size == 0) {
+			return;
+		}
+		int length = 0;
+		length = addPoint(length, stroke.x(0), stroke.y(0));
+		for (int i = 1; i < size; i++) {
+			final float x0 = stroke.x(i - 1);
+			final float y0 = stroke.y(i - 1);
+			final float x2 = stroke.x(i);
+			final float y2 = stroke.y(i);
+			final float x1 = (x0 + x2) / 2f;
+			final float y1 = (y0 + y2) / 2f;
+			// The curve deviates from its chord by at most a quarter of this distance.
+			final float dx = x0 - 2 * x1 + x2;
+			final float dy = y0 - 2 * y1 + y2;
+			final float deviation = (float) Math.sqrt(dx * dx + dy * dy) / 4f;
+			final int segments = Math.max(1, (int) Math.ceil(Math.sqrt(deviation / FLATNESS)));
+			for (int s = 1; s <= segments; s++) {
+				final float t = s / (float) segments;
+				final float u = 1 - t;
+				length = addPoint(length, u * u * x0 + 2 * u * t * x1 + t * t * x2, u * u * y0 + 2 * u * t * y1 + t * t
+						* y2);
+			}
+		}
+		drawPolyline(length / 2, halfWidth(paint), paint);
+	}
+
+	@Override
+	public void drawPoints(float[] points, int count, PaintDescriptor paint) {
+		final float half = halfWidth(paint);
+		for (int i = 0; i < count; i++) {
+			final float x = points[i * 2];
+			final float y = points[i * 2 + 1];
+			if (paint.cap() == PaintDescriptor.Cap.ROUND) {
+				addPoint(0, x, y);
+				drawPolyline(1, half, paint);
+			} else {
+				drawSquare(x, y, half, paint);
+			}
+		}
+	}
+
+	@Override
+	public void fill(PaintDescriptor paint) {
+		if (paint.isEraser()) {
+			eraseColor(0);
+			return;
+		}
+		final int color = paint.color();
+		final TileWorkers workers = parallel ? TileWorkers.shared() : null;
+		if (workers == null || pixels.length < PARALLEL_MIN_PIXELS) {
+			fillRows(0, height, color);
+			return;
+		}
+		workers.forEach((height + TILE_SIZE - 1) / TILE_SIZE, new TileWorkers.TileTask() {
+			@Override
+			public void run(int tile) {
+				fillRows(tile * TILE_SIZE, Math.min(height, (tile + 1) * TILE_SIZE), color);
+			}
+		});
+	}
+
+	private void fillRows(int y0, int y1, int color) {
+		for (int i = y0 * width; i < y1 * width; i++) {
+			pixels[i] = blend(pixels[i], color, 0xFF);
+		}
+	}
+
+	@Override
+	public void eraseColor(int color) {
+		Arrays.fill(pixels, color);
+	}
+
+	@Override
+	public int[] getContentRects() {
+		return new int[] { 0, 0, width, height };
+	}
+
+	@Override
+	public int getBackground() {
+		return 0;
+	}
+
+	@Override
+	public void blit(Raster source, int x, int y) {
+		final int left = Math.max(0, x);
+		final int top = Math.max(0, y);
+		final int right = Math.min(width, x + source.getWidth());
+		final int bottom = Math.min(height, y + source.getHeight());
+		if (left >= right || top >= bottom) {
+			return;
+		}
+		final int w = right - left;
+		int[] row = new int[w];
+		for (int py = top; py < bottom; py++) {
+			source.getPixels(row, 0, w, left - x, py - y, w, 1);
+			final int offset = py * width + left;
+			for (int i = 0; i < w; i++) {
+				final int src = row[i];
+				if (src >>> 24 == 0xFF) {
+					pixels[offset + i] = src;
+				} else if (src >>> 24 != 0) {
+					pixels[offset + i] = blend(pixels[offset + i], src, 0xFF);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void getPixels(int[] dst, int offset, int stride, int x, int y, int w, int h) {
+		checkBounds(x, y, w, h);
+		for (int row = 0; row < h; row++) {
+			System.arraycopy(pixels, (y + row) * width + x, dst, offset + row * stride, w);
+		}
+	}
+
+	@Override
+	public void setPixels(int[] src, int offset, int stride, int x, int y, int w, int h) {
+		checkBounds(x, y, w, h);
+		for (int row = 0; row < h; row++) {
+			System.arraycopy(src, offset + row * stride, pixels, (y + row) * width + x, w);
+		}
+	}
+
+	@Override
+	public Raster createCompatible(int w, int h) {
+		return new IntRaster(w, h);
+	}
+
+	@Override
+	public void recycle() {
+		// nothing to free, the array is garbage collected
+	}
+
+	private void checkBounds(int x, int y, int w, int h) {
+		if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+			throw new IllegalArgumentException("Rectangle outside of the raster");
+		}
+	}
+
+	private static float halfWidth(PaintDescriptor paint) {
+		return Math.max(1f, paint.strokeWidth()) / 2f; // a width of 0 is a hairline
+	}
+
+	private int addPoint(int length, float x, float y) {
+		if (length + 2 > polyline.length) {
+			float[] grown = new float[polyline.length * 2];
+			System.arraycopy(polyline, 0, grown, 0, length);
+			polyline = grown;
+		}
+		polyline[length] = x;
+		polyline[length + 1] = y;
+		return length + 2;
+	}
+
+	/**
+	 * Draw the union of round-capped segments through the points of the polyline. A single point
+	 * is drawn as a disc.
+	 */
+	private void drawPolyline(final int count, final float half, final PaintDescriptor paint) {
+		float minX = polyline[0], minY = polyline[1], maxX = minX, maxY = minY;
+		long work = 0; // pixels to test, summed over the segments
+		for (int i = 1; i < count; i++) {
+			final float x = polyline[i * 2];
+			final float y = polyline[i * 2 + 1];
+			work += (long) ((Math.abs(x - polyline[i * 2 - 2]) + 2 * half + 2) * (Math.abs(y
+					- polyline[i * 2 - 1]) + 2 * half + 2));
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x);
+			maxY = Math.max(maxY, y);
+		}
+		final int left = Math.max(0, (int) Math.floor(minX - half - 1));
+		final int top = Math.max(0, (int) Math.floor(minY - half - 1));
+		final int right = Math.min(width, (int) Math.ceil(maxX + half + 1));
+		final int bottom = Math.min(height, (int) Math.ceil(maxY + half + 1));
+		if (left >= right || top >= bottom) {
+			return;
+		}
+		final int maskWidth = right - left;
+		prepareMask(maskWidth * (bottom - top));
+		final TileWorkers workers = parallel ? TileWorkers.shared() : null;
+		if (workers == null || work < PARALLEL_MIN_PIXELS) {
+			coverPolyline(left, top, right, bottom, count, half, paint.isAntiAlias(), left, top, maskWidth);
+			composite(left, top, right, bottom, left, top, maskWidth, paint);
+			return;
+		}
+		// Each tile gets its own part of the mask, so the result does not depend on the order.
+		final int tilesX = (right - left + TILE_SIZE - 1) / TILE_SIZE;
+		final int tilesY = (bottom - top + TILE_SIZE - 1) / TILE_SIZE;
+		workers.forEach(tilesX * tilesY, new TileWorkers.TileTask() {
+			@Override
+			public void run(int tile) {
+				final int x0 = left + (tile % tilesX) * TILE_SIZE;
+				final int y0 = top + (tile / tilesX) * TILE_SIZE;
+				final int x1 = Math.min(right, x0 + TILE_SIZE);
+				final int y1 = Math.min(bottom, y0 + TILE_SIZE);
+				coverPolyline(x0, y0, x1, y1, count, half, paint.isAntiAlias(), left, top, maskWidth);
+				composite(x0, y0, x1, y1, left, top, maskWidth, paint);
+			}
+		});
+	}
+
+	/**
+	 * Compute the coverage of the polyline for the pixels [x0..x1) x [y0..y1) of the mask.
+	 */
+	private void coverPolyline(int x0, int y0, int x1, int y1, int count, float half, boolean antiAlias,
+			int maskLeft, int maskTop, int maskWidth) {
+		for (int i = 0; i < Math.max(1, count - 1); i++) {
+			final float ax = polyline[i * 2];
+			final float ay = polyline[i * 2 + 1];
+			final float bx = count > 1 ? polyline[i * 2 + 2] : ax;
+			final float by = count > 1 ? polyline[i * 2 + 3] : ay;
+			final float dx = bx - ax;
+			final float dy = by - ay;
+			final float length2 = dx * dx + dy * dy;
+			final int sx0 = Math.max(x0, (int) Math.floor(Math.min(ax, bx) - half - 1));
+			final int sy0 = Math.max(y0, (int) Math.floor(Math.min(ay, by) - half - 1));
+			final int sx1 = Math.min(x1, (int) Math.ceil(Math.max(ax, bx) + half + 1));
+			final int sy1 = Math.min(y1, (int) Math.ceil(Math.max(ay, by) + half + 1));
+			for (int y = sy0; y < sy1; y++) {
+				final float py = y + 0.5f;
+				int m = (y - maskTop) * maskWidth + sx0 - maskLeft;
+				for (int x = sx0; x < sx1; x++, m++) {
+					final float px = x + 0.5f;
+					float t = length2 > 0f ? ((px - ax) * dx + (py - ay) * dy) / length2 : 0f;
+					t = t < 0f ? 0f : (t > 1f ? 1f : t);
+					final float ex = px - (ax + t * dx);
+					final float ey = py - (ay + t * dy);
+					final int c = coverage(half - (float) Math.sqrt(ex * ex + ey * ey), antiAlias);
+					if (c > (coverage[m] & 0xFF)) {
+						coverage[m] = (byte) c;
+					}
+				}
+			}
+		}
+	}
+
+	private void drawSquare(float cx, float cy, float half, PaintDescriptor paint) {
+		final int left = Math.max(0, (int) Math.floor(cx - half - 1));
+		final int top = Math.max(0, (int) Math.floor(cy - half - 1));
+		final int right = Math.min(width, (int) Math.ceil(cx + half + 1));
+		final int bottom = Math.min(height, (int) Math.ceil(cy + half + 1));
+		if (left >= right || top >= bottom) {
+			return;
+		}
+		final int maskWidth = right - left;
+		prepareMask(maskWidth * (bottom - top));
+		final boolean antiAlias = paint.isAntiAlias();
+		int m = 0;
+		for (int y = top; y < bottom; y++) {
+			final int cyCoverage = coverage(half - Math.abs(y + 0.5f - cy), antiAlias);
+			for (int x = left; x < right; x++, m++) {
+				coverage[m] = (byte) Math.min(cyCoverage, coverage(half - Math.abs(x + 0.5f - cx), antiAlias));
+			}
+		}
+		composite(left, top, right, bottom, left, top, maskWidth, paint);
+	}
+
+	/**
+	 * @param inside Distance of the pixel center from the edge, positive inside the shape.
+	 * @return Coverage in [0..255].
+	 */
+	private static int coverage(float inside, boolean antiAlias) {
+		if (!antiAlias) {
+			return inside >= 0f ? 0xFF : 0;
+		}
+		final float c = inside + 0.5f;
+		return c <= 0f ? 0 : (c >= 1f ? 0xFF : (int) (c * 255f + 0.5f));
+	}
+
+	private void prepareMask(int size) {
+		if (coverage.length < size) {
+			coverage = new byte[size];
+		} else {
+			Arrays.fill(coverage, 0, size, (byte) 0);
+		}
+	}
+
+	/**
+	 * Blend the paint into the pixels [x0..x1) x [y0..y1) with the coverage of the mask.
+	 */
+	private void composite(int x0, int y0, int x1, int y1, int maskLeft, int maskTop, int maskWidth,
+			PaintDescriptor paint) {
+		final int color = paint.color();
+		final boolean eraser = paint.isEraser();
+		for (int y = y0; y < y1; y++) {
+			int m = (y - maskTop) * maskWidth + x0 - maskLeft;
+			int p = y * width + x0;
+			for (int x = x0; x < x1; x++, m++, p++) {
+				final int c = coverage[m] & 0xFF;
+				if (c != 0) {
+					pixels[p] = eraser ? erase(pixels[p], c) : blend(pixels[p], color, c);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Source-over blending of unpremultiplied colors.
+	 * 
+	 * @param dst Pixel to draw over.
+	 * @param color Color to draw.
+	 * @param coverage Fraction of the pixel the shape covers, in [0..255].
+	 * @return Blended pixel.
+	 */
+	static int blend(int dst, int color, int coverage) {
+		final int sa = ((color >>> 24) * coverage + 127) / 255;
+		if (sa == 0) {
+			return dst;
+		}
+		final int dw = (dst >>> 24) * (255 - sa) / 255; // weight of the destination
+		final int oa = sa + dw;
+		final int half = oa / 2;
+		final int r = (((color >> 16) & 0xFF) * sa + ((dst >> 16) & 0xFF) * dw + half) / oa;
+		final int g = (((color >> 8) & 0xFF) * sa + ((dst >> 8) & 0xFF) * dw + half) / oa;
+		final int b = ((color & 0xFF) * sa + (dst & 0xFF) * dw + half) / oa;
+		return oa << 24 | r << 16 | g << 8 | b;
+	}
+
+	/**
+	 * Clear a pixel by the coverage, like drawing with PorterDuff.Mode.CLEAR.
+	 */
+	static int erase(int dst, int coverage) {
+		final int a = (dst >>> 24) * (255 - coverage) / 255;
+		return a == 0 ? 0 : a << 24 | (dst & 0xFFFFFF);
+	}
+}
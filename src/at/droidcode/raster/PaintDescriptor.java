@@ -0,0 +1,158 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * The attributes of a paint that commands need, as plain values. The enums have the same order as
+ * their android.graphics.Paint counterparts. An eraser clears the pixels it covers.
+ */
+public final class PaintDescriptor {
+	public static final int BYTES = 32; // header, five ints or floats and three references, 8 byte aligned
+
+	public enum Cap {
+		BUTT, ROUND, SQUARE
+	}
+
+	public enum Join {
+		MITER, ROUND, BEVEL
+	}
+
+	public enum Style {
+		FILL, STROKE, FILL_AND_STROKE
+	}
+
+	private static final int FLAG_ANTIALIAS = 1;
+	private static final int FLAG_DITHER = 2;
+	private static final int FLAG_ERASE = 4;
+
+	private final int color;
+	private final float strokeWidth;
+	private final Cap cap;
+	private final Join join;
+	private final Style style;
+	private final int flags;
+
+	/**
+	 * @param color ARGB color.
+	 * @param strokeWidth Width of strokes and points.
+	 * @param cap Cap of strokes and shape of points.
+	 * @param join Join of stroke segments.
+	 * @param style Whether shapes are stroked or filled.
+	 * @param antiAlias True to smooth edges.
+	 * @param dither True to dither colors.
+	 * @param eraser True to clear the covered pixels instead of painting the color.
+	 */
+	public PaintDescriptor(int color, float strokeWidth, Cap cap, Join join, Style style, boolean antiAlias,
+			boolean dither, boolean eraser) {
+		this(color, strokeWidth, cap, join, style, (antiAlias ? FLAG_ANTIALIAS : 0) | (dither ? FLAG_DITHER : 0)
+				| (eraser ? FLAG_ERASE : 0));
+	}
+
+	private PaintDescriptor(int color, float strokeWidth, Cap cap, Join join, Style style, int flags) {
+		this.color = color;
+		this.strokeWidth = strokeWidth;
+		this.cap = cap;
+		this.join = join;
+		this.style = style;
+		this.flags = flags;
+	}
+
+	public int color() {
+		return color;
+	}
+
+	public float strokeWidth() {
+		return strokeWidth;
+	}
+
+	public Cap cap() {
+		return cap;
+	}
+
+	public Join join() {
+		return join;
+	}
+
+	public Style style() {
+		return style;
+	}
+
+	public boolean isAntiAlias() {
+		return (flags & FLAG_ANTIALIAS) != 0;
+	}
+
+	public boolean isDither() {
+		return (flags & FLAG_DITHER) != 0;
+	}
+
+	public boolean isEraser() {
+		return (flags & FLAG_ERASE) != 0;
+	}
+
+	/**
+	 * @return True if filling the canvas with this paint hides everything that was drawn before.
+	 */
+	public boolean coversCanvas() {
+		// An opaque color replaces everything, the eraser clears everything.
+		return isEraser() || color >>> 24 == 0xFF;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof PaintDescriptor)) {
+			return false;
+		}
+		PaintDescriptor d = (PaintDescriptor) o;
+		return color == d.color && strokeWidth == d.strokeWidth && cap == d.cap && join == d.join
+				&& style == d.style && flags == d.flags;
+	}
+
+	@Override
+	public int hashCode() {
+		return ((color * 31 + Float.floatToIntBits(strokeWidth)) * 31 + cap.ordinal()) * 31 + flags;
+	}
+
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeByte(flags);
+		out.writeInt(color);
+		out.writeFloat(strokeWidth);
+		out.writeByte(cap.ordinal());
+		out.writeByte(join.ordinal());
+		out.writeByte(style.ordinal());
+	}
+
+	/**
+	 * Read a descriptor written by writeTo().
+	 * 
+	 * @throws IOException If reading fails or the data is invalid.
+	 */
+	public static PaintDescriptor readFrom(DataInputStream in) throws IOException {
+		final int flags = in.readByte();
+		final int color = in.readInt();
+		final float strokeWidth = in.readFloat();
+		try {
+			return new PaintDescriptor(color, strokeWidth, Cap.values()[in.readByte()], Join.values()[in.readByte()],
+					Style.values()[in.readByte()], flags);
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IOException("Invalid paint");
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+/**
+ * A rectangle of ARGB pixels that commands are drawn onto. Implementations exist for Android
+ * Bitmaps and for plain int arrays, which lets the drawing engine run on any JVM. A Raster is not
+ * thread-safe, each thread draws onto its own.
+ */
+public interface Raster {
+	int getWidth();
+
+	int getHeight();
+
+	/**
+	 * Draw a stroke through the samples, connected by quadratic segments with the control point
+	 * halfway between consecutive samples.
+	 * 
+	 * @param stroke Samples of the stroke.
+	 * @param paint Paint to draw with.
+	 */
+	void drawStroke(StrokeBuffer stroke, PaintDescriptor paint);
+
+	/**
+	 * Draw points, shaped like the cap of the paint.
+	 * 
+	 * @param points x, y pairs.
+	 * @param count Number of points to draw.
+	 * @param paint Paint to draw with.
+	 */
+	void drawPoints(float[] points, int count, PaintDescriptor paint);
+
+	/**
+	 * Draw the paint over every pixel.
+	 */
+	void fill(PaintDescriptor paint);
+
+	/**
+	 * Set every pixel to the color, like android.graphics.Bitmap.eraseColor().
+	 * 
+	 * @param color Unpremultiplied ARGB color, 0 for transparent.
+	 */
+	void eraseColor(int color);
+
+	/**
+	 * Find the areas whose pixels can differ from getBackground(). Copying the background and these
+	 * areas copies the whole Raster, which is cheap for sparse ones.
+	 * 
+	 * @return x, y, width and height of each area, in rows from top to bottom.
+	 */
+	int[] getContentRects();
+
+	/**
+	 * @return Color of every pixel outside of getContentRects().
+	 */
+	int getBackground();
+
+	/**
+	 * Draw another Raster over this one with its alpha.
+	 * 
+	 * @param source Raster to draw.
+	 * @param x Position of the source's left edge.
+	 * @param y Position of the source's top edge.
+	 */
+	void blit(Raster source, int x, int y);
+
+	/**
+	 * Copy unpremultiplied ARGB pixels out of a rectangle, like android.graphics.Bitmap.getPixels().
+	 */
+	void getPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+
+	/**
+	 * Replace the pixels of a rectangle, like android.graphics.Bitmap.setPixels().
+	 */
+	void setPixels(int[] pixels, int offset, int stride, int x, int y, int width, int height);
+
+	/**
+	 * @return New transparent Raster of the same kind.
+	 */
+	Raster createCompatible(int width, int height);
+
+	/**
+	 * Free the pixels early. The Raster must not be used afterwards.
+	 */
+	void recycle();
+}
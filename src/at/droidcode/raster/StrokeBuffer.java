@@ -0,0 +1,199 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Samples of a stroke in canvas coordinates, stored as one primitive array of x, y, pressure and
+ * time per sample. The time is relative to the first sample, in milliseconds. Consecutive samples
+ * are connected by quadratic segments with the control point halfway between them.
+ */
+public final class StrokeBuffer {
+	private static final int STRIDE = 4;
+	private static final int SHALLOW_BYTES = 16; // header, array reference, size and start time
+
+	private float[] samples;
+	private int size;
+	private long startMillis;
+
+	/**
+	 * @param capacity Number of samples to reserve room for.
+	 */
+	public StrokeBuffer(int capacity) {
+		samples = new float[Math.max(1, capacity) * STRIDE];
+	}
+
+	private StrokeBuffer(float[] samples, int size) {
+		this.samples = samples;
+		this.size = size;
+	}
+
+	/**
+	 * Remove all samples, keeping the array.
+	 */
+	public void reset() {
+		size = 0;
+	}
+
+	/**
+	 * Append a sample, growing the array if needed.
+	 * 
+	 * @param x X-Coordinate on the canvas.
+	 * @param y Y-Coordinate on the canvas.
+	 * @param pressure Pressure of the touch, 1 if unknown.
+	 * @param timeMillis Time of the sample, for example MotionEvent.getEventTime().
+	 */
+	public void add(float x, float y, float pressure, long timeMillis) {
+		if (size == 0) {
+			startMillis = timeMillis;
+		}
+		if ((size + 1) * STRIDE > samples.length) {
+			float[] grown = new float[samples.length * 2];
+			System.arraycopy(samples, 0, grown, 0, size * STRIDE);
+			samples = grown;
+		}
+		final int i = size * STRIDE;
+		samples[i] = x;
+		samples[i + 1] = y;
+		samples[i + 2] = pressure;
+		samples[i + 3] = timeMillis - startMillis;
+		size++;
+	}
+
+	/**
+	 * @return Copy holding exactly the samples of this buffer.
+	 */
+	public StrokeBuffer copy() {
+		float[] trimmed = new float[Math.max(1, size) * STRIDE];
+		System.arraycopy(samples, 0, trimmed, 0, size * STRIDE);
+		StrokeBuffer copy = new StrokeBuffer(trimmed, size);
+		copy.startMillis = startMillis;
+		return copy;
+	}
+
+	/**
+	 * Replace the samples with those of another buffer, moved by an offset.
+	 * 
+	 * @param source Buffer to copy.
+	 * @param dx Offset added to every x-coordinate.
+	 * @param dy Offset added to every y-coordinate.
+	 */
+	public void setShifted(StrokeBuffer source, float dx, float dy) {
+		if (samples.length < source.size * STRIDE) {
+			samples = new float[source.size * STRIDE];
+		}
+		System.arraycopy(source.samples, 0, samples, 0, source.size * STRIDE);
+		for (int i = 0; i < source.size * STRIDE; i += STRIDE) {
+			samples[i] += dx;
+			samples[i + 1] += dy;
+		}
+		size = source.size;
+		startMillis = source.startMillis;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public float x(int i) {
+		return samples[i * STRIDE];
+	}
+
+	public float y(int i) {
+		return samples[i * STRIDE + 1];
+	}
+
+	public float pressure(int i) {
+		return samples[i * STRIDE + 2];
+	}
+
+	/**
+	 * @return Milliseconds since the first sample.
+	 */
+	public float time(int i) {
+		return samples[i * STRIDE + 3];
+	}
+
+	/**
+	 * Compute the bounding box of the samples. Control points lie between samples, so the stroke
+	 * itself stays inside as well.
+	 * 
+	 * @param bounds Array of left, top, right, bottom to store the result in.
+	 */
+	public void getBounds(float[] bounds) {
+		float left = samples[0], top = samples[1], right = left, bottom = top;
+		for (int i = STRIDE; i < size * STRIDE; i += STRIDE) {
+			left = Math.min(left, samples[i]);
+			top = Math.min(top, samples[i + 1]);
+			right = Math.max(right, samples[i]);
+			bottom = Math.max(bottom, samples[i + 1]);
+		}
+		bounds[0] = left;
+		bounds[1] = top;
+		bounds[2] = right;
+		bounds[3] = bottom;
+	}
+
+	/**
+	 * @return Bytes this object and its array occupy, assuming 8 byte object headers.
+	 */
+	public int byteSize() {
+		return SHALLOW_BYTES + arrayBytes(samples.length);
+	}
+
+	/**
+	 * @param length Number of ints or floats.
+	 * @return Bytes an int or float array occupies: header, length and elements, 8 byte aligned.
+	 */
+	public static int arrayBytes(int length) {
+		return (12 + length * 4 + 7) & ~7;
+	}
+
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(size);
+		for (int i = 0; i < size * STRIDE; i++) {
+			out.writeFloat(samples[i]);
+		}
+	}
+
+	/**
+	 * Read samples written by writeTo().
+	 * 
+	 * @throws IOException If reading fails or the data is invalid.
+	 */
+	public static StrokeBuffer readFrom(DataInputStream in) throws IOException {
+		final int size = in.readInt();
+		if (size <= 0 || size > Integer.MAX_VALUE / STRIDE) {
+			throw new IOException("Invalid stroke size " + size);
+		}
+		// Grow with the data read, a damaged size must not allocate more than the stream holds.
+		final int length = size * STRIDE;
+		float[] samples = new float[Math.min(length, 1024 * STRIDE)];
+		for (int i = 0; i < length; i++) {
+			if (i == samples.length) {
+				float[] grown = new float[(int) Math.min(samples.length * 2L, length)];
+				System.arraycopy(samples, 0, grown, 0, i);
+				samples = grown;
+			}
+			samples[i] = in.readFloat();
+		}
+		return new StrokeBuffer(samples, size);
+	}
+}
@@ -0,0 +1,211 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Memory budget shared by the TiledRasters of a process. The budget is split evenly between the
+ * rasters that hold tiles, each keeps its recently used tiles live and moves the least recently
+ * used ones out once its share is exceeded: first to direct ByteBuffers off the heap, then to pages
+ * of a memory-mapped file. Tiles are only moved by the thread that draws on their raster,
+ * trimMemory() asks the owners to do so through listeners.
+ */
+public class TileCache {
+	static final int PAGE_BYTES = TiledRaster.TILE_SIZE * TiledRaster.TILE_SIZE * 4;
+	private static final int SEGMENT_PAGES = 16; // 4 MiB mapped at a time
+	private static final int MAX_SPARE_BUFFERS = 8;
+
+	private final long liveBudget;
+	private final long bufferBudget;
+	private int rasters; // rasters holding tiles, they share the budget
+	private final ArrayList<ByteBuffer> spareBuffers;
+	private final CopyOnWriteArrayList<TrimListener> trimListeners;
+
+	private final File file;
+	private final long maxFileBytes;
+	private RandomAccessFile randomAccessFile; // opened when the first page is needed
+	private FileChannel channel;
+	private final ArrayList<ByteBuffer> segments;
+	private int[] freePages;
+	private int freePageCount;
+	private int pageCount;
+	private boolean fileFailed;
+
+	/**
+	 * @param liveBudget Bytes the live tiles of all rasters may occupy.
+	 * @param bufferBudget Bytes the direct ByteBuffers may occupy.
+	 * @param file Page file in app-private storage, will be truncated. Null to keep tiles in buffers.
+	 * @param maxFileBytes Size the file must not grow beyond.
+	 */
+	public TileCache(long liveBudget, long bufferBudget, File file, long maxFileBytes) {
+		this.liveBudget = liveBudget;
+		this.bufferBudget = bufferBudget;
+		this.file = file;
+		this.maxFileBytes = maxFileBytes;
+		spareBuffers = new ArrayList<ByteBuffer>();
+		trimListeners = new CopyOnWriteArrayList<TrimListener>();
+		segments = new ArrayList<ByteBuffer>();
+		freePages = new int[16];
+	}
+
+	public long liveBudget() {
+		return liveBudget;
+	}
+
+	public long bufferBudget() {
+		return bufferBudget;
+	}
+
+	/**
+	 * Owner of TiledRasters, asked to move their tiles out.
+	 */
+	public interface TrimListener {
+		/**
+		 * Call trim() of the TiledRasters with the arguments, on the thread that draws on them. This
+		 * is called by the thread that called trimMemory(), so hand the work over instead of
+		 * blocking it.
+		 */
+		void trimTiles(long liveBytes, long bufferBytes);
+	}
+
+	public void addTrimListener(TrimListener listener) {
+		trimListeners.add(listener);
+	}
+
+	public void removeTrimListener(TrimListener listener) {
+		trimListeners.remove(listener);
+	}
+
+	/**
+	 * Ask the owners to move tiles out until no more than the given number of bytes remain live and
+	 * in buffers, for example when the system runs low on memory. Tiles that are loaded afterwards
+	 * count against the normal budget again.
+	 */
+	public void trimMemory(long liveBytes, long bufferBytes) {
+		for (TrimListener listener : trimListeners) {
+			listener.trimTiles(Math.min(liveBudget, liveBytes), Math.min(bufferBudget, bufferBytes));
+		}
+	}
+
+	/**
+	 * A raster allocated its first tile.
+	 */
+	synchronized void join() {
+		rasters++;
+	}
+
+	/**
+	 * A raster freed its last tile.
+	 */
+	synchronized void leave() {
+		rasters--;
+	}
+
+	/**
+	 * @param bytes Budget of all rasters.
+	 * @return Part of the budget of each raster holding tiles.
+	 */
+	synchronized long share(long bytes) {
+		return bytes / Math.max(1, rasters);
+	}
+
+	/**
+	 * @return True if the page file has no free page and cannot grow.
+	 */
+	synchronized boolean exhausted() {
+		return freePageCount == 0
+				&& (file == null || fileFailed || (long) (pageCount + 1) * PAGE_BYTES > maxFileBytes);
+	}
+
+	/**
+	 * @return Direct buffer of PAGE_BYTES in native byte order.
+	 */
+	synchronized ByteBuffer takeBuffer() {
+		if (!spareBuffers.isEmpty()) {
+			return spareBuffers.remove(spareBuffers.size() - 1);
+		}
+		return ByteBuffer.allocateDirect(PAGE_BYTES).order(ByteOrder.nativeOrder());
+	}
+
+	/**
+	 * Keep a few buffers for reuse, the memory of direct buffers is only freed by the garbage
+	 * collector.
+	 */
+	synchronized void releaseBuffer(ByteBuffer buffer) {
+		if (spareBuffers.size() < MAX_SPARE_BUFFERS) {
+			buffer.clear();
+			spareBuffers.add(buffer);
+		}
+	}
+
+	/**
+	 * @return Number of a free page in the file or -1 if the file is full or cannot be written.
+	 */
+	synchronized int allocatePage() {
+		if (freePageCount > 0) {
+			return freePages[--freePageCount];
+		}
+		if (file == null || fileFailed || (long) (pageCount + 1) * PAGE_BYTES > maxFileBytes) {
+			return -1;
+		}
+		try {
+			if (randomAccessFile == null) {
+				randomAccessFile = new RandomAccessFile(file, "rw");
+				randomAccessFile.setLength(0);
+				channel = randomAccessFile.getChannel();
+			}
+			if (pageCount == segments.size() * SEGMENT_PAGES) {
+				final long start = (long) segments.size() * SEGMENT_PAGES * PAGE_BYTES;
+				segments.add(channel.map(MapMode.READ_WRITE, start, (long) SEGMENT_PAGES * PAGE_BYTES));
+			}
+		} catch (IOException e) {
+			fileFailed = true;
+			return -1;
+		}
+		return pageCount++;
+	}
+
+	synchronized void freePage(int page) {
+		if (freePageCount == freePages.length) {
+			int[] grown = new int[freePages.length * 2];
+			System.arraycopy(freePages, 0, grown, 0, freePageCount);
+			freePages = grown;
+		}
+		freePages[freePageCount++] = page;
+	}
+
+	/**
+	 * @return View of the pixels stored in the page.
+	 */
+	synchronized IntBuffer page(int page) {
+		ByteBuffer segment = segments.get(page / SEGMENT_PAGES).duplicate();
+		final int start = (page % SEGMENT_PAGES) * PAGE_BYTES;
+		segment.position(start);
+		segment.limit(start + PAGE_BYTES);
+		return segment.slice().order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+}
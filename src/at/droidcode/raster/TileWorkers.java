@@ -0,0 +1,118 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Daemon threads that work on the tiles of one drawing operation together with the calling thread.
+ * Tiles are taken in order from a shared counter, the caller only waits for tiles that are in
+ * progress, never for workers that are busy with another operation.
+ */
+final class TileWorkers {
+	private static TileWorkers shared;
+
+	private final ExecutorService executor;
+	private final int threads;
+
+	/**
+	 * Work on a single tile. Tiles of one operation must not write to the same memory.
+	 */
+	interface TileTask {
+		void run(int tile);
+	}
+
+	private TileWorkers(int threads) {
+		this.threads = threads;
+		executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "TileWorker-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return Workers shared by all Rasters, one less than there are processors. Null on a single
+	 *         processor.
+	 */
+	static synchronized TileWorkers shared() {
+		final int processors = Runtime.getRuntime().availableProcessors();
+		if (shared == null && processors > 1) {
+			shared = new TileWorkers(processors - 1);
+		}
+		return shared;
+	}
+
+	/**
+	 * Run the task for the tiles [0..count) and return when all are done.
+	 * 
+	 * @param count Number of tiles.
+	 * @param task Task to run for each tile.
+	 */
+	void forEach(final int count, final TileTask task) {
+		final AtomicInteger next = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(count);
+		final Throwable[] failure = new Throwable[1];
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				int tile;
+				while ((tile = next.getAndIncrement()) < count) {
+					try {
+						task.run(tile);
+					} catch (Throwable t) {
+						synchronized (failure) {
+							failure[0] = t;
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}
+		};
+		for (int i = 0; i < Math.min(threads, count - 1); i++) {
+			executor.execute(worker);
+		}
+		worker.run();
+		boolean interrupted = false;
+		while (true) {
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (failure) {
+			if (failure[0] != null) {
+				throw new RuntimeException("Tile failed", failure[0]);
+			}
+		}
+	}
+}
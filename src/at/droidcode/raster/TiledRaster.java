@@ -0,0 +1,758 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.raster;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * A Raster split into square tiles that are only allocated where something was drawn, so the canvas
+ * can be much larger than the screen. Missing tiles read as the background color, which is
+ * transparent until the canvas is filled. Tiles are created from a prototype Raster, which makes the
+ * same grid work for Bitmaps and plain int arrays.
+ * <p>
+ * With a TileCache the tiles used least recently are moved out of the prototype's memory once the
+ * raster's share of the budget is exceeded, first into direct buffers, then into the page file.
+ * Drawing on such a tile or showing it loads it again, reading pixels and filling work on the
+ * stored copy. Once the page file is full as well, drawing no longer allocates new tiles.
+ */
+public class TiledRaster implements Raster {
+	public static final int TILE_SIZE = 256;
+
+	private final int width;
+	private final int height;
+	private final int columns;
+	private final int rows;
+	private final Raster prototype;
+	private final Raster[] tiles; // row by row, null where nothing was drawn or the tile was moved out
+	private final TileCache cache; // null if all tiles stay live
+	private final ByteBuffer[] buffers; // tiles moved to direct buffers
+	private final int[] pages; // tiles moved to the page file, -1 if not
+	private final int[] newer; // links of the live and buffered lists, most recently used first
+	private final int[] older;
+	private int liveHead = -1;
+	private int liveTail = -1;
+	private int bufferHead = -1;
+	private int bufferTail = -1;
+	private long liveBytes; // of this raster, counted against its share of the TileCache budget
+	private long bufferBytes;
+	private int[] tilePixels; // one tile, used when moving tiles in and out
+	private int background;
+	private int tileCount;
+	private final int[] extent; // first column, first row, last column, last row of allocated tiles
+	private boolean extentStale; // a tile was freed, the extent may have shrunk
+	private final int[] range; // columns and rows a rectangle touches, see tileRange()
+	private final int[] touchStamps; // per tile, equal to stamp if the current shape touches it
+	private int stamp;
+	private int[] touched; // indices of the tiles the current shape touches
+	private int touchedCount;
+	private final StrokeBuffer shiftedStroke; // stroke moved into the coordinates of one tile
+	private float[] shiftedPoints;
+
+	/**
+	 * @param width Width of the canvas in pixels.
+	 * @param height Height of the canvas in pixels.
+	 * @param prototype Raster whose createCompatible() makes the tiles. It is not drawn on.
+	 */
+	public TiledRaster(int width, int height, Raster prototype) {
+		this(width, height, prototype, null);
+	}
+
+	/**
+	 * @param width Width of the canvas in pixels.
+	 * @param height Height of the canvas in pixels.
+	 * @param prototype Raster whose createCompatible() makes the tiles. It is not drawn on.
+	 * @param cache Budget for live tiles or null to keep all of them live.
+	 */
+	public TiledRaster(int width, int height, Raster prototype, TileCache cache) {
+		this.width = width;
+		this.height = height;
+		this.prototype = prototype;
+		this.cache = cache;
+		columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+		rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+		tiles = new Raster[columns * rows];
+		buffers = new ByteBuffer[tiles.length];
+		pages = new int[tiles.length];
+		Arrays.fill(pages, -1);
+		newer = new int[tiles.length];
+		older = new int[tiles.length];
+		if (cache != null) {
+			tilePixels = new int[TILE_SIZE * TILE_SIZE];
+		}
+		extent = new int[4];
+		range = new int[4];
+		touchStamps = new int[tiles.length];
+		touched = new int[16];
+		shiftedStroke = new StrokeBuffer(128);
+		shiftedPoints = new float[2];
+		resetExtent();
+	}
+
+	public int columns() {
+		return columns;
+	}
+
+	public int rows() {
+		return rows;
+	}
+
+	/**
+	 * @return Number of allocated tiles.
+	 */
+	public int tileCount() {
+		return tileCount;
+	}
+
+	/**
+	 * @return Tile at the column and row or null if nothing was drawn there. Its top left pixel is at
+	 *         column * TILE_SIZE, row * TILE_SIZE. A tile that was moved out is loaded, which can move
+	 *         out others, so the result is valid until the next call or drawing operation.
+	 */
+	public Raster tile(int column, int row) {
+		final int index = row * columns + column;
+		return exists(index) ? live(index) : null;
+	}
+
+	/**
+	 * Get the tile to draw on, allocating it unless drawing there cannot change any pixel.
+	 * 
+	 * @param column Column of the tile.
+	 * @param row Row of the tile.
+	 * @param paint Paint that will be drawn.
+	 * @return Tile or null if the paint erases a missing tile that reads as transparent anyway, or if
+	 *         the TileCache has no room left for another tile.
+	 */
+	public Raster tileForDrawing(int column, int row, PaintDescriptor paint) {
+		final int index = row * columns + column;
+		if (exists(index)) {
+			return live(index);
+		}
+		if ((!paint.isEraser() || background != 0) && !full(index)) {
+			allocate(index);
+		}
+		return tiles[index];
+	}
+
+	/**
+	 * Move tiles out until this raster's share of the given budget is met. Tiles loaded afterwards
+	 * count against the normal budget again. Must be called by the thread drawing on this raster.
+	 * 
+	 * @param liveBytes Bytes the live tiles of all rasters may occupy.
+	 * @param bufferBytes Bytes the buffered tiles of all rasters may occupy.
+	 */
+	public void trim(long liveBytes, long bufferBytes) {
+		if (cache != null) {
+			evict(-1, cache.share(liveBytes), cache.share(bufferBytes));
+		}
+	}
+
+	/**
+	 * @return True if a new tile could neither stay live nor be moved out within the budget.
+	 */
+	private boolean full(int index) {
+		return cache != null && liveBytes + tileBytes(index) > cache.share(cache.liveBudget())
+				&& bufferBytes + TileCache.PAGE_BYTES > cache.share(cache.bufferBudget()) && cache.exhausted();
+	}
+
+	/**
+	 * Get the bounding box of the allocated tiles, the part of the canvas that was painted on.
+	 * 
+	 * @param bounds Array to store left, top, right and bottom in pixels in.
+	 * @return False if no tile is allocated.
+	 */
+	public boolean getContentBounds(int[] bounds) {
+		if (tileCount == 0) {
+			return false;
+		}
+		if (extentStale) {
+			resetExtent();
+			for (int index = 0; index < tiles.length; index++) {
+				if (exists(index)) {
+					addToExtent(index % columns, index / columns);
+				}
+			}
+		}
+		bounds[0] = extent[0] * TILE_SIZE;
+		bounds[1] = extent[1] * TILE_SIZE;
+		bounds[2] = Math.min(width, (extent[2] + 1) * TILE_SIZE);
+		bounds[3] = Math.min(height, (extent[3] + 1) * TILE_SIZE);
+		return true;
+	}
+
+	private void allocate(int index) {
+		final int column = index % columns;
+		final int row = index / columns;
+		Raster tile = prototype.createCompatible(tileWidth(column), tileHeight(row));
+		if (background != 0) {
+			tile.eraseColor(background);
+		}
+		tiles[index] = tile;
+		if (tileCount++ == 0 && cache != null) {
+			cache.join();
+		}
+		addToExtent(column, row);
+		makeLive(index);
+	}
+
+	private void free(int index) {
+		release(index);
+		if (--tileCount == 0 && cache != null) {
+			cache.leave();
+		}
+		extentStale = true;
+	}
+
+	/**
+	 * Drop the tile wherever it is stored.
+	 */
+	private void release(int index) {
+		if (tiles[index] != null) {
+			tiles[index].recycle();
+			tiles[index] = null;
+			unlink(index, true);
+			if (cache != null) {
+				liveBytes -= tileBytes(index);
+			}
+		} else if (buffers[index] != null) {
+			cache.releaseBuffer(buffers[index]);
+			buffers[index] = null;
+			bufferBytes -= TileCache.PAGE_BYTES;
+			unlink(index, false);
+		} else if (pages[index] >= 0) {
+			cache.freePage(pages[index]);
+			pages[index] = -1;
+		}
+	}
+
+	private boolean exists(int index) {
+		return tiles[index] != null || buffers[index] != null || pages[index] >= 0;
+	}
+
+	/**
+	 * @return The live tile, loaded from its buffer or page if it was moved out.
+	 */
+	private Raster live(int index) {
+		if (tiles[index] != null) {
+			if (liveHead != index) {
+				unlink(index, true);
+				link(index, true);
+			}
+			return tiles[index];
+		}
+		final int w = tileWidth(index % columns);
+		final int h = tileHeight(index / columns);
+		IntBuffer stored = storage(index);
+		stored.get(tilePixels, 0, w * h);
+		if (buffers[index] != null) {
+			cache.releaseBuffer(buffers[index]);
+			buffers[index] = null;
+			bufferBytes -= TileCache.PAGE_BYTES;
+			unlink(index, false);
+		} else {
+			cache.freePage(pages[index]);
+			pages[index] = -1;
+		}
+		Raster tile = prototype.createCompatible(w, h);
+		tile.setPixels(tilePixels, 0, w, 0, 0, w, h);
+		tiles[index] = tile;
+		makeLive(index);
+		return tile;
+	}
+
+	private void makeLive(int index) {
+		link(index, true);
+		if (cache != null) {
+			liveBytes += tileBytes(index);
+			evict(index, cache.share(cache.liveBudget()), cache.share(cache.bufferBudget()));
+		}
+	}
+
+	/**
+	 * Move the least recently used live tiles to buffers and buffered tiles to the page file until
+	 * both fit into the limits. If the page file is full, live tiles are only moved while the
+	 * buffers have room, the rest stays live.
+	 * 
+	 * @param keep Tile that is about to be used and must stay live, or -1.
+	 * @param liveLimit Bytes the live tiles of this raster may occupy.
+	 * @param bufferLimit Bytes the buffered tiles of this raster may occupy.
+	 */
+	private void evict(int keep, long liveLimit, long bufferLimit) {
+		while (liveTail >= 0 && liveTail != keep && liveBytes > liveLimit) {
+			if (bufferBytes + TileCache.PAGE_BYTES > bufferLimit && cache.exhausted()) {
+				break;
+			}
+			final int index = liveTail;
+			final int w = tileWidth(index % columns);
+			final int h = tileHeight(index / columns);
+			tiles[index].getPixels(tilePixels, 0, w, 0, 0, w, h);
+			ByteBuffer buffer = cache.takeBuffer();
+			buffer.asIntBuffer().put(tilePixels, 0, w * h);
+			tiles[index].recycle();
+			tiles[index] = null;
+			unlink(index, true);
+			liveBytes -= tileBytes(index);
+			buffers[index] = buffer;
+			bufferBytes += TileCache.PAGE_BYTES;
+			link(index, false);
+			moveBuffersToPages(bufferLimit);
+		}
+		moveBuffersToPages(bufferLimit);
+	}
+
+	private void moveBuffersToPages(long bufferLimit) {
+		while (bufferTail >= 0 && bufferBytes > bufferLimit) {
+			final int index = bufferTail;
+			final int page = cache.allocatePage();
+			if (page < 0) {
+				break;
+			}
+			cache.page(page).put(buffers[index].asIntBuffer());
+			cache.releaseBuffer(buffers[index]);
+			buffers[index] = null;
+			bufferBytes -= TileCache.PAGE_BYTES;
+			unlink(index, false);
+			pages[index] = page;
+		}
+	}
+
+	/**
+	 * @return Pixels of a tile that was moved out, row by row with the width of the tile.
+	 */
+	private IntBuffer storage(int index) {
+		return buffers[index] != null ? buffers[index].asIntBuffer() : cache.page(pages[index]);
+	}
+
+	private int tileBytes(int index) {
+		return tileWidth(index % columns) * tileHeight(index / columns) * 4;
+	}
+
+	/**
+	 * Insert the tile at the front of the live or the buffered list.
+	 */
+	private void link(int index, boolean liveList) {
+		final int head = liveList ? liveHead : bufferHead;
+		newer[index] = -1;
+		older[index] = head;
+		if (head >= 0) {
+			newer[head] = index;
+		}
+		if (liveList) {
+			liveHead = index;
+			if (liveTail < 0) {
+				liveTail = index;
+			}
+		} else {
+			bufferHead = index;
+			if (bufferTail < 0) {
+				bufferTail = index;
+			}
+		}
+	}
+
+	private void unlink(int index, boolean liveList) {
+		if (newer[index] >= 0) {
+			older[newer[index]] = older[index];
+		} else if (liveList) {
+			liveHead = older[index];
+		} else {
+			bufferHead = older[index];
+		}
+		if (older[index] >= 0) {
+			newer[older[index]] = newer[index];
+		} else if (liveList) {
+			liveTail = newer[index];
+		} else {
+			bufferTail = newer[index];
+		}
+	}
+
+	private void addToExtent(int column, int row) {
+		extent[0] = Math.min(extent[0], column);
+		extent[1] = Math.min(extent[1], row);
+		extent[2] = Math.max(extent[2], column);
+		extent[3] = Math.max(extent[3], row);
+	}
+
+	private void resetExtent() {
+		extent[0] = Integer.MAX_VALUE;
+		extent[1] = Integer.MAX_VALUE;
+		extent[2] = -1;
+		extent[3] = -1;
+		extentStale = false;
+	}
+
+	private int tileWidth(int column) {
+		return Math.min(TILE_SIZE, width - column * TILE_SIZE);
+	}
+
+	private int tileHeight(int row) {
+		return Math.min(TILE_SIZE, height - row * TILE_SIZE);
+	}
+
+	/**
+	 * Store the columns and rows a rectangle touches in range as first column, first row, end column
+	 * and end row, the ends exclusive.
+	 */
+	private void tileRange(float left, float top, float right, float bottom) {
+		range[0] = (int) Math.max(0, Math.floor(left)) / TILE_SIZE;
+		range[1] = (int) Math.max(0, Math.floor(top)) / TILE_SIZE;
+		range[2] = Math.min(columns, ((int) Math.max(0, Math.ceil(right)) + TILE_SIZE - 1) / TILE_SIZE);
+		range[3] = Math.min(rows, ((int) Math.max(0, Math.ceil(bottom)) + TILE_SIZE - 1) / TILE_SIZE);
+	}
+
+	/**
+	 * Collect the tiles within reach of a stroke, the ones drawStroke() draws on. The result is valid
+	 * until the next call or drawing operation.
+	 * 
+	 * @param stroke Samples of the stroke.
+	 * @param paint Paint to draw with, for the width.
+	 * @return Number of tiles, see touchedColumn() and touchedRow().
+	 */
+	public int touchStroke(StrokeBuffer stroke, PaintDescriptor paint) {
+		beginTouch();
+		final int size = stroke.size();
+		if (size == 0) {
+			return 0;
+		}
+		// Same padding as the command bounds: caps, joins and anti-aliasing.
+		final float pad = paint.strokeWidth() * 0.75f + 2f;
+		// Segments between samples are straight, the control point of each quad lies halfway.
+		touchSegment(stroke.x(0), stroke.y(0), stroke.x(0), stroke.y(0), pad);
+		for (int i = 1; i < size; i++) {
+			touchSegment(stroke.x(i - 1), stroke.y(i - 1), stroke.x(i), stroke.y(i), pad);
+		}
+		return touchedCount;
+	}
+
+	public int touchedColumn(int i) {
+		return touched[i] % columns;
+	}
+
+	public int touchedRow(int i) {
+		return touched[i] / columns;
+	}
+
+	private void beginTouch() {
+		stamp++;
+		if (stamp == 0) {
+			Arrays.fill(touchStamps, 0);
+			stamp = 1;
+		}
+		touchedCount = 0;
+	}
+
+	/**
+	 * Collect the tiles that lie within pad of the segment. The padded tile is tested as a square,
+	 * which can include a corner a round cap does not reach but never misses a tile.
+	 */
+	private void touchSegment(float x0, float y0, float x1, float y1, float pad) {
+		tileRange(Math.min(x0, x1) - pad, Math.min(y0, y1) - pad, Math.max(x0, x1) + pad, Math.max(y0, y1) + pad);
+		for (int r = range[1]; r < range[3]; r++) {
+			for (int c = range[0]; c < range[2]; c++) {
+				final int index = r * columns + c;
+				if (touchStamps[index] != stamp
+						&& crosses(x0, y0, x1, y1, c * TILE_SIZE - pad, r * TILE_SIZE - pad, (c + 1) * TILE_SIZE + pad,
+								(r + 1) * TILE_SIZE + pad)) {
+					touchStamps[index] = stamp;
+					if (touchedCount == touched.length) {
+						int[] grown = new int[touched.length * 2];
+						System.arraycopy(touched, 0, grown, 0, touchedCount);
+						touched = grown;
+					}
+					touched[touchedCount++] = index;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Clip the segment to the rectangle, like Liang-Barsky.
+	 * 
+	 * @return True if part of the segment lies inside.
+	 */
+	private static boolean crosses(float x0, float y0, float x1, float y1, float left, float top, float right,
+			float bottom) {
+		final float dx = x1 - x0;
+		final float dy = y1 - y0;
+		float t0 = 0f;
+		float t1 = 1f;
+		for (int edge = 0; edge < 4; edge++) {
+			// The part of the segment with p * t <= q lies on the inner side of the edge.
+			final float p, q;
+			switch (edge) {
+			case 0:
+				p = -dx;
+				q = x0 - left;
+				break;
+			case 1:
+				p = dx;
+				q = right - x0;
+				break;
+			case 2:
+				p = -dy;
+				q = y0 - top;
+				break;
+			default:
+				p = dy;
+				q = bottom - y0;
+				break;
+			}
+			if (p == 0f) {
+				if (q < 0f) {
+					return false;
+				}
+			} else if (p < 0f) {
+				t0 = Math.max(t0, q / p);
+			} else {
+				t1 = Math.min(t1, q / p);
+			}
+			if (t0 > t1) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int getWidth() {
+		return width;
+	}
+
+	@Override
+	public int getHeight() {
+		return height;
+	}
+
+	@Override
+	public void drawStroke(StrokeBuffer stroke, PaintDescriptor paint) {
+		final int count = touchStroke(stroke, paint);
+		for (int i = 0; i < count; i++) {
+			final int c = touchedColumn(i);
+			final int r = touchedRow(i);
+			Raster tile = tileForDrawing(c, r, paint);
+			if (tile != null) {
+				shiftedStroke.setShifted(stroke, -c * TILE_SIZE, -r * TILE_SIZE);
+				tile.drawStroke(shiftedStroke, paint);
+			}
+		}
+	}
+
+	@Override
+	public void drawPoints(float[] points, int count, PaintDescriptor paint) {
+		final float pad = paint.strokeWidth() * 0.75f + 2f;
+		beginTouch();
+		for (int i = 0; i < count; i++) {
+			touchSegment(points[i * 2], points[i * 2 + 1], points[i * 2], points[i * 2 + 1], pad);
+		}
+		if (shiftedPoints.length < count * 2) {
+			shiftedPoints = new float[count * 2];
+		}
+		for (int t = 0; t < touchedCount; t++) {
+			final int c = touchedColumn(t);
+			final int r = touchedRow(t);
+			Raster tile = tileForDrawing(c, r, paint);
+			if (tile == null) {
+				continue;
+			}
+			final float dx = c * TILE_SIZE;
+			final float dy = r * TILE_SIZE;
+			for (int i = 0; i < count; i++) {
+				shiftedPoints[i * 2] = points[i * 2] - dx;
+				shiftedPoints[i * 2 + 1] = points[i * 2 + 1] - dy;
+			}
+			tile.drawPoints(shiftedPoints, count, paint);
+		}
+	}
+
+	@Override
+	public void fill(PaintDescriptor paint) {
+		if (paint.isEraser()) {
+			eraseColor(0);
+			return;
+		}
+		for (int i = 0; i < tiles.length; i++) {
+			if (tiles[i] != null) {
+				tiles[i].fill(paint);
+			} else if (exists(i)) {
+				// Blend the stored copy rather than loading every tile of the canvas.
+				IntBuffer stored = storage(i);
+				final int count = tileBytes(i) / 4;
+				for (int p = 0; p < count; p++) {
+					stored.put(p, IntRaster.blend(stored.get(p), paint.color(), 0xFF));
+				}
+			}
+		}
+		background = IntRaster.blend(background, paint.color(), 0xFF);
+	}
+
+	/**
+	 * Free all tiles, the whole canvas reads as the color afterwards.
+	 */
+	@Override
+	public void eraseColor(int color) {
+		recycle();
+		background = color;
+	}
+
+	@Override
+	public int[] getContentRects() {
+		int[] rects = new int[tileCount * 4];
+		int i = 0;
+		for (int index = 0; index < tiles.length; index++) {
+			if (exists(index)) {
+				final int column = index % columns;
+				final int row = index / columns;
+				rects[i++] = column * TILE_SIZE;
+				rects[i++] = row * TILE_SIZE;
+				rects[i++] = tileWidth(column);
+				rects[i++] = tileHeight(row);
+			}
+		}
+		return rects;
+	}
+
+	@Override
+	public int getBackground() {
+		return background;
+	}
+
+	@Override
+	public void blit(Raster source, int x, int y) {
+		tileRange(x, y, x + source.getWidth(), y + source.getHeight());
+		for (int r = range[1]; r < range[3]; r++) {
+			for (int c = range[0]; c < range[2]; c++) {
+				final int index = r * columns + c;
+				Raster tile = exists(index) ? live(index) : null;
+				if (tile == null) {
+					allocate(index);
+					tile = tiles[index];
+				}
+				tile.blit(source, x - c * TILE_SIZE, y - r * TILE_SIZE);
+			}
+		}
+	}
+
+	@Override
+	public void getPixels(int[] pixels, int offset, int stride, int x, int y, int w, int h) {
+		checkBounds(x, y, w, h);
+		tileRange(x, y, x + w, y + h);
+		final int firstColumn = range[0], endColumn = range[2], endRow = range[3];
+		for (int r = range[1]; r < endRow; r++) {
+			final int top = Math.max(y, r * TILE_SIZE);
+			final int bottom = Math.min(y + h, (r + 1) * TILE_SIZE);
+			for (int c = firstColumn; c < endColumn; c++) {
+				final int left = Math.max(x, c * TILE_SIZE);
+				final int right = Math.min(x + w, (c + 1) * TILE_SIZE);
+				final int start = offset + (top - y) * stride + left - x;
+				final int index = r * columns + c;
+				if (tiles[index] != null) {
+					tiles[index].getPixels(pixels, start, stride, left - c * TILE_SIZE, top - r * TILE_SIZE,
+							right - left, bottom - top);
+				} else if (exists(index)) {
+					IntBuffer stored = storage(index);
+					final int tileStride = tileWidth(c);
+					for (int py = 0; py < bottom - top; py++) {
+						stored.position((top - r * TILE_SIZE + py) * tileStride + left - c * TILE_SIZE);
+						stored.get(pixels, start + py * stride, right - left);
+					}
+				} else {
+					for (int py = 0; py < bottom - top; py++) {
+						Arrays.fill(pixels, start + py * stride, start + py * stride + right - left, background);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Pixels equal to the background are not stored, tiles are only allocated where a pixel differs
+	 * and freed when all of their pixels are replaced with the background, for example by an undo.
+	 */
+	@Override
+	public void setPixels(int[] pixels, int offset, int stride, int x, int y, int w, int h) {
+		checkBounds(x, y, w, h);
+		tileRange(x, y, x + w, y + h);
+		final int firstColumn = range[0], endColumn = range[2], endRow = range[3];
+		for (int r = range[1]; r < endRow; r++) {
+			final int top = Math.max(y, r * TILE_SIZE);
+			final int bottom = Math.min(y + h, (r + 1) * TILE_SIZE);
+			for (int c = firstColumn; c < endColumn; c++) {
+				final int left = Math.max(x, c * TILE_SIZE);
+				final int right = Math.min(x + w, (c + 1) * TILE_SIZE);
+				final int start = offset + (top - y) * stride + left - x;
+				final int index = r * columns + c;
+				final boolean wholeTile = right - left == tileWidth(c) && bottom - top == tileHeight(r);
+				if ((!exists(index) || wholeTile) && isBackground(pixels, start, stride, right - left, bottom - top)) {
+					if (exists(index)) {
+						free(index);
+					}
+					continue;
+				}
+				Raster tile = exists(index) ? live(index) : null;
+				if (tile == null) {
+					allocate(index);
+					tile = tiles[index];
+				}
+				tile.setPixels(pixels, start, stride, left - c * TILE_SIZE, top - r * TILE_SIZE,
+						right - left, bottom - top);
+			}
+		}
+	}
+
+	private boolean isBackground(int[] pixels, int offset, int stride, int w, int h) {
+		for (int py = 0; py < h; py++) {
+			final int start = offset + py * stride;
+			for (int i = start; i < start + w; i++) {
+				if (pixels[i] != background) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return New empty TiledRaster with tiles of the same kind, sharing the TileCache.
+	 */
+	@Override
+	public Raster createCompatible(int w, int h) {
+		return new TiledRaster(w, h, prototype, cache);
+	}
+
+	/**
+	 * Free all tiles. Unlike other Rasters this one stays usable, drawing allocates new tiles.
+	 */
+	@Override
+	public void recycle() {
+		for (int i = 0; i < tiles.length; i++) {
+			release(i);
+		}
+		if (tileCount > 0 && cache != null) {
+			cache.leave();
+		}
+		tileCount = 0;
+		resetExtent();
+	}
+
+	private void checkBounds(int x, int y, int w, int h) {
+		if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+			throw new IllegalArgumentException("Rectangle outside of the raster");
+		}
+	}
+}
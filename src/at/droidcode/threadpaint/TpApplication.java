@@ -16,7 +16,15 @@
 
 package at.droidcode.threadpaint;
 
+import java.io.File;
+import java.util.HashMap;
+
 import android.app.Application;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapShader;
+import android.graphics.Shader;
+import at.droidcode.raster.TileCache;
 
 /**
  * This class is used to provide application global variables that need to be initialized on
@@ -26,14 +34,87 @@ public class TpApplication extends Application {
 	public static final String TAG = "THREADPAINT";
 
 	private static final int MAX_STROKE_WIDTH_DP = 200;
+	private static final String TILE_FILE = "tiles";
+	private static final long MAX_TILE_FILE_BYTES = 256 * 1024 * 1024;
+
+	// Values of ComponentCallbacks2, which is not available on all supported versions.
+	private static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+	private static final int TRIM_MEMORY_RUNNING_LOW = 10;
+	private static final int TRIM_MEMORY_UI_HIDDEN = 20;
+	private static final int TRIM_MEMORY_BACKGROUND = 40;
 
 	private int maxStrokeWidthPx;
+	private TileCache tileCache;
+	private final HashMap<Integer, Bitmap> bitmaps = new HashMap<Integer, Bitmap>(); // decoded once
+	private final HashMap<Integer, Shader> patterns = new HashMap<Integer, Shader>();
 
 	@Override
 	public void onCreate() {
 		super.onCreate();
 
 		maxStrokeWidthPx = Utils.dp2px(getApplicationContext(), MAX_STROKE_WIDTH_DP);
+
+		// Live tiles and buffered tiles may each take a quarter of the heap limit, the rest of the
+		// canvas goes to the page file.
+		final long budget = Runtime.getRuntime().maxMemory() / 4;
+		tileCache = new TileCache(budget, budget, new File(getCacheDir(), TILE_FILE), MAX_TILE_FILE_BYTES);
+	}
+
+	/**
+	 * Called by the system on API level 14 and later. Moves canvas tiles out of memory, all of them
+	 * once the UI is hidden. The tiles are moved by the render thread, this returns right away.
+	 */
+	@Override
+	public void onTrimMemory(int level) {
+		super.onTrimMemory(level);
+		if (level >= TRIM_MEMORY_BACKGROUND) {
+			tileCache.trimMemory(0, 0);
+		} else if (level >= TRIM_MEMORY_UI_HIDDEN) {
+			tileCache.trimMemory(0, tileCache.bufferBudget());
+		} else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+			tileCache.trimMemory(tileCache.liveBudget() / 2, tileCache.bufferBudget() / 2);
+		} else if (level >= TRIM_MEMORY_RUNNING_MODERATE) {
+			tileCache.trimMemory(tileCache.liveBudget() * 3 / 4, tileCache.bufferBudget() * 3 / 4);
+		}
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		tileCache.trimMemory(0, 0);
+	}
+
+	/**
+	 * @param id Drawable resource of a Bitmap.
+	 * @return Bitmap shared by all callers, decoded on first use. Must not be recycled or changed.
+	 */
+	public synchronized Bitmap bitmap(int id) {
+		Bitmap bitmap = bitmaps.get(id);
+		if (bitmap == null) {
+			bitmap = BitmapFactory.decodeResource(getResources(), id);
+			bitmaps.put(id, bitmap);
+		}
+		return bitmap;
+	}
+
+	/**
+	 * @param id Drawable resource of a Bitmap.
+	 * @return Shader repeating the Bitmap in both directions, shared by all callers.
+	 */
+	public synchronized Shader pattern(int id) {
+		Shader shader = patterns.get(id);
+		if (shader == null) {
+			shader = new BitmapShader(bitmap(id), Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
+			patterns.put(id, shader);
+		}
+		return shader;
+	}
+
+	/**
+	 * @return Memory budget of the canvas tiles.
+	 */
+	public TileCache tileCache() {
+		return tileCache;
 	}
 
 	/**
@@ -96,13 +96,22 @@ public class TpMainActivity extends Activity implements ToolButtonAnimator, Pref
 
 		TpPreferencesActivity.addCallbackForPreference(this, Preference.LOCKORIENTATION);
 		TpPreferencesActivity.addCallbackForPreference(this, Preference.MOVETHRESHOLD);
+		TpPreferencesActivity.addCallbackForPreference(this, Preference.TILEHISTORY);
+		TpPreferencesActivity.addCallbackForPreference(this, Preference.MAXFRAMERATE);
+		TpPreferencesActivity.addCallbackForPreference(this, Preference.PREDICTION);
+		TpPreferencesActivity.addCallbackForPreference(this, Preference.PREDICTIONHORIZON);
+		TpPreferencesActivity.addCallbackForPreference(this, Preference.TRACE);
+		TpPreferencesActivity.addCallbackForPreference(this, Preference.FILLTOLERANCE);
+		TpPreferencesActivity.addCallbackForPreference(this, Preference.FILLANTIALIAS);
+
+		paintView.restoreSession();
 	}
 
 	@Override
 	public void onDestroy() {
 		Log.w(TAG, "PaintView destroyed");
 		TpPreferencesActivity.removeCallback(this);
-		paintView.stopPaintThread();
+		paintView.stopPaintThread(!isFinishing());
 		super.onDestroy();
 	}
 
@@ -112,12 +121,6 @@ public class TpMainActivity extends Activity implements ToolButtonAnimator, Pref
 		paintView.saveState(b);
 	}
 
-	@Override
-	protected void onRestoreInstanceState(Bundle b) {
-		Log.d(TAG, "onRestoreInstanceState");
-		paintView.restoreState(b);
-	}
-
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
 		MenuInflater inflater = getMenuInflater();
@@ -167,7 +170,12 @@ public class TpMainActivity extends Activity implements ToolButtonAnimator, Pref
 			setSelectedBackground(buttonMove);
 			break;
 		case R.id.btn_tool_fill:
-			paintView.fillWithPaint();
+			if (paintView.selectedTool() == PaintView.Tool.FILL) {
+				paintView.fillWithPaint();
+			} else {
+				paintView.selectTool(PaintView.Tool.FILL);
+				setSelectedBackground(buttonFill);
+			}
 			break;
 		case R.id.btn_tool_erase:
 			paintView.selectTool(PaintView.Tool.ERASE);
@@ -286,7 +294,7 @@ public class TpMainActivity extends Activity implements ToolButtonAnimator, Pref
 	}
 
 	private void showSaveDialog() {
-		final SaveFileDialog dialog = new SaveFileDialog(this, paintView.getBitmap());
+		final SaveFileDialog dialog = new SaveFileDialog(this, paintView);
 		dialog.show();
 	}
 
@@ -307,6 +315,55 @@ public class TpMainActivity extends Activity implements ToolButtonAnimator, Pref
 			}
 			Log.d(TAG, "setMoveThreshold " + Float.toString(f));
 			paintView.setMoveThreshold(f);
+		} else if (key.equals(Preference.TILEHISTORY.key())) {
+			boolean tiles = preferences.getBoolean(key, false);
+			Log.d(TAG, "setTileHistory " + tiles);
+			paintView.setTileHistory(tiles);
+		} else if (key.equals(Preference.MAXFRAMERATE.key())) {
+			int fps = 0;
+			try {
+				fps = Integer.parseInt(preferences.getString(key, "0"));
+			} catch (NumberFormatException e) {
+				Log.e(TAG, "ERROR ", e);
+				CharSequence text = getResources().getString(R.string.toast_int_parse_error);
+				Toast.makeText(this, text, Toast.LENGTH_SHORT).show();
+			}
+			Log.d(TAG, "setMaxFrameRate " + fps);
+			paintView.setMaxFrameRate(fps);
+		} else if (key.equals(Preference.PREDICTION.key())) {
+			boolean prediction = preferences.getBoolean(key, false);
+			Log.d(TAG, "setPrediction " + prediction);
+			paintView.setPrediction(prediction);
+		} else if (key.equals(Preference.PREDICTIONHORIZON.key())) {
+			float ms = 16f;
+			try {
+				ms = Float.parseFloat(preferences.getString(key, "16"));
+			} catch (NumberFormatException e) {
+				Log.e(TAG, "ERROR ", e);
+				CharSequence text = getResources().getString(R.string.toast_float_parse_error);
+				Toast.makeText(this, text, Toast.LENGTH_SHORT).show();
+			}
+			Log.d(TAG, "setPredictionHorizon " + Float.toString(ms));
+			paintView.setPredictionHorizon(ms);
+		} else if (key.equals(Preference.TRACE.key())) {
+			boolean trace = preferences.getBoolean(key, false);
+			Log.d(TAG, "setTraceRecording " + trace);
+			paintView.setTraceRecording(trace);
+		} else if (key.equals(Preference.FILLTOLERANCE.key())) {
+			int tolerance = 32;
+			try {
+				tolerance = Integer.parseInt(preferences.getString(key, "32"));
+			} catch (NumberFormatException e) {
+				Log.e(TAG, "ERROR ", e);
+				CharSequence text = getResources().getString(R.string.toast_int_parse_error);
+				Toast.makeText(this, text, Toast.LENGTH_SHORT).show();
+			}
+			Log.d(TAG, "setFillTolerance " + tolerance);
+			paintView.setFillTolerance(tolerance);
+		} else if (key.equals(Preference.FILLANTIALIAS.key())) {
+			boolean antiAlias = preferences.getBoolean(key, true);
+			Log.d(TAG, "setFillAntiAlias " + antiAlias);
+			paintView.setFillAntiAlias(antiAlias);
 		}
 	}
 }
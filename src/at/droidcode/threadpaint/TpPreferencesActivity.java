@@ -30,7 +30,9 @@ import at.droidcode.threadpaint.api.PreferencesCallback;
 public class TpPreferencesActivity extends PreferenceActivity implements
 		OnSharedPreferenceChangeListener, PreferencesCallback {
 	public enum Preference {
-		LOCKORIENTATION("pref_orientation"), MOVETHRESHOLD("pref_movethreshold");
+		LOCKORIENTATION("pref_orientation"), MOVETHRESHOLD("pref_movethreshold"), TILEHISTORY("pref_tilehistory"),
+		MAXFRAMERATE("pref_maxfps"), PREDICTION("pref_prediction"), PREDICTIONHORIZON("pref_predictionhorizon"),
+		TRACE("pref_trace"), FILLTOLERANCE("pref_filltolerance"), FILLANTIALIAS("pref_fillantialias");
 		private final String key;
 
 		Preference(String k) {
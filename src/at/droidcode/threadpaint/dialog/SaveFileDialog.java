@@ -19,9 +19,10 @@ import android.widget.Toast;
 import at.droidcode.threadpaint.R;
 import at.droidcode.threadpaint.TpMainActivity;
 import at.droidcode.threadpaint.Utils.ToastRunnable;
+import at.droidcode.threadpaint.ui.PaintView;
 
 public class SaveFileDialog extends Dialog implements View.OnClickListener {
-	private final Bitmap bitmapToSave;
+	private final PaintView paintView;
 	private EditText editText;
 
 	private class SaveBitmapThread extends Thread {
@@ -39,8 +40,12 @@ public class SaveFileDialog extends Dialog implements View.OnClickListener {
 			if (Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
 				File file = new File(context.getExternalFilesDir(Environment.DIRECTORY_PICTURES), filename);
 				try {
+					// Copied here rather than on the UI thread, large canvases take a while.
+					Bitmap bitmap = paintView.getBitmap();
 					FileOutputStream fileOutputStream = new FileOutputStream(file);
-					bitmapToSave.compress(Bitmap.CompressFormat.PNG, QUALITY, fileOutputStream);
+					bitmap.compress(Bitmap.CompressFormat.PNG, QUALITY, fileOutputStream);
+					fileOutputStream.close();
+					bitmap.recycle();
 
 					String[] paths = new String[] { file.getAbsolutePath() };
 					MediaScannerConnection.scanFile(context, paths, null, null);
@@ -57,9 +62,9 @@ public class SaveFileDialog extends Dialog implements View.OnClickListener {
 		}
 	}
 
-	public SaveFileDialog(Context context, Bitmap bitmap) {
+	public SaveFileDialog(Context context, PaintView paintView) {
 		super(context);
-		bitmapToSave = bitmap;
+		this.paintView = paintView;
 	}
 
 	@Override
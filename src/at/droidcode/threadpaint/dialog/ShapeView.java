@@ -22,7 +22,6 @@
 package at.droidcode.threadpaint.dialog;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
@@ -34,6 +33,7 @@ import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.View;
 import at.droidcode.threadpaint.R;
+import at.droidcode.threadpaint.TpApplication;
 import at.droidcode.threadpaint.Utils;
 
 /**
@@ -93,10 +93,14 @@ public abstract class ShapeView extends View {
 		r += indicatorFrameWidth;
 		rectFrame = new RectF(-r, -r, r, r);
 
-		Bitmap checkerboard = BitmapFactory.decodeResource(c.getResources(), R.drawable.transparent);
-		BitmapShader shader = new BitmapShader(checkerboard, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
 		checkeredPattern = new Paint();
-		checkeredPattern.setShader(shader);
+		if (isInEditMode()) {
+			// The layout editor does not run TpApplication.
+			checkeredPattern.setShader(new BitmapShader(BitmapFactory.decodeResource(c.getResources(),
+					R.drawable.transparent), Shader.TileMode.REPEAT, Shader.TileMode.REPEAT));
+		} else {
+			checkeredPattern.setShader(((TpApplication) c.getApplicationContext()).pattern(R.drawable.transparent));
+		}
 	}
 
 	final int getCenterX() {
@@ -0,0 +1,201 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.threadpaint.ui;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Xfermode;
+import at.droidcode.raster.PaintDescriptor;
+import at.droidcode.raster.Raster;
+import at.droidcode.raster.StrokeBuffer;
+
+/**
+ * Raster that draws onto a Bitmap with the Android Canvas. Not thread safe, each thread that draws
+ * needs its own instance.
+ */
+public class AndroidRaster implements Raster {
+	private static final Xfermode ERASE_XFERMODE = new PorterDuffXfermode(PorterDuff.Mode.CLEAR);
+
+	private Bitmap bitmap;
+	private final Canvas canvas;
+	private final Paint paint;
+	private final Path path;
+	private int[] row; // for blitting Rasters that are not Bitmaps
+
+	/**
+	 * @param bitmap Mutable Bitmap to draw on, can be null until setBitmap() is called.
+	 */
+	public AndroidRaster(Bitmap bitmap) {
+		canvas = new Canvas();
+		paint = new Paint();
+		path = new Path();
+		row = new int[0];
+		setBitmap(bitmap);
+	}
+
+	/**
+	 * @param bitmap Mutable Bitmap to draw on from now on.
+	 */
+	public void setBitmap(Bitmap bitmap) {
+		this.bitmap = bitmap;
+		if (bitmap != null) {
+			canvas.setBitmap(bitmap);
+		}
+	}
+
+	public Bitmap bitmap() {
+		return bitmap;
+	}
+
+	/**
+	 * @return Bitmap-Canvas for drawing that has no Raster equivalent.
+	 */
+	public Canvas canvas() {
+		return canvas;
+	}
+
+	/**
+	 * @param paint Paint to take the attributes from. Any transfer mode is treated as the eraser,
+	 *            shaders are not kept.
+	 * @return Plain values of the Paint.
+	 */
+	public static PaintDescriptor describe(Paint paint) {
+		return new PaintDescriptor(paint.getColor(), paint.getStrokeWidth(),
+				PaintDescriptor.Cap.values()[paint.getStrokeCap().ordinal()],
+				PaintDescriptor.Join.values()[paint.getStrokeJoin().ordinal()],
+				PaintDescriptor.Style.values()[paint.getStyle().ordinal()], paint.isAntiAlias(), paint.isDither(),
+				paint.getXfermode() != null);
+	}
+
+	/**
+	 * Reset the Paint and set the attributes of the descriptor.
+	 * 
+	 * @param descriptor Attributes to set.
+	 * @param paint Paint to modify.
+	 */
+	public static void apply(PaintDescriptor descriptor, Paint paint) {
+		paint.reset();
+		paint.setColor(descriptor.color());
+		paint.setStrokeWidth(descriptor.strokeWidth());
+		paint.setStrokeCap(Paint.Cap.values()[descriptor.cap().ordinal()]);
+		paint.setStrokeJoin(Paint.Join.values()[descriptor.join().ordinal()]);
+		paint.setStyle(Paint.Style.values()[descriptor.style().ordinal()]);
+		paint.setAntiAlias(descriptor.isAntiAlias());
+		paint.setDither(descriptor.isDither());
+		paint.setXfermode(descriptor.isEraser() ? ERASE_XFERMODE : null);
+	}
+
+	@Override
+	public int getWidth() {
+		return bitmap.getWidth();
+	}
+
+	@Override
+	public int getHeight() {
+		return bitmap.getHeight();
+	}
+
+	@Override
+	public void drawStroke(StrokeBuffer stroke, PaintDescriptor descriptor) {
+		final int size = stroke.size();
+		if (size == 0) {
+			return;
+		}
+		path.rewind();
+		path.moveTo(stroke.x(0), stroke.y(0));
+		for (int i = 1; i < size; i++) {
+			final float x = stroke.x(i);
+			final float y = stroke.y(i);
+			path.quadTo((stroke.x(i - 1) + x) / 2f, (stroke.y(i - 1) + y) / 2f, x, y);
+		}
+		apply(descriptor, paint);
+		canvas.drawPath(path, paint);
+	}
+
+	@Override
+	public void drawPoints(float[] points, int count, PaintDescriptor descriptor) {
+		apply(descriptor, paint);
+		if (count == 1) {
+			canvas.drawPoint(points[0], points[1], paint);
+		} else {
+			canvas.drawPoints(points, 0, count * 2, paint);
+		}
+	}
+
+	@Override
+	public void fill(PaintDescriptor descriptor) {
+		apply(descriptor, paint);
+		canvas.drawPaint(paint);
+	}
+
+	@Override
+	public void eraseColor(int color) {
+		bitmap.eraseColor(color);
+	}
+
+	@Override
+	public int[] getContentRects() {
+		return new int[] { 0, 0, bitmap.getWidth(), bitmap.getHeight() };
+	}
+
+	@Override
+	public int getBackground() {
+		return Color.TRANSPARENT;
+	}
+
+	@Override
+	public void blit(Raster source, int x, int y) {
+		if (source instanceof AndroidRaster) {
+			canvas.drawBitmap(((AndroidRaster) source).bitmap, x, y, null);
+			return;
+		}
+		final int w = source.getWidth();
+		if (row.length < w) {
+			row = new int[w];
+		}
+		for (int r = 0; r < source.getHeight(); r++) {
+			source.getPixels(row, 0, w, 0, r, w, 1);
+			canvas.drawBitmap(row, 0, w, x, y + r, w, 1, true, null);
+		}
+	}
+
+	@Override
+	public void getPixels(int[] pixels, int offset, int stride, int x, int y, int w, int h) {
+		bitmap.getPixels(pixels, offset, stride, x, y, w, h);
+	}
+
+	@Override
+	public void setPixels(int[] pixels, int offset, int stride, int x, int y, int w, int h) {
+		bitmap.setPixels(pixels, offset, stride, x, y, w, h);
+	}
+
+	@Override
+	public Raster createCompatible(int w, int h) {
+		return new AndroidRaster(Bitmap.createBitmap(w, h, Config.ARGB_8888));
+	}
+
+	@Override
+	public void recycle() {
+		bitmap.recycle();
+	}
+}
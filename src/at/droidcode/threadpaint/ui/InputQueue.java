@@ -0,0 +1,272 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.threadpaint.ui;
+
+/**
+ * Ring buffer of input records for exactly one producer, the UI thread, and one consumer, the
+ * render thread. Records are stored in preallocated parallel arrays, so posting an event does not
+ * allocate. Each side only writes its own index, which is volatile and orders the record fields
+ * before it.
+ * <p>
+ * The producer never waits. If the consumer falls a whole ring behind, records go to an overflow
+ * list guarded by a lock instead, where consecutive move samples are merged into the newest one.
+ * The consumer reads the overflow once the ring is empty, so no stroke or command is lost.
+ */
+final class InputQueue {
+	static final int START_PATH = 0;
+	static final int UPDATE_PATH = 1;
+	static final int FINISH_PATH = 2;
+	static final int DRAW_POINT = 3;
+	static final int SCROLL = 4;
+	static final int ZOOM = 5;
+	static final int FILL = 6;
+	static final int UNDO = 7;
+	static final int REDO = 8;
+	static final int GESTURE_START = 9;
+	static final int GESTURE_END = 10;
+	static final int FLOOD_FILL = 11;
+	static final int COLOR = 12; // value is the ARGB color
+	static final int CAP = 13; // value is the ordinal of the Paint.Cap
+	static final int STROKE_WIDTH = 14; // value is the width in pixels
+
+	private final int capacity;
+	private final int mask;
+	private final int[] types;
+	private final float[] xs;
+	private final float[] ys;
+	private final float[] pressures;
+	private final long[] times;
+	private final int[] values;
+	private volatile int head; // next record to read, written by the consumer
+	private volatile int tail; // next record to write, written by the producer
+
+	private final Object overflowLock = new Object();
+	private volatile int overflowSize; // records in the overflow, written holding overflowLock
+	private int[] overflowTypes = new int[0];
+	private float[] overflowXs = new float[0];
+	private float[] overflowYs = new float[0];
+	private float[] overflowPressures = new float[0];
+	private long[] overflowTimes = new long[0];
+	private int[] overflowValues = new int[0];
+
+	private boolean held; // the consumer took the oldest record out of the overflow
+	private int heldType;
+	private float heldX;
+	private float heldY;
+	private float heldPressure;
+	private long heldTime;
+	private int heldValue;
+
+	/**
+	 * @param capacityBits Log2 of the number of records.
+	 */
+	InputQueue(int capacityBits) {
+		capacity = 1 << capacityBits;
+		mask = capacity - 1;
+		types = new int[capacity];
+		xs = new float[capacity];
+		ys = new float[capacity];
+		pressures = new float[capacity];
+		times = new long[capacity];
+		values = new int[capacity];
+	}
+
+	/**
+	 * Producer only. Append a record to the ring if there is room.
+	 * 
+	 * @return False if the ring is full.
+	 */
+	private boolean offer(int type, float x, float y, float pressure, long time, int value) {
+		final int t = tail;
+		if (t - head == capacity) {
+			return false;
+		}
+		final int i = t & mask;
+		types[i] = type;
+		xs[i] = x;
+		ys[i] = y;
+		pressures[i] = pressure;
+		times[i] = time;
+		values[i] = value;
+		tail = t + 1;
+		return true;
+	}
+
+	/**
+	 * Producer only. Append a record without waiting. If the ring is full the record goes to the
+	 * overflow, a move sample replaces a move sample that is the newest record there.
+	 */
+	void put(int type, float x, float y, float pressure, long time) {
+		put(type, x, y, pressure, time, 0);
+	}
+
+	/**
+	 * Producer only. Append a record carrying an int, like a color.
+	 */
+	void put(int type, int value, long time) {
+		put(type, 0f, 0f, 1f, time, value);
+	}
+
+	private void put(int type, float x, float y, float pressure, long time, int value) {
+		if (overflowSize == 0 && offer(type, x, y, pressure, time, value)) {
+			return;
+		}
+		synchronized (overflowLock) {
+			// Move what fits back into the ring, the overflow holds the newest records.
+			int moved = 0;
+			while (moved < overflowSize
+					&& offer(overflowTypes[moved], overflowXs[moved], overflowYs[moved], overflowPressures[moved],
+							overflowTimes[moved], overflowValues[moved])) {
+				moved++;
+			}
+			removeOverflow(moved);
+			if (overflowSize == 0 && offer(type, x, y, pressure, time, value)) {
+				return;
+			}
+			final int last = overflowSize - 1;
+			if (type == UPDATE_PATH && last >= 0 && overflowTypes[last] == UPDATE_PATH) {
+				overflowXs[last] = x;
+				overflowYs[last] = y;
+				overflowPressures[last] = pressure;
+				overflowTimes[last] = time;
+				return;
+			}
+			if (overflowSize == overflowTypes.length) {
+				growOverflow();
+			}
+			overflowTypes[overflowSize] = type;
+			overflowXs[overflowSize] = x;
+			overflowYs[overflowSize] = y;
+			overflowPressures[overflowSize] = pressure;
+			overflowTimes[overflowSize] = time;
+			overflowValues[overflowSize] = value;
+			overflowSize++;
+		}
+	}
+
+	/**
+	 * Caller must hold overflowLock.
+	 */
+	private void growOverflow() {
+		final int size = Math.max(16, overflowTypes.length * 2);
+		int[] types = new int[size];
+		float[] xs = new float[size];
+		float[] ys = new float[size];
+		float[] pressures = new float[size];
+		long[] times = new long[size];
+		int[] values = new int[size];
+		System.arraycopy(overflowTypes, 0, types, 0, overflowSize);
+		System.arraycopy(overflowXs, 0, xs, 0, overflowSize);
+		System.arraycopy(overflowYs, 0, ys, 0, overflowSize);
+		System.arraycopy(overflowPressures, 0, pressures, 0, overflowSize);
+		System.arraycopy(overflowTimes, 0, times, 0, overflowSize);
+		System.arraycopy(overflowValues, 0, values, 0, overflowSize);
+		overflowTypes = types;
+		overflowXs = xs;
+		overflowYs = ys;
+		overflowPressures = pressures;
+		overflowTimes = times;
+		overflowValues = values;
+	}
+
+	/**
+	 * Caller must hold overflowLock. Drop the oldest records of the overflow.
+	 */
+	private void removeOverflow(int count) {
+		if (count == 0) {
+			return;
+		}
+		final int rest = overflowSize - count;
+		System.arraycopy(overflowTypes, count, overflowTypes, 0, rest);
+		System.arraycopy(overflowXs, count, overflowXs, 0, rest);
+		System.arraycopy(overflowYs, count, overflowYs, 0, rest);
+		System.arraycopy(overflowPressures, count, overflowPressures, 0, rest);
+		System.arraycopy(overflowTimes, count, overflowTimes, 0, rest);
+		System.arraycopy(overflowValues, count, overflowValues, 0, rest);
+		overflowSize = rest;
+	}
+
+	/**
+	 * Consumer only.
+	 * 
+	 * @return Type of the oldest record, or -1 if the queue is empty.
+	 */
+	int peek() {
+		if (held) {
+			return heldType;
+		}
+		final int h = head;
+		if (h != tail) {
+			return types[h & mask];
+		}
+		if (overflowSize == 0) {
+			return -1;
+		}
+		synchronized (overflowLock) {
+			if (head != tail) {
+				// The producer moved the overflow into the ring meanwhile.
+				return types[head & mask];
+			}
+			if (overflowSize == 0) {
+				return -1;
+			}
+			heldType = overflowTypes[0];
+			heldX = overflowXs[0];
+			heldY = overflowYs[0];
+			heldPressure = overflowPressures[0];
+			heldTime = overflowTimes[0];
+			heldValue = overflowValues[0];
+			removeOverflow(1);
+		}
+		held = true;
+		return heldType;
+	}
+
+	/**
+	 * Consumer only. Fields of the oldest record, only valid after peek() returned a type.
+	 */
+	float x() {
+		return held ? heldX : xs[head & mask];
+	}
+
+	float y() {
+		return held ? heldY : ys[head & mask];
+	}
+
+	float pressure() {
+		return held ? heldPressure : pressures[head & mask];
+	}
+
+	long time() {
+		return held ? heldTime : times[head & mask];
+	}
+
+	int value() {
+		return held ? heldValue : values[head & mask];
+	}
+
+	/**
+	 * Consumer only. Release the oldest record to the producer.
+	 */
+	void remove() {
+		if (held) {
+			held = false;
+		} else {
+			head = head + 1;
+		}
+	}
+}
@@ -16,10 +16,11 @@
 
 package at.droidcode.threadpaint.ui;
 
+import java.io.File;
+import java.util.List;
+
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
-import android.graphics.BitmapFactory;
-import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -30,45 +31,208 @@ import android.graphics.PointF;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
-import android.graphics.Shader;
 import android.graphics.Xfermode;
+import android.os.SystemClock;
 import android.util.Log;
+import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import at.droidcode.commands.Command;
+import at.droidcode.commands.CommandJournal;
 import at.droidcode.commands.CommandManager;
+import at.droidcode.raster.FillMask;
+import at.droidcode.raster.FloodFill;
+import at.droidcode.raster.PaintDescriptor;
+import at.droidcode.raster.StrokeBuffer;
+import at.droidcode.raster.TileCache;
+import at.droidcode.raster.TiledRaster;
 import at.droidcode.threadpaint.R;
 import at.droidcode.threadpaint.TpApplication;
 import at.droidcode.threadpaint.dialog.BrushPickerDialog;
 import at.droidcode.threadpaint.dialog.ColorPickerDialog;
+import at.droidcode.trace.TraceWriter;
 
 /**
  * Draws Paint on the PaintView's surface using a Thread.
  */
 public class PaintRunner extends TpRunner implements ColorPickerDialog.OnPaintChangedListener,
 		BrushPickerDialog.OnBrushChangedListener {
+	private static final String HISTORY_FILE = "history";
+	private static final long MAX_HISTORY_FILE_BYTES = 64 * 1024 * 1024;
+	private static final String JOURNAL_FILE = "journal";
+	private static final long JOURNAL_SYNC_MILLIS = 200; // onPause and onDestroy must not stall on a slow device
+	private static final int INPUT_QUEUE_BITS = 9; // 512 records, several seconds of touch input
+	private static final int CANVAS_SIZE = 1 << 15; // tiles are only allocated where someone painted
+	private static final float MIN_ZOOM = 1f / (1 << TileMipmap.MAX_LEVEL);
+	private static final long FRAME_BUDGET_NANOS = 16666667L; // 60 frames per second
+	private static final int SLOW_FRAMES = 3; // consecutive frames over budget before quality drops
+	private static final int MIN_PROXY_DOWNSCALE = 2;
+	private static final int MAX_PROXY_DOWNSCALE = 8;
+	private static final long MAX_EXPORT_PIXELS = 4096 * 4096;
 
-	private Bitmap drawingBitmap;
+	private TiledRaster drawingRaster; // Bitmap tiles, commands are drawn onto it
+	private TiledRaster backRaster; // undo and redo are rebuilt into it, then swapped
+	private TileMipmap mipmap; // downscaled drawingRaster, for zoom levels below 1
+	private int gestures; // pinch and move gestures in progress, the proxy is drawn meanwhile
+	private Bitmap proxy; // downscaled composite of the canvas around the view
+	private final Canvas proxyCanvas;
+	private final Rect proxyRect; // canvas area the proxy covers
+	private boolean proxyStale; // build the proxy again before drawing it
+	private boolean proxyBuilt; // the current frame built the proxy, its time is not measured
+	private int proxyDownscale; // surface pixels per proxy pixel, the quality tier of gestures
+	private int slowFrames;
+	private long slowestGestureFrame;
+	private Bitmap composite; // checkered pattern and tiles as the surface shows them
+	private final Canvas compositeCanvas;
+	private final Rect compositeDirty; // surface area of the composite to draw again
+	private float compositeZoom; // viewport the composite was drawn for
+	private final Point compositeScroll;
 	private final Path pathToDraw;
-	private final Canvas bitmapCanvas;
+	private final StrokeBuffer strokeToDraw; // samples of pathToDraw, as recorded by commands
+	private Bitmap strokeLayer; // coverage of the stroke in progress, segments are added once
+	private final Point strokeLayerOrigin; // canvas position of the layer, the visible area
+	private final Canvas strokeLayerCanvas;
+	private final Paint strokeLayerPaint; // opaque copy of the brush, only draws coverage
+	private final Paint strokeMergePaint; // brush used to merge the layer into the Bitmap
+	private final Path segmentPath;
+	private boolean strokeLayerActive; // the stroke in progress is drawn from strokeLayer
+	private final Runnable mergeStrokeLayer;
+	private final StrokePredictor predictor;
+	private final float[] prediction; // predicted x, y of the stroke, only drawn on the surface
+	private final PointF predictionStart; // last sample when the prediction was made
+	private boolean hasPrediction;
+	private final Path predictionPath;
 	private final Rect rectSurface;
-	private final Rect rectBitmap;
+	private final Rect scrollBounds; // canvas area scrolling stays in
+	private final Rect visibleRect;
+	private final Rect tileSrc; // part of a tile within visibleRect
+	private final Rect tileDst;
+	private final Paint filterPaint; // for tiles drawn at less than their size
+	private final Rect dirtyRect; // screen area to redraw in the next frame
+	private final int[] changedBounds;
+	private final int[] contentBounds;
+	private boolean fullRedraw; // redraw the whole surface in the next frame
 	private final PointF surfaceCenter;
 	private final Point scroll;
-	private float zoom;
+	private volatile float zoom; // read by the UI thread
+	private final Paint selectedPaint; // paint the user chose, read and written by the UI thread
 	private final Paint bitmapPathPaint; // only to draw onto the Bitmap
 	private final Paint canvasPathPaint; // only to draw onto the Canvas of the PaintView
 	private final Paint checkeredPattern;
+	private final Paint backgroundPaint; // color of missing tiles after the canvas was filled
 	private final Xfermode eraseXfermode;
 	private final SurfaceHolder surfaceHolder;
+	private final TileCache tileCache;
+	private final TileCache.TrimListener trimTiles; // moves tiles out when the system is low on memory
 	private final CommandManager commandManager;
+	private final CommandJournal journal;
+	private final File journalFile;
+	private int canvasGeneration; // guarded by pThread, counts canvases replaced on purpose
+	private boolean stopped; // guarded by pThread
+	private final ReplayThread replayThread;
+	private final InputQueue inputQueue; // written by the UI thread, drained by the render thread
+	private final FloodFill floodFill;
+	private volatile int fillTolerance;
+	private volatile boolean fillAntiAlias;
+	private volatile TraceWriter trace; // null unless input is recorded
+
+	/**
+	 * Rebuilds undone or redone states into the back buffer while the surface keeps showing the
+	 * drawing Raster. A new request cancels the replay in progress and starts over.
+	 */
+	private class ReplayThread extends Thread {
+		private volatile int requested; // generation of the latest request
+		private int completed; // generation that was swapped in or cancelled
+		private boolean quit;
+
+		ReplayThread() {
+			setDaemon(true);
+		}
+
+		synchronized void request() {
+			requested++;
+			notifyAll();
+		}
+
+		/**
+		 * Discard the replay in progress without swapping it in.
+		 */
+		synchronized void cancel() {
+			requested++;
+			completed = requested;
+			notifyAll();
+		}
+
+		synchronized void quit() {
+			quit = true;
+			cancel();
+		}
+
+		synchronized boolean busy() {
+			return completed != requested;
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				int generation;
+				synchronized (this) {
+					while (!quit && completed == requested) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							Log.e(TpApplication.TAG, "ERROR ", e);
+						}
+					}
+					if (quit) {
+						return;
+					}
+					generation = requested;
+				}
+				TiledRaster target = prepareBackBuffer();
+				List<Command> commands = commandManager.beginReplay(target);
+				boolean cancelled = false;
+				for (int i = 0; i < commands.size() && !cancelled; i++) {
+					commands.get(i).draw(target);
+					cancelled = generation != requested;
+				}
+				if (!cancelled) {
+					synchronized (pThread) {
+						synchronized (this) {
+							if (generation == requested) {
+								swapBackBuffer();
+								completed = generation;
+								notifyAll();
+							}
+						}
+					}
+				}
+			}
+		}
+	}
 
 	private class DrawLoop implements Runnable {
 		@Override
 		public void run() {
+			drainInput();
+			if (!fullRedraw && dirtyRect.isEmpty()) {
+				return;
+			}
 			Canvas canvas = null;
 			try {
-				canvas = surfaceHolder.lockCanvas();
+				if (fullRedraw) {
+					canvas = surfaceHolder.lockCanvas();
+				} else {
+					// The surface may enlarge the Rect, the returned Canvas is clipped to it.
+					canvas = surfaceHolder.lockCanvas(dirtyRect);
+				}
+				fullRedraw = false;
+				dirtyRect.setEmpty();
+				final long start = System.nanoTime();
 				doDraw(canvas);
+				if (gestures > 0 && !proxyBuilt) {
+					measureGestureFrame(System.nanoTime() - start);
+				}
+				proxyBuilt = false;
 			} finally {
 				if (canvas != null) {
 					surfaceHolder.unlockCanvasAndPost(canvas);
@@ -85,14 +249,73 @@ public class PaintRunner extends TpRunner implements ColorPickerDialog.OnPaintCh
 
 		pathToDraw = new Path();
 		pathToDraw.incReserve(42); // might be more efficient
-		bitmapCanvas = new Canvas();
+		strokeToDraw = new StrokeBuffer(128);
+		strokeLayerOrigin = new Point();
+		strokeLayerCanvas = new Canvas();
+		strokeLayerPaint = new Paint();
+		strokeMergePaint = new Paint();
+		segmentPath = new Path();
+		predictor = new StrokePredictor();
+		prediction = new float[2];
+		predictionStart = new PointF();
+		predictionPath = new Path();
+		mergeStrokeLayer = new Runnable() {
+			@Override
+			public void run() {
+				mergeStrokeLayer();
+			}
+		};
 		rectSurface = new Rect();
-		rectBitmap = new Rect();
+		scrollBounds = new Rect();
+		visibleRect = new Rect();
+		tileSrc = new Rect();
+		tileDst = new Rect();
+		filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		proxyCanvas = new Canvas();
+		proxyRect = new Rect();
+		proxyDownscale = MIN_PROXY_DOWNSCALE;
+		compositeCanvas = new Canvas();
+		compositeDirty = new Rect();
+		compositeScroll = new Point();
+		dirtyRect = new Rect();
+		changedBounds = new int[4];
+		contentBounds = new int[4];
+		fullRedraw = true;
 		surfaceCenter = new PointF();
 		scroll = new Point(0, 0);
 		zoom = 1f;
 
 		final TpApplication appContext = (TpApplication) paintView.getContext().getApplicationContext();
+		tileCache = appContext.tileCache();
+		trimTiles = new TileCache.TrimListener() {
+			@Override
+			public void trimTiles(final long liveBytes, final long bufferBytes) {
+				post(new Runnable() {
+					@Override
+					public void run() {
+						if (drawingRaster != null) {
+							drawingRaster.trim(liveBytes, bufferBytes);
+						}
+						if (mipmap != null) {
+							mipmap.recycle();
+						}
+						recycleProxy();
+						recycleComposite();
+					}
+				});
+			}
+		};
+		tileCache.addTrimListener(trimTiles);
+		final File historyFile = new File(appContext.getCacheDir(), HISTORY_FILE);
+		post(new Runnable() {
+			@Override
+			public void run() {
+				// Truncating a large file left by the last session takes a while.
+				commandManager.setSpillFile(historyFile, MAX_HISTORY_FILE_BYTES);
+			}
+		});
+		journalFile = new File(appContext.getFilesDir(), JOURNAL_FILE);
+		journal = new CommandJournal(journalFile); // journaling starts once restoreSession() is done
 
 		final int color = appContext.getResources().getColor(R.color.stroke_standard);
 		bitmapPathPaint = new Paint();
@@ -104,43 +327,457 @@ public class PaintRunner extends TpRunner implements ColorPickerDialog.OnPaintCh
 		bitmapPathPaint.setStrokeCap(Paint.Cap.ROUND);
 		bitmapPathPaint.setStrokeWidth(appContext.maxStrokeWidth() / 2);
 		canvasPathPaint = new Paint(bitmapPathPaint);
+		selectedPaint = new Paint(bitmapPathPaint);
 
-		Bitmap checkerboard = BitmapFactory.decodeResource(appContext.getResources(), R.drawable.transparent);
-		BitmapShader shader = new BitmapShader(checkerboard, Shader.TileMode.REPEAT, Shader.TileMode.REPEAT);
 		checkeredPattern = new Paint();
-		checkeredPattern.setShader(shader);
+		checkeredPattern.setShader(appContext.pattern(R.drawable.transparent));
+		backgroundPaint = new Paint();
 
 		eraseXfermode = new PorterDuffXfermode(PorterDuff.Mode.CLEAR);
+
+		replayThread = new ReplayThread();
+		replayThread.start();
+		inputQueue = new InputQueue(INPUT_QUEUE_BITS);
+		floodFill = new FloodFill();
+		// The tiles take half of the heap limit, a fill gets a share of the rest.
+		floodFill.setMaxBytes(Runtime.getRuntime().maxMemory() / 16);
+		fillTolerance = 32;
+		fillAntiAlias = true;
 	}
 
 	/**
-	 * Stop the internal Thread, clear the Command Manager and Bitmap.
+	 * Stop the internal Thread, clear the Command Manager and canvas. The journal is kept so the
+	 * session can be restored.
 	 */
 	@Override
 	public synchronized void stop() {
+		stop(true);
+	}
+
+	/**
+	 * Stop the internal Thread, clear the Command Manager and canvas.
+	 * 
+	 * @param keepJournal False to delete the journal because the session ended on purpose.
+	 */
+	public synchronized void stop(boolean keepJournal) {
+		synchronized (pThread) {
+			stopped = true;
+		}
 		super.stop();
+		commandManager.setJournal(null);
+		journal.close(!keepJournal, JOURNAL_SYNC_MILLIS);
+		setTrace(null);
+		replayThread.quit();
+		try {
+			replayThread.join();
+		} catch (InterruptedException e) {
+			Log.e(TpApplication.TAG, "ERROR ", e);
+		}
 		commandManager.clear();
-		drawingBitmap.recycle();
-		drawingBitmap = null;
+		commandManager.setSpillFile(null, 0);
+		tileCache.removeTrimListener(trimTiles);
+		drawingRaster.recycle();
+		drawingRaster = null;
+		if (mipmap != null) {
+			mipmap.recycle();
+			mipmap = null;
+		}
+		recycleProxy();
+		recycleComposite();
+		recycleBackBuffer();
+		if (strokeLayer != null) {
+			strokeLayer.recycle();
+			strokeLayer = null;
+		}
 	}
 
 	/**
-	 * Called by the Thread to transform the canvas, draw the background, bitmap and the unfinished
-	 * Path.
+	 * Called by the ReplayThread. Allocates the back buffer if it is missing or has the wrong size.
+	 */
+	private TiledRaster prepareBackBuffer() {
+		synchronized (pThread) {
+			if (backRaster == null || backRaster.getWidth() != drawingRaster.getWidth()
+					|| backRaster.getHeight() != drawingRaster.getHeight()) {
+				recycleBackBuffer();
+				backRaster = (TiledRaster) drawingRaster.createCompatible(drawingRaster.getWidth(),
+						drawingRaster.getHeight());
+			}
+			return backRaster;
+		}
+	}
+
+	/**
+	 * Show the rebuilt back buffer and keep the former drawing Raster as the next back buffer. Its
+	 * tiles are freed right away, the next replay starts from an empty canvas anyway. Caller must
+	 * hold the pThread monitor.
+	 */
+	private void swapBackBuffer() {
+		TiledRaster raster = drawingRaster;
+		drawingRaster = backRaster;
+		backRaster = raster;
+		backRaster.recycle();
+		commandManager.setWorkingRaster(drawingRaster);
+		proxyStale = true;
+		compositeDirty.set(rectSurface);
+		invalidate();
+	}
+
+	private void recycleBackBuffer() {
+		if (backRaster != null) {
+			backRaster.recycle();
+			backRaster = null;
+		}
+	}
+
+	/**
+	 * @return Empty canvas of Bitmap tiles.
+	 */
+	private TiledRaster newCanvas() {
+		return new TiledRaster(CANVAS_SIZE, CANVAS_SIZE, new AndroidRaster(null), tileCache);
+	}
+
+	/**
+	 * Show another canvas and free the current one. Caller must hold the pThread monitor.
+	 */
+	private void replaceCanvas(TiledRaster raster) {
+		if (drawingRaster != null) {
+			drawingRaster.recycle();
+		}
+		resetPerspective();
+		drawingRaster = raster;
+		proxyStale = true;
+		compositeDirty.set(rectSurface);
+	}
+
+	/**
+	 * Start or resume the internal Thread. A recreated surface has to be redrawn completely.
+	 */
+	@Override
+	public synchronized void start() {
+		invalidate();
+		super.start();
+	}
+
+	/**
+	 * Redraw the whole surface in the next frame.
+	 */
+	private void invalidate() {
+		synchronized (pThread) {
+			fullRedraw = true;
+			requestFrame();
+		}
+	}
+
+	/**
+	 * Redraw the area of a stroke segment in the next frame.
+	 * 
+	 * @param x1 X-Coordinate of the segment start on the Bitmap.
+	 * @param y1 Y-Coordinate of the segment start on the Bitmap.
+	 * @param x2 X-Coordinate of the segment end on the Bitmap.
+	 * @param y2 Y-Coordinate of the segment end on the Bitmap.
+	 */
+	private void invalidateStroke(float x1, float y1, float x2, float y2) {
+		// Same padding as the command bounds: caps, joins and anti-aliasing.
+		final float pad = canvasPathPaint.getStrokeWidth() * 0.75f + 2f;
+		invalidateBitmapArea(Math.min(x1, x2) - pad, Math.min(y1, y2) - pad, Math.max(x1, x2) + pad,
+				Math.max(y1, y2) + pad);
+	}
+
+	/**
+	 * Redraw the area commits, undos and redos changed in the next frame.
+	 */
+	private void invalidateChanges() {
+		synchronized (pThread) {
+			if (commandManager.takeChangedBounds(changedBounds)) {
+				mipmap().invalidate(changedBounds[0], changedBounds[1], changedBounds[2], changedBounds[3]);
+				proxyStale = true;
+				final Rect area = surfaceArea(changedBounds[0], changedBounds[1], changedBounds[2], changedBounds[3]);
+				compositeDirty.union(area);
+				dirtyRect.union(area);
+				requestFrame();
+			}
+		}
+	}
+
+	/**
+	 * Redraw an area given in Bitmap coordinates in the next frame.
+	 */
+	private void invalidateBitmapArea(float left, float top, float right, float bottom) {
+		synchronized (pThread) {
+			dirtyRect.union(surfaceArea(left, top, right, bottom));
+			requestFrame();
+		}
+	}
+
+	private final Rect surfaceArea = new Rect();
+
+	/**
+	 * @return Surface pixels covering an area given in Bitmap coordinates, valid until the next call.
+	 */
+	private Rect surfaceArea(float left, float top, float right, float bottom) {
+		// Inverse of translate(): the surface Canvas is scaled around the center, then scrolled.
+		final float dx = (scroll.x - surfaceCenter.x) * zoom + surfaceCenter.x;
+		final float dy = (scroll.y - surfaceCenter.y) * zoom + surfaceCenter.y;
+		surfaceArea.set((int) Math.floor(left * zoom + dx), (int) Math.floor(top * zoom + dy),
+				(int) Math.ceil(right * zoom + dx) + 1, (int) Math.ceil(bottom * zoom + dy) + 1);
+		return surfaceArea;
+	}
+
+	/**
+	 * Called by the Thread to draw the background and tiles from the composite, transform the canvas
+	 * and draw the unfinished Path. While a gesture moves the picture, the proxy is drawn instead.
 	 * 
 	 * @param canvas SurfaceHolder's Canvas onto which the thread draws.
 	 */
 	private void doDraw(Canvas canvas) {
-		// canvas.scale(zoom, zoom);
+		if (gestures == 0) {
+			updateComposite();
+			canvas.drawBitmap(composite, 0, 0, null);
+		}
+		applyViewport(canvas);
+		if (gestures > 0) {
+			if (proxyStale) {
+				buildProxy();
+			}
+			canvas.drawPaint(checkeredPattern);
+			// Unfiltered, the picture is moving anyway.
+			canvas.drawBitmap(proxy, null, proxyRect, null);
+		}
+		if (strokeLayerActive) {
+			// An alpha-only Bitmap is drawn with the color or shader of the Paint.
+			canvas.drawBitmap(strokeLayer, strokeLayerOrigin.x, strokeLayerOrigin.y, canvasPathPaint);
+		} else {
+			canvas.drawPath(pathToDraw, canvasPathPaint);
+		}
+		if (hasPrediction) {
+			predictionPath.rewind();
+			predictionPath.moveTo(predictionStart.x, predictionStart.y);
+			predictionPath.lineTo(prediction[0], prediction[1]);
+			canvas.drawPath(predictionPath, canvasPathPaint);
+		}
+	}
+
+	/**
+	 * Draw the part of the allocated tiles within the clip bounds. Missing tiles show the checkered
+	 * pattern, or the background color once the canvas was filled. Zoomed out, the tiles come from the
+	 * mipmap level closest to the zoom, so a frame never reads more pixels than about twice the
+	 * surface.
+	 * 
+	 * @param canvas Canvas transformed to canvas coordinates.
+	 * @param scale Surface pixels per canvas pixel of the Canvas.
+	 */
+	private void drawTiles(Canvas canvas, float scale) {
+		if (!canvas.getClipBounds(visibleRect)) {
+			return;
+		}
+		TileMipmap pyramid = mipmap();
+		final int level = TileMipmap.levelFor(scale);
+		final int size = TiledRaster.TILE_SIZE << level;
+		final int firstColumn = Math.max(0, visibleRect.left) / size;
+		final int firstRow = Math.max(0, visibleRect.top) / size;
+		final int endColumn = Math.min(pyramid.columns(level), (Math.max(0, visibleRect.right) + size - 1) / size);
+		final int endRow = Math.min(pyramid.rows(level), (Math.max(0, visibleRect.bottom) + size - 1) / size);
+		final int background = drawingRaster.getBackground();
+		final Paint paint = scale < 1f ? filterPaint : null; // zoomed in, pixels stay sharp
+		backgroundPaint.setColor(background);
+		for (int r = firstRow; r < endRow; r++) {
+			for (int c = firstColumn; c < endColumn; c++) {
+				Bitmap tile = pyramid.tile(level, c, r);
+				if (tile != null) {
+					// Visible part in tile pixels, rounded outwards, and where it lies on the canvas.
+					final int x = c * size;
+					final int y = r * size;
+					tileSrc.set(Math.max(0, (visibleRect.left - x) >> level),
+							Math.max(0, (visibleRect.top - y) >> level),
+							Math.min(tile.getWidth(), (visibleRect.right - x + (1 << level) - 1) >> level),
+							Math.min(tile.getHeight(), (visibleRect.bottom - y + (1 << level) - 1) >> level));
+					tileDst.set(x + (tileSrc.left << level), y + (tileSrc.top << level), x + (tileSrc.right << level),
+							y + (tileSrc.bottom << level));
+					canvas.drawBitmap(tile, tileSrc, tileDst, paint);
+				} else if (background != Color.TRANSPARENT) {
+					canvas.drawRect(c * size, r * size, (c + 1) * size, (r + 1) * size, backgroundPaint);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scale the Canvas by the zoom around the center of the surface and scroll it, so that it draws
+	 * in Bitmap coordinates.
+	 */
+	private void applyViewport(Canvas canvas) {
 		canvas.scale(zoom, zoom, surfaceCenter.x, surfaceCenter.y);
 		canvas.translate(scroll.x, scroll.y);
-		canvas.drawPaint(checkeredPattern);
-		canvas.drawBitmap(drawingBitmap, 0, 0, null);
-		canvas.drawPath(pathToDraw, canvasPathPaint);
 	}
 
+	/**
+	 * Draw the checkered pattern and the tiles into the composite where they changed. Frames that
+	 * only change the stroke in progress then cost a single blit of the composite. Zooming or
+	 * scrolling draws the whole composite again. Caller must hold the pThread monitor.
+	 */
+	private void updateComposite() {
+		final int width = Math.max(1, rectSurface.width());
+		final int height = Math.max(1, rectSurface.height());
+		if (composite == null || composite.getWidth() != width || composite.getHeight() != height) {
+			recycleComposite();
+			composite = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+			compositeCanvas.setBitmap(composite);
+		}
+		if (compositeZoom != zoom || !compositeScroll.equals(scroll.x, scroll.y)) {
+			compositeZoom = zoom;
+			compositeScroll.set(scroll.x, scroll.y);
+			compositeDirty.set(rectSurface);
+		}
+		if (compositeDirty.isEmpty()) {
+			return;
+		}
+		compositeCanvas.save();
+		compositeCanvas.clipRect(compositeDirty);
+		applyViewport(compositeCanvas);
+		compositeCanvas.drawPaint(checkeredPattern);
+		drawTiles(compositeCanvas, zoom);
+		compositeCanvas.restore();
+		compositeDirty.setEmpty();
+	}
+
+	private void recycleComposite() {
+		if (composite != null) {
+			composite.recycle();
+			composite = null;
+		}
+		compositeZoom = 0f; // draw all of it when it is used again
+	}
+
+	/**
+	 * Composite the checkered pattern and the tiles around the view into the proxy, at a fraction of
+	 * the surface resolution. The proxy reaches half a surface beyond each edge, so that scrolling
+	 * and zooming out do not run out of picture right away. Caller must hold the pThread monitor.
+	 */
+	private void buildProxy() {
+		final int x = translate.x;
+		final int y = translate.y;
+		translate(0, 0);
+		proxyRect.left = translate.x;
+		proxyRect.top = translate.y;
+		translate(rectSurface.right, rectSurface.bottom);
+		proxyRect.right = translate.x;
+		proxyRect.bottom = translate.y;
+		translate.set(x, y);
+		proxyRect.inset(-proxyRect.width() / 2, -proxyRect.height() / 2);
+
+		final int width = Math.max(1, Math.round(proxyRect.width() * zoom / proxyDownscale));
+		final int height = Math.max(1, Math.round(proxyRect.height() * zoom / proxyDownscale));
+		if (proxy == null || proxy.getWidth() != width || proxy.getHeight() != height) {
+			recycleProxy();
+			proxy = Bitmap.createBitmap(width, height, Config.ARGB_8888);
+		}
+		proxyCanvas.setBitmap(proxy);
+		proxyCanvas.setMatrix(null);
+		proxyCanvas.scale(width / (float) proxyRect.width(), height / (float) proxyRect.height());
+		proxyCanvas.translate(-proxyRect.left, -proxyRect.top);
+		proxyCanvas.drawPaint(checkeredPattern);
+		drawTiles(proxyCanvas, zoom / proxyDownscale);
+		proxyStale = false;
+		proxyBuilt = true;
+	}
+
+	private void recycleProxy() {
+		if (proxy != null) {
+			proxy.recycle();
+			proxy = null;
+		}
+		proxyStale = true;
+	}
+
+	/**
+	 * Lower the resolution of the proxy if drawing it repeatedly takes longer than a frame.
+	 * 
+	 * @param nanos Time doDraw() took.
+	 */
+	private void measureGestureFrame(long nanos) {
+		slowestGestureFrame = Math.max(slowestGestureFrame, nanos);
+		if (nanos <= FRAME_BUDGET_NANOS) {
+			slowFrames = 0;
+		} else if (++slowFrames >= SLOW_FRAMES && proxyDownscale < MAX_PROXY_DOWNSCALE) {
+			proxyDownscale *= 2;
+			slowFrames = 0;
+			proxyStale = true;
+			invalidate();
+		}
+	}
+
+	/**
+	 * A pinch or move gesture started, draw the proxy until it ends.
+	 */
+	void beginGesture() {
+		postInput(InputQueue.GESTURE_START, 0f, 0f, 1f, 0);
+	}
+
+	/**
+	 * A gesture ended, draw in full quality again.
+	 */
+	void endGesture() {
+		postInput(InputQueue.GESTURE_END, 0f, 0f, 1f, 0);
+	}
+
+	private void applyGesture(boolean start) {
+		if (start) {
+			if (gestures++ == 0) {
+				proxyStale = true;
+				slowFrames = 0;
+				slowestGestureFrame = 0;
+			}
+		} else if (gestures > 0 && --gestures == 0) {
+			// Raise the quality again if the last gesture had plenty of time left in every frame.
+			if (slowestGestureFrame > 0 && slowestGestureFrame < FRAME_BUDGET_NANOS / 2
+					&& proxyDownscale > MIN_PROXY_DOWNSCALE) {
+				proxyDownscale /= 2;
+			}
+		}
+		invalidate();
+	}
+
+	/**
+	 * @return Mipmap of the drawingRaster, a new one after the canvas was swapped or replaced.
+	 *         Caller must hold the pThread monitor.
+	 */
+	private TileMipmap mipmap() {
+		if (mipmap == null || mipmap.raster() != drawingRaster) {
+			if (mipmap != null) {
+				mipmap.recycle();
+			}
+			mipmap = new TileMipmap(drawingRaster);
+		}
+		return mipmap;
+	}
+
+	/**
+	 * Called by the UI thread. The paint changes in order with the queued input, strokes and fills
+	 * posted before still use the old paint.
+	 */
 	@Override
 	public void colorChanged(int color) {
+		selectedPaint.setColor(color);
+		postInput(InputQueue.COLOR, color);
+	}
+
+	@Override
+	public void capChanged(Cap cap) {
+		selectedPaint.setStrokeCap(cap);
+		postInput(InputQueue.CAP, cap.ordinal());
+	}
+
+	@Override
+	public void strokeChanged(int width) {
+		selectedPaint.setStrokeWidth(width);
+		postInput(InputQueue.STROKE_WIDTH, width);
+	}
+
+	private void applyColor(int color, long time) {
+		TraceWriter t = trace;
+		if (t != null) {
+			t.color(time, color);
+		}
 		bitmapPathPaint.setColor(color);
 		canvasPathPaint.setColor(color);
 		if (Color.alpha(color) == 0x00) {
@@ -158,23 +795,31 @@ public class PaintRunner extends TpRunner implements ColorPickerDialog.OnPaintCh
 			bitmapPathPaint.setXfermode(null);
 			canvasPathPaint.set(bitmapPathPaint);
 		}
+		invalidate();
 	}
 
-	@Override
-	public void capChanged(Cap cap) {
+	private void applyCap(Cap cap, long time) {
+		TraceWriter t = trace;
+		if (t != null) {
+			t.cap(time, PaintDescriptor.Cap.values()[cap.ordinal()]);
+		}
 		bitmapPathPaint.setStrokeCap(cap);
 		canvasPathPaint.setStrokeCap(cap);
+		invalidate();
 	}
 
-	@Override
-	public void strokeChanged(int width) {
+	private void applyStrokeWidth(int width, long time) {
+		TraceWriter t = trace;
+		if (t != null) {
+			t.strokeWidth(time, width);
+		}
 		bitmapPathPaint.setStrokeWidth(width);
 		canvasPathPaint.setStrokeWidth(width);
+		invalidate();
 	}
 
 	/**
-	 * Called by the SurfaceView on surfaceChanged(). Creates a new surface sized bitmap if it is
-	 * still null.
+	 * Called by the SurfaceView on surfaceChanged(). Creates a new empty canvas if there is none.
 	 * 
 	 * @param width Width of the SurfaceView.
 	 * @param height Height of the SurfaceView.
@@ -186,50 +831,219 @@ public class PaintRunner extends TpRunner implements ColorPickerDialog.OnPaintCh
 			rectSurface.set(0, 0, width, height);
 			surfaceCenter.x = rectSurface.exactCenterX();
 			surfaceCenter.y = rectSurface.exactCenterY();
-			if (drawingBitmap == null) {
-				Log.w(TpApplication.TAG, "Creating new bitmap of surface size.");
-				drawingBitmap = Bitmap.createBitmap(width, height, Config.ARGB_8888);
-				rectBitmap.set(0, 0, width, height);
-				bitmapCanvas.setBitmap(drawingBitmap);
-				commandManager.reset(drawingBitmap);
+			if (drawingRaster == null) {
+				Log.w(TpApplication.TAG, "Creating new empty canvas.");
+				replaceCanvas(newCanvas());
+				commandManager.reset(drawingRaster);
+				traceSurface();
 			}
+			invalidate();
 		}
 	}
 
 	/**
-	 * Sets a new Bitmap and recycles the old one. Alsor resets values for zoom and scroll.
+	 * Copies a Bitmap to the top left of a new canvas and frees the old one. Alsor resets values for
+	 * zoom and scroll.
 	 * 
-	 * @param bitmap New Bitmap to draw.
+	 * @param bitmap Image to show, recycled after copying. Null for an empty canvas.
 	 */
 	void setBitmap(Bitmap bitmap) {
+		TiledRaster raster = newCanvas();
+		if (bitmap != null) {
+			raster.blit(new AndroidRaster(bitmap), 0, 0);
+			bitmap.recycle();
+		}
+		replayThread.cancel();
+		synchronized (pThread) {
+			canvasGeneration++;
+			replaceCanvas(raster);
+			commandManager.reset(drawingRaster);
+			traceSurface();
+			invalidate();
+		}
+	}
+
+	/**
+	 * Rebuild the canvas and the command history from the journal of a previous session on a
+	 * background Thread, then swap them in and start journaling. Reading and redrawing a long
+	 * history takes a while, the UI keeps running meanwhile. An image the user opens before the
+	 * restore is done wins over the restored canvas.
+	 */
+	void restoreSession() {
+		final int generation;
+		final CommandManager.HistoryMode mode;
 		synchronized (pThread) {
-			if (drawingBitmap != null) {
-				drawingBitmap.recycle();
+			generation = canvasGeneration;
+			mode = commandManager.historyMode();
+		}
+		Thread restore = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				TiledRaster raster = null;
+				CommandManager restored = null;
+				CommandJournal.Session session = CommandJournal.read(journalFile);
+				if (session != null) {
+					raster = new TiledRaster(session.width(), session.height(), new AndroidRaster(null),
+							tileCache);
+					if (session.restoreOriginal(raster)) {
+						restored = new CommandManager();
+						restored.setHistoryMode(mode);
+						restored.restore(raster, session.commands(), session.index());
+					}
+				}
+				synchronized (pThread) {
+					if (!stopped) {
+						if (restored != null && generation == canvasGeneration) {
+							replayThread.cancel();
+							replaceCanvas(raster);
+							commandManager.adopt(restored);
+							traceSurface();
+							invalidate();
+							raster = null;
+						}
+						commandManager.setJournal(journal);
+					}
+				}
+				if (raster != null) {
+					raster.recycle();
+				}
+			}
+		});
+		restore.setDaemon(true);
+		restore.start();
+	}
+
+	/**
+	 * Record the input applied from now on, starting with the current canvas size and paint. The
+	 * content of the canvas is not recorded, a replay starts with a transparent canvas.
+	 * 
+	 * @param writer TraceWriter to record to or null to stop recording. The previous writer is closed.
+	 */
+	void setTrace(TraceWriter writer) {
+		synchronized (pThread) {
+			if (trace != null) {
+				trace.close();
+			}
+			trace = writer;
+			if (writer != null) {
+				final long time = SystemClock.uptimeMillis();
+				writer.color(time, bitmapPathPaint.getColor());
+				writer.strokeWidth(time, bitmapPathPaint.getStrokeWidth());
+				writer.cap(time, PaintDescriptor.Cap.values()[bitmapPathPaint.getStrokeCap().ordinal()]);
+				writer.historyMode(time, commandManager.historyMode() == CommandManager.HistoryMode.TILES);
+				traceSurface();
 			}
-			resetPerspective();
-			drawingBitmap = bitmap;
-			commandManager.reset(bitmap);
-			bitmapCanvas.setBitmap(drawingBitmap);
-			rectBitmap.set(0, 0, bitmap.getWidth(), bitmap.getHeight());
 		}
 	}
 
 	/**
-	 * @return Actual Bitmap the thread uses, a copy might be too big.
+	 * Record that the canvas was replaced. Caller must hold the pThread monitor.
+	 */
+	private void traceSurface() {
+		if (trace != null && drawingRaster != null) {
+			trace.surface(SystemClock.uptimeMillis(), drawingRaster.getWidth(), drawingRaster.getHeight());
+		}
+	}
+
+	/**
+	 * Block until the journal is written to the storage device, at most JOURNAL_SYNC_MILLIS. The
+	 * writer thread finishes in the background if that is not enough.
+	 */
+	void syncJournal() {
+		journal.sync(JOURNAL_SYNC_MILLIS);
+	}
+
+	/**
+	 * Copy the painted part of the canvas into a new Bitmap. Canvases with more than
+	 * maxExportPixels() pixels are scaled down by a power of two. The pThread monitor is taken for one
+	 * strip of rows at a time, so call this from a background thread.
+	 * 
+	 * @return New Bitmap of the bounding box of the painted tiles, or of the surface if nothing was
+	 *         painted.
 	 */
 	Bitmap getBitmap() {
-		return drawingBitmap;
+		final int[] bounds = new int[4];
+		synchronized (pThread) {
+			if (!drawingRaster.getContentBounds(bounds)) {
+				bounds[0] = 0;
+				bounds[1] = 0;
+				bounds[2] = Math.min(drawingRaster.getWidth(), rectSurface.right);
+				bounds[3] = Math.min(drawingRaster.getHeight(), rectSurface.bottom);
+			}
+		}
+		final int width = Math.max(1, bounds[2] - bounds[0]);
+		final int height = Math.max(1, bounds[3] - bounds[1]);
+		final long maxPixels = maxExportPixels();
+		int scale = 1;
+		while ((long) ((width + scale - 1) / scale) * ((height + scale - 1) / scale) > maxPixels) {
+			scale *= 2;
+		}
+		final int outWidth = (width + scale - 1) / scale;
+		final int outHeight = (height + scale - 1) / scale;
+		Bitmap bitmap = Bitmap.createBitmap(outWidth, outHeight, Config.ARGB_8888);
+		int[] strip = new int[width * scale];
+		int[] row = scale == 1 ? strip : new int[outWidth];
+		for (int y = 0; y < outHeight; y++) {
+			final int rows = Math.min(scale, height - y * scale);
+			synchronized (pThread) {
+				drawingRaster.getPixels(strip, 0, width, bounds[0], bounds[1] + y * scale, width, rows);
+			}
+			if (scale > 1) {
+				downscaleStrip(strip, width, rows, scale, row);
+			}
+			bitmap.setPixels(row, 0, outWidth, 0, y, outWidth, 1);
+		}
+		return bitmap;
 	}
 
 	/**
-	 * @return Paint used to draw on the Bitmap.
+	 * @return Largest number of pixels of an exported Bitmap, a quarter of the heap.
+	 */
+	private static long maxExportPixels() {
+		return Math.min(MAX_EXPORT_PIXELS, Runtime.getRuntime().maxMemory() / 16);
+	}
+
+	/**
+	 * Average blocks of scale * scale pixels of a strip into one row, weighted by alpha so that
+	 * transparent pixels do not darken the edges.
+	 */
+	private static void downscaleStrip(int[] strip, int width, int rows, int scale, int[] row) {
+		for (int x = 0; x < row.length; x++) {
+			final int x0 = x * scale;
+			final int x1 = Math.min(width, x0 + scale);
+			long a = 0;
+			long r = 0;
+			long g = 0;
+			long b = 0;
+			for (int y = 0; y < rows; y++) {
+				for (int i = y * width + x0; i < y * width + x1; i++) {
+					final int c = strip[i];
+					final int alpha = c >>> 24;
+					a += alpha;
+					r += (c >> 16 & 0xFF) * alpha;
+					g += (c >> 8 & 0xFF) * alpha;
+					b += (c & 0xFF) * alpha;
+				}
+			}
+			if (a == 0) {
+				row[x] = 0;
+			} else {
+				final int count = (x1 - x0) * rows;
+				row[x] = (int) (a / count) << 24 | (int) (r / a) << 16 | (int) (g / a) << 8 | (int) (b / a);
+			}
+		}
+	}
+
+	/**
+	 * @return Paint the user chose, queued input may still be drawn with the previous one. Only for
+	 *         the UI thread.
 	 */
 	Paint getPaint() {
-		return bitmapPathPaint;
+		return selectedPaint;
 	}
 
 	/**
-	 * @return Current zoom level [1.0..*].
+	 * @return Current zoom level [MIN_ZOOM..*].
 	 */
 	float getZoom() {
 		return zoom;
@@ -238,40 +1052,200 @@ public class PaintRunner extends TpRunner implements ColorPickerDialog.OnPaintCh
 	/**
 	 * Begin a new path at the specified coordinates on the Bitmap.
 	 * 
-	 * @param x X-Coordinate on the Bitmap.
-	 * @param y Y-Coordinate on the Bitmap.
+	 * @param x X-Coordinate on the Screen.
+	 * @param y Y-Coordinate on the Screen.
+	 * @param pressure Pressure of the touch.
+	 * @param time Time of the touch in milliseconds.
 	 */
-	void startPath(float x, float y) {
+	void startPath(float x, float y, float pressure, long time) {
+		postInput(InputQueue.START_PATH, x, y, pressure, time);
+	}
+
+	private void applyStartPath(float x, float y, float pressure, long time) {
 		pathToDraw.rewind();
 		translate(x, y);
 		pathToDraw.moveTo(translate.x, translate.y);
+		strokeToDraw.reset();
+		strokeToDraw.add(translate.x, translate.y, pressure, time);
+		TraceWriter t = trace;
+		if (t != null) {
+			t.strokeStart(time, translate.x, translate.y, pressure);
+		}
+		strokeLayerActive = prepareStrokeLayer()
+				&& insideStrokeLayer(translate.x, translate.y, translate.x, translate.y);
+		invalidateStroke(translate.x, translate.y, translate.x, translate.y);
 	}
 
 	/**
-	 * Continue an unfinished path from the previous to the new coordinates on the Bitmap.
+	 * Segments drawn one by one only look like the whole path if they are connected by round caps.
+	 * Other caps fall back to drawing the whole path every frame. The layer has the size of the
+	 * surface and covers the part of the canvas that is visible when the stroke starts. Zoomed out
+	 * the surface shows more than that, then the layer is centered on the start of the stroke.
 	 * 
-	 * @param x1 Previous X-Coordinate on the Screen.
-	 * @param y1 Previous Y-Coordinate on the Screen.
-	 * @param x2 New X-Coordinate on the Screen.
-	 * @param y2 New Y-Coordinate on the Screen.
-	 */
-	void updatePath(float x1, float y1, float x2, float y2) {
-		translate((x1 + x2) / 2f, (y1 + y2) / 2f);
-		float cx = translate.x;
-		float cy = translate.y;
-		translate(x2, y2);
+	 * @return True if the stroke in progress can be drawn into the stroke layer.
+	 */
+	private boolean prepareStrokeLayer() {
+		if (bitmapPathPaint.getStrokeCap() != Cap.ROUND) {
+			return false;
+		}
+		if (strokeLayer == null || strokeLayer.getWidth() != rectSurface.width()
+				|| strokeLayer.getHeight() != rectSurface.height()) {
+			if (strokeLayer != null) {
+				strokeLayer.recycle();
+			}
+			strokeLayer = Bitmap.createBitmap(rectSurface.width(), rectSurface.height(), Config.ALPHA_8);
+			strokeLayerCanvas.setBitmap(strokeLayer);
+		}
+		final int x = translate.x;
+		final int y = translate.y;
+		if (zoom >= 1f) {
+			translate(0, 0);
+			strokeLayerOrigin.set(translate.x, translate.y);
+			translate.set(x, y);
+		} else {
+			strokeLayerOrigin.set(x - strokeLayer.getWidth() / 2, y - strokeLayer.getHeight() / 2);
+		}
+		strokeLayerCanvas.setMatrix(null);
+		strokeLayerCanvas.translate(-strokeLayerOrigin.x, -strokeLayerOrigin.y);
+		strokeLayerPaint.set(bitmapPathPaint);
+		strokeLayerPaint.setXfermode(null);
+		strokeLayerPaint.setColor(Color.BLACK);
+		return true;
+	}
+
+	/**
+	 * @return True if the segment including its caps lies within the stroke layer.
+	 */
+	private boolean insideStrokeLayer(float x1, float y1, float x2, float y2) {
+		final float pad = bitmapPathPaint.getStrokeWidth() * 0.75f + 2f;
+		return Math.min(x1, x2) - pad >= strokeLayerOrigin.x && Math.min(y1, y2) - pad >= strokeLayerOrigin.y
+				&& Math.max(x1, x2) + pad <= strokeLayerOrigin.x + strokeLayer.getWidth()
+				&& Math.max(y1, y2) + pad <= strokeLayerOrigin.y + strokeLayer.getHeight();
+	}
+
+	/**
+	 * Draw the stroke layer into the tiles the stroke touched. Called by commitCommand().
+	 */
+	private void mergeStrokeLayer() {
+		final int size = TiledRaster.TILE_SIZE;
+		PaintDescriptor paint = AndroidRaster.describe(strokeMergePaint);
+		final int count = drawingRaster.touchStroke(strokeToDraw, paint);
+		for (int i = 0; i < count; i++) {
+			final int c = drawingRaster.touchedColumn(i);
+			final int r = drawingRaster.touchedRow(i);
+			AndroidRaster tile = (AndroidRaster) drawingRaster.tileForDrawing(c, r, paint);
+			if (tile != null) {
+				tile.canvas().drawBitmap(strokeLayer, strokeLayerOrigin.x - c * size, strokeLayerOrigin.y - r * size,
+						strokeMergePaint);
+			}
+		}
+	}
+
+	/**
+	 * Continue an unfinished path with all samples of a move event, including the historical ones
+	 * Android batched into it. Does not allocate and wakes the render thread once.
+	 * 
+	 * @param event ACTION_MOVE event with coordinates on the Screen.
+	 */
+	void updatePath(MotionEvent event) {
+		final int history = event.getHistorySize();
+		for (int h = 0; h < history; h++) {
+			inputQueue.put(InputQueue.UPDATE_PATH, event.getHistoricalX(h), event.getHistoricalY(h),
+					event.getHistoricalPressure(h), event.getHistoricalEventTime(h));
+		}
+		inputQueue.put(InputQueue.UPDATE_PATH, event.getX(), event.getY(), event.getPressure(), event.getEventTime());
+		requestFrame();
+	}
+
+	private void applyUpdatePath(float x, float y, float pressure, long time) {
+		final int last = strokeToDraw.size() - 1;
+		final float previousX = strokeToDraw.x(last);
+		final float previousY = strokeToDraw.y(last);
+		translate(x, y);
+		final float cx = (previousX + translate.x) / 2f;
+		final float cy = (previousY + translate.y) / 2f;
 		pathToDraw.quadTo(cx, cy, translate.x, translate.y);
+		if (strokeLayerActive && !insideStrokeLayer(previousX, previousY, translate.x, translate.y)) {
+			// The stroke left the area that was visible when it started, draw the whole path instead.
+			strokeLayer.eraseColor(Color.TRANSPARENT);
+			strokeLayerActive = false;
+		}
+		if (strokeLayerActive) {
+			segmentPath.rewind();
+			segmentPath.moveTo(previousX, previousY);
+			segmentPath.quadTo(cx, cy, translate.x, translate.y);
+			strokeLayerCanvas.drawPath(segmentPath, strokeLayerPaint);
+		}
+		strokeToDraw.add(translate.x, translate.y, pressure, time);
+		TraceWriter t = trace;
+		if (t != null) {
+			t.strokeMove(time, translate.x, translate.y, pressure);
+		}
+		invalidateStroke(previousX, previousY, translate.x, translate.y);
+		updatePrediction();
+	}
+
+	/**
+	 * Replace the predicted end of the stroke. Both the old and the new prediction are redrawn, the
+	 * old one so that it disappears from the surface.
+	 */
+	private void updatePrediction() {
+		clearPrediction();
+		hasPrediction = predictor.predict(strokeToDraw, prediction);
+		if (hasPrediction) {
+			final int last = strokeToDraw.size() - 1;
+			predictionStart.set(strokeToDraw.x(last), strokeToDraw.y(last));
+			invalidateStroke(predictionStart.x, predictionStart.y, prediction[0], prediction[1]);
+		}
+	}
+
+	private void clearPrediction() {
+		if (hasPrediction) {
+			invalidateStroke(predictionStart.x, predictionStart.y, prediction[0], prediction[1]);
+			hasPrediction = false;
+		}
+	}
+
+	/**
+	 * @param enabled True to draw a predicted piece of the stroke ahead of the finger.
+	 */
+	void setPrediction(boolean enabled) {
+		predictor.setEnabled(enabled);
+	}
+
+	/**
+	 * @param ms How far ahead the stroke is predicted, in milliseconds.
+	 */
+	void setPredictionHorizon(float ms) {
+		predictor.setHorizon(ms);
 	}
 
 	/**
 	 * Draw the currently unfinished Path on the Bitmap and rewind it.
 	 */
 	void finishPath() {
-		synchronized (pThread) {
-			Command command = new Command(bitmapPathPaint, pathToDraw);
-			commandManager.commitCommand(command, bitmapCanvas);
-			pathToDraw.rewind();
+		postInput(InputQueue.FINISH_PATH, 0f, 0f, 1f, SystemClock.uptimeMillis());
+	}
+
+	private void applyFinishPath(long time) {
+		TraceWriter t = trace;
+		if (t != null) {
+			t.strokeEnd(time);
 		}
+		clearPrediction();
+		Command command = new Command(AndroidRaster.describe(bitmapPathPaint), strokeToDraw);
+		if (strokeLayerActive) {
+			// The stroke is already rasterized, merge it instead of drawing the path again.
+			strokeMergePaint.set(bitmapPathPaint);
+			strokeMergePaint.setStyle(Paint.Style.FILL);
+			commandManager.commitCommand(command, drawingRaster, mergeStrokeLayer);
+			strokeLayer.eraseColor(Color.TRANSPARENT);
+			strokeLayerActive = false;
+		} else {
+			commandManager.commitCommand(command, drawingRaster);
+		}
+		pathToDraw.rewind();
+		invalidateChanges();
 	}
 
 	/**
@@ -279,13 +1253,21 @@ public class PaintRunner extends TpRunner implements ColorPickerDialog.OnPaintCh
 	 * 
 	 * @param x X-Coordinate of the point on the Screen.
 	 * @param y Y-Coordinate of the point on the Screen.
+	 * @param time Time of the touch in milliseconds.
 	 */
-	void drawPoint(float x, float y) {
-		synchronized (pThread) {
-			translate(x, y);
-			Command command = new Command(bitmapPathPaint, translate);
-			commandManager.commitCommand(command, bitmapCanvas);
+	void drawPoint(float x, float y, long time) {
+		postInput(InputQueue.DRAW_POINT, x, y, 1f, time);
+	}
+
+	private void applyDrawPoint(float x, float y, long time) {
+		translate(x, y);
+		TraceWriter t = trace;
+		if (t != null) {
+			t.point(time, translate.x, translate.y);
 		}
+		Command command = new Command(AndroidRaster.describe(bitmapPathPaint), translate.x, translate.y, time);
+		commandManager.commitCommand(command, drawingRaster);
+		invalidateChanges();
 	}
 
 	/**
@@ -295,19 +1277,24 @@ public class PaintRunner extends TpRunner implements ColorPickerDialog.OnPaintCh
 	 * @param dy Offset on the y-axis.
 	 */
 	void scroll(int dx, int dy) {
+		postInput(InputQueue.SCROLL, dx, dy, 1f, 0);
+	}
+
+	private void applyScroll(int dx, int dy) {
 		synchronized (pThread) {
+			updateScrollBounds();
 			float surfaceZoomedWidth = rectSurface.right / zoom;
 			float surfaceZoomedHeight = rectSurface.bottom / zoom;
 
-			// Don't scroll if the (zoomed) bitmap is smaller than the surface.
-			if ((surfaceZoomedWidth - rectBitmap.right) > 0 && (surfaceZoomedHeight - rectBitmap.bottom) > 0) {
-				scroll.set(0, 0);
+			// Don't scroll if the (zoomed) scroll bounds are smaller than the surface.
+			if ((surfaceZoomedWidth - scrollBounds.width()) > 0 && (surfaceZoomedHeight - scrollBounds.height()) > 0) {
+				scroll.set(-scrollBounds.left, -scrollBounds.top);
 			} else {
 				scroll.offset(Math.round(dx / zoom), Math.round(dy / zoom));
 				float pivotX = surfaceCenter.x - (surfaceCenter.x / zoom);
 				float pivotY = surfaceCenter.y - (surfaceCenter.y / zoom);
-				float xMax = (surfaceZoomedWidth - rectBitmap.right) + pivotX;
-				float yMax = (surfaceZoomedHeight - rectBitmap.bottom) + pivotY;
+				float xMax = (surfaceZoomedWidth - scrollBounds.right) + pivotX;
+				float yMax = (surfaceZoomedHeight - scrollBounds.bottom) + pivotY;
 				if (scroll.x < xMax) {
 					scroll.x = Math.round(xMax);
 				}
@@ -316,29 +1303,44 @@ public class PaintRunner extends TpRunner implements ColorPickerDialog.OnPaintCh
 				}
 				// Make checks for upper left corner after checks for
 				// lower right corner to prevent jumping.
-				if (scroll.x - pivotX > 0) {
-					scroll.x = Math.round(pivotX);
+				if (scroll.x - pivotX > -scrollBounds.left) {
+					scroll.x = Math.round(pivotX) - scrollBounds.left;
 				}
-				if (scroll.y - pivotY > 0) {
-					scroll.y = Math.round(pivotY);
+				if (scroll.y - pivotY > -scrollBounds.top) {
+					scroll.y = Math.round(pivotY) - scrollBounds.top;
 				}
 			}
+			invalidate();
+		}
+	}
+
+	/**
+	 * Let scrolling reach the area the surface shows initially and the painted part of the canvas,
+	 * plus a margin of half a surface to paint into. Caller must hold the pThread monitor.
+	 */
+	private void updateScrollBounds() {
+		scrollBounds.set(0, 0, rectSurface.right, rectSurface.bottom);
+		if (drawingRaster.getContentBounds(contentBounds)) {
+			scrollBounds.union(contentBounds[0], contentBounds[1], contentBounds[2], contentBounds[3]);
 		}
+		final int margin = Math.max(rectSurface.width(), rectSurface.height()) / 2;
+		scrollBounds.inset(-margin, -margin);
+		scrollBounds.intersect(0, 0, drawingRaster.getWidth(), drawingRaster.getHeight());
 	}
 
 	/**
-	 * Set the zoom factor for the Canvas.
+	 * Set the zoom factor for the Canvas. Below 1 the canvas is drawn from the mipmap.
 	 * 
-	 * @param scale [1.0..*] Factor to zoom.
+	 * @param scale [MIN_ZOOM..*] Factor to zoom.
 	 */
 	void zoom(float scale) {
+		postInput(InputQueue.ZOOM, scale, 0f, 1f, 0);
+	}
+
+	private void applyZoom(float scale) {
 		synchronized (pThread) {
-			if (zoom >= 1) {
-				zoom = scale;
-			}
-			if (zoom < 1) {
-				zoom = 1;
-			}
+			zoom = Math.max(MIN_ZOOM, scale);
+			invalidate();
 		}
 	}
 
@@ -351,44 +1353,208 @@ public class PaintRunner extends TpRunner implements ColorPickerDialog.OnPaintCh
 		translate.y = (int) ((y - surfaceCenter.y) / zoom + surfaceCenter.y - scroll.y);
 	}
 
-	// It's essential to set the canvas matrix null!
 	private void resetPerspective() {
 		zoom = 1f;
 		scroll.set(0, 0);
-		bitmapCanvas.setMatrix(null);
 	}
 
 	/**
-	 * Draw the currently used Paint on the whole Bitmap.
+	 * Draw the currently used Paint on the whole canvas.
 	 */
 	void fillWithPaint() {
-		Command command = new Command(bitmapPathPaint);
-		commandManager.commitCommand(command, bitmapCanvas);
+		postInput(InputQueue.FILL, 0f, 0f, 1f, SystemClock.uptimeMillis());
+	}
+
+	private void applyFill(long time) {
+		TraceWriter t = trace;
+		if (t != null) {
+			t.fill(time);
+		}
+		Command command = new Command(AndroidRaster.describe(bitmapPathPaint));
+		commandManager.commitCommand(command, drawingRaster);
+		invalidateChanges();
+	}
+
+	/**
+	 * Fill the region around the touched pixel with the currently used paint.
+	 * 
+	 * @param x X-Coordinate on the Screen.
+	 * @param y Y-Coordinate on the Screen.
+	 */
+	void floodFill(float x, float y) {
+		postInput(InputQueue.FLOOD_FILL, x, y, 1f, SystemClock.uptimeMillis());
+	}
+
+	/**
+	 * The fill reaches as far as scrolling does, the painted part of the canvas and a margin around
+	 * it, so filling an empty area does not cover the whole sparse canvas.
+	 */
+	private void applyFloodFill(float x, float y, long time) {
+		translate(x, y);
+		updateScrollBounds();
+		final int tolerance = fillTolerance;
+		final boolean antiAlias = fillAntiAlias;
+		TraceWriter t = trace;
+		if (t != null) {
+			t.floodFill(time, translate.x, translate.y, tolerance, antiAlias, scrollBounds.left, scrollBounds.top,
+					scrollBounds.right, scrollBounds.bottom);
+		}
+		FillMask mask = floodFill.fill(drawingRaster, scrollBounds.left, scrollBounds.top, scrollBounds.right,
+				scrollBounds.bottom, translate.x, translate.y, tolerance, antiAlias);
+		if (mask != null) {
+			commandManager.commitCommand(new Command(AndroidRaster.describe(bitmapPathPaint), mask), drawingRaster);
+			invalidateChanges();
+		}
+	}
+
+	/**
+	 * @param tolerance Largest difference of a color channel to the touched pixel that is filled.
+	 */
+	void setFillTolerance(int tolerance) {
+		fillTolerance = Math.max(0, Math.min(255, tolerance));
+	}
+
+	/**
+	 * @param antiAlias True to smooth the edges of filled regions.
+	 */
+	void setFillAntiAlias(boolean antiAlias) {
+		fillAntiAlias = antiAlias;
 	}
 
 	/**
-	 * Reset the Canvas by setting a new empty bitmap of surface size.
+	 * Reset the Canvas by setting a new empty canvas.
 	 */
 	void resetCanvas() {
-		Bitmap bitmap = Bitmap.createBitmap(rectSurface.right, rectSurface.bottom, Config.ARGB_8888);
-		setBitmap(bitmap);
+		setBitmap(null);
+	}
+
+	/**
+	 * @param mode How the command manager restores previous states.
+	 */
+	void setHistoryMode(CommandManager.HistoryMode mode) {
+		TraceWriter t = trace;
+		if (t != null) {
+			t.historyMode(SystemClock.uptimeMillis(), mode == CommandManager.HistoryMode.TILES);
+		}
+		commandManager.setHistoryMode(mode);
 	}
 
 	/**
-	 * Undo one step in the command manager.
+	 * Undo one step in the command manager. States that have to be replayed are rebuilt on the
+	 * ReplayThread, the surface shows the previous state until then.
 	 */
 	void undo() {
+		postInput(InputQueue.UNDO, 0f, 0f, 1f, SystemClock.uptimeMillis());
+	}
+
+	private void applyUndo(long time) {
 		synchronized (pThread) {
-			commandManager.undoLast(bitmapCanvas);
+			TraceWriter t = trace;
+			if (t != null) {
+				t.undo(time);
+			}
+			if (commandManager.stepBack(!replayThread.busy())) {
+				replayThread.request();
+			}
+			invalidateChanges();
 		}
 	}
 
 	/**
-	 * Redo one step in the command manager.
+	 * Redo one step in the command manager. If a replay is in progress it is restarted to include
+	 * the redone command.
 	 */
 	void redo() {
+		postInput(InputQueue.REDO, 0f, 0f, 1f, SystemClock.uptimeMillis());
+	}
+
+	private void applyRedo(long time) {
 		synchronized (pThread) {
-			commandManager.redoLast(bitmapCanvas);
+			TraceWriter t = trace;
+			if (t != null) {
+				t.redo(time);
+			}
+			if (commandManager.stepForward(!replayThread.busy())) {
+				replayThread.request();
+			}
+			invalidateChanges();
+		}
+	}
+
+	/**
+	 * Called by the UI thread. Queue an input record for the render thread and wake it up, without
+	 * waiting for the frame in progress.
+	 */
+	private void postInput(int type, float x, float y, float pressure, long time) {
+		inputQueue.put(type, x, y, pressure, time);
+		requestFrame();
+	}
+
+	private void postInput(int type, int value) {
+		inputQueue.put(type, value, SystemClock.uptimeMillis());
+		requestFrame();
+	}
+
+	/**
+	 * Called by the render thread at the start of a frame, holding the pThread monitor. Applies all
+	 * queued input in order. Commands are not committed while a replay is pending because they must
+	 * be drawn onto the rebuilt state, the rest of the queue waits for the frame after the swap.
+	 */
+	private void drainInput() {
+		int type;
+		while ((type = inputQueue.peek()) >= 0) {
+			if ((type == InputQueue.FINISH_PATH || type == InputQueue.DRAW_POINT || type == InputQueue.FILL
+					|| type == InputQueue.FLOOD_FILL) && replayThread.busy()) {
+				return;
+			}
+			switch (type) {
+			case InputQueue.START_PATH:
+				applyStartPath(inputQueue.x(), inputQueue.y(), inputQueue.pressure(), inputQueue.time());
+				break;
+			case InputQueue.UPDATE_PATH:
+				applyUpdatePath(inputQueue.x(), inputQueue.y(), inputQueue.pressure(), inputQueue.time());
+				break;
+			case InputQueue.FINISH_PATH:
+				applyFinishPath(inputQueue.time());
+				break;
+			case InputQueue.DRAW_POINT:
+				applyDrawPoint(inputQueue.x(), inputQueue.y(), inputQueue.time());
+				break;
+			case InputQueue.SCROLL:
+				applyScroll((int) inputQueue.x(), (int) inputQueue.y());
+				break;
+			case InputQueue.ZOOM:
+				applyZoom(inputQueue.x());
+				break;
+			case InputQueue.FILL:
+				applyFill(inputQueue.time());
+				break;
+			case InputQueue.FLOOD_FILL:
+				applyFloodFill(inputQueue.x(), inputQueue.y(), inputQueue.time());
+				break;
+			case InputQueue.UNDO:
+				applyUndo(inputQueue.time());
+				break;
+			case InputQueue.REDO:
+				applyRedo(inputQueue.time());
+				break;
+			case InputQueue.GESTURE_START:
+				applyGesture(true);
+				break;
+			case InputQueue.GESTURE_END:
+				applyGesture(false);
+				break;
+			case InputQueue.COLOR:
+				applyColor(inputQueue.value(), inputQueue.time());
+				break;
+			case InputQueue.CAP:
+				applyCap(Cap.values()[inputQueue.value()], inputQueue.time());
+				break;
+			case InputQueue.STROKE_WIDTH:
+				applyStrokeWidth(inputQueue.value(), inputQueue.time());
+				break;
+			}
+			inputQueue.remove();
 		}
 	}
 }
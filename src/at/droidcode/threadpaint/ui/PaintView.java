@@ -17,10 +17,16 @@
 package at.droidcode.threadpaint.ui;
 
 import static at.droidcode.threadpaint.TpApplication.TAG;
+
+import java.io.File;
+import java.io.IOException;
+
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Paint;
 import android.os.Bundle;
+import android.os.Environment;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.util.FloatMath;
 import android.util.Log;
@@ -28,9 +34,11 @@ import android.view.MotionEvent;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 import android.view.View;
+import at.droidcode.commands.CommandManager.HistoryMode;
 import at.droidcode.threadpaint.api.ToolButtonAnimator;
 import at.droidcode.threadpaint.dialog.BrushPickerDialog.OnBrushChangedListener;
 import at.droidcode.threadpaint.dialog.ColorPickerDialog.OnPaintChangedListener;
+import at.droidcode.trace.TraceWriter;
 
 /**
  * View that holds the surface onto which a user can draw. Has an OnTouchListener to turn user input
@@ -38,14 +46,16 @@ import at.droidcode.threadpaint.dialog.ColorPickerDialog.OnPaintChangedListener;
  */
 public class PaintView extends SurfaceView implements SurfaceHolder.Callback, View.OnTouchListener {
 	public enum Tool {
-		BRUSH, MOVE, ERASE
+		BRUSH, MOVE, ERASE, FILL
 	};
 
+	private static final String TRACE_DIRECTORY = "traces";
+
 	private Tool selectedTool;
 	private float moveThreshold;
+	private TraceWriter traceWriter; // null unless input is recorded
 	private final PaintRunner paintRunner;
 	private ToolButtonAnimator toolButtonAnimator;
-	private static final String STATE_BITMAP = "WORKING_BITMAP";
 
 	public PaintView(Context context, AttributeSet attrs) {
 		super(context, attrs);
@@ -83,30 +93,31 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback, Vi
 	}
 
 	/**
-	 * Invokes getBitmap() to store a copy of the current Bitmap in the indicated Bundle.
+	 * The drawing is kept in the command journal instead of the Bundle, which is too small for a
+	 * Bitmap. This only waits a short time for the journal to be written.
 	 * 
 	 * @param b Bundle to store attributes in.
 	 */
 	public synchronized void saveState(Bundle b) {
-		b.putParcelable(STATE_BITMAP, getBitmap());
+		paintRunner.syncJournal();
 	}
 
 	/**
-	 * @param savedState Bundle containing saved attributes.
+	 * Restore the drawing and its history from the journal of a previous session in the background,
+	 * if there is one. Changes are journaled from then on.
 	 */
-	public synchronized void restoreState(Bundle savedState) {
-		Log.d(TAG, "restore state");
-		Bitmap savedBmp = (Bitmap) savedState.getParcelable(STATE_BITMAP);
-		if (!savedBmp.isRecycled()) {
-			paintRunner.setBitmap(savedBmp);
-		}
+	public synchronized void restoreSession() {
+		Log.d(TAG, "restore session");
+		paintRunner.restoreSession();
 	}
 
 	/**
 	 * Typically called when ThreadPaintActivity is being destroyed.
+	 * 
+	 * @param keepSession False to delete the journal because the user left on purpose.
 	 */
-	public void stopPaintThread() {
-		paintRunner.stop();
+	public void stopPaintThread(boolean keepSession) {
+		paintRunner.stop(keepSession);
 	}
 
 	/**
@@ -123,6 +134,81 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback, Vi
 		moveThreshold = f;
 	}
 
+	/**
+	 * @param tiles True to undo by restoring touched tiles, false to replay commands.
+	 */
+	public void setTileHistory(boolean tiles) {
+		paintRunner.setHistoryMode(tiles ? HistoryMode.TILES : HistoryMode.REPLAY);
+	}
+
+	/**
+	 * @param fps Maximum number of frames per second, 0 for no limit.
+	 */
+	public void setMaxFrameRate(int fps) {
+		paintRunner.setMaxFrameRate(fps);
+	}
+
+	/**
+	 * @param enabled True to draw a predicted piece of the stroke ahead of the finger.
+	 */
+	public void setPrediction(boolean enabled) {
+		paintRunner.setPrediction(enabled);
+	}
+
+	/**
+	 * @param ms How far ahead the stroke is predicted, in milliseconds.
+	 */
+	public void setPredictionHorizon(float ms) {
+		paintRunner.setPredictionHorizon(ms);
+	}
+
+	/**
+	 * @param tolerance Largest difference of a color channel to the touched pixel that is filled.
+	 */
+	public void setFillTolerance(int tolerance) {
+		paintRunner.setFillTolerance(tolerance);
+	}
+
+	/**
+	 * @param antiAlias True to smooth the edges of filled regions.
+	 */
+	public void setFillAntiAlias(boolean antiAlias) {
+		paintRunner.setFillAntiAlias(antiAlias);
+	}
+
+	/**
+	 * Record touches, tools, paint changes and undo/redo into a new trace file, which the
+	 * TraceReplayer plays back headless. Traces go to external storage if it is available.
+	 * 
+	 * @param enabled True to start recording, false to stop and close the trace.
+	 */
+	public synchronized void setTraceRecording(boolean enabled) {
+		if (enabled == (traceWriter != null)) {
+			return;
+		}
+		if (!enabled) {
+			paintRunner.setTrace(null);
+			Log.d(TAG, "trace written to " + traceWriter.file());
+			traceWriter = null;
+			return;
+		}
+		File dir = null;
+		if (Environment.MEDIA_MOUNTED.equals(Environment.getExternalStorageState())) {
+			dir = getContext().getExternalFilesDir(TRACE_DIRECTORY);
+		}
+		if (dir == null) {
+			dir = getContext().getDir(TRACE_DIRECTORY, Context.MODE_PRIVATE);
+		}
+		try {
+			traceWriter = new TraceWriter(new File(dir, "trace-" + System.currentTimeMillis() + ".tpt"));
+		} catch (IOException e) {
+			Log.e(TAG, "ERROR ", e);
+			return;
+		}
+		traceWriter.tool(SystemClock.uptimeMillis(), selectedTool.ordinal());
+		paintRunner.setTrace(traceWriter);
+	}
+
 	/**
 	 * @return Currently selected Tool.
 	 */
@@ -135,10 +221,15 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback, Vi
 	 */
 	public void selectTool(Tool tool) {
 		selectedTool = tool;
+		TraceWriter writer = traceWriter;
+		if (writer != null) {
+			writer.tool(SystemClock.uptimeMillis(), tool.ordinal());
+		}
 	}
 
 	/**
-	 * @return Actual Bitmap that is drawn onto, a copy might be too big.
+	 * @return Copy of the painted part of the canvas, scaled down if it is very large. Call from a
+	 *         background thread.
 	 */
 	public Bitmap getBitmap() {
 		return paintRunner.getBitmap();
@@ -152,7 +243,7 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback, Vi
 	}
 
 	/**
-	 * @param bitmap The Bitmap to draw on.
+	 * @param bitmap Image to copy onto a new canvas, recycled afterwards.
 	 */
 	public synchronized void setBitmap(Bitmap bitmap) {
 		Log.d(TAG, "setBitmap");
@@ -247,6 +338,9 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback, Vi
 			case MOVE:
 				handleMoveTool(event);
 				break;
+			case FILL:
+				handleFillTool(event);
+				break;
 			}
 		}
 		previousX = xTouchCoordinate;
@@ -260,19 +354,19 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback, Vi
 	private void handleBrushTool(MotionEvent event) {
 		switch (event.getAction()) {
 		case MotionEvent.ACTION_DOWN:
-			paintRunner.startPath(xTouchCoordinate, yTouchCoordinate);
+			paintRunner.startPath(xTouchCoordinate, yTouchCoordinate, event.getPressure(), event.getEventTime());
 			toolButtonAnimator.fadeOutToolButtons();
 			break;
 		case MotionEvent.ACTION_MOVE:
 			if (hasMoved) {
-				paintRunner.updatePath(previousX, previousY, xTouchCoordinate, yTouchCoordinate);
+				paintRunner.updatePath(event);
 			}
 			break;
 		case MotionEvent.ACTION_UP:
 			if (hasMoved) {
 				paintRunner.finishPath();
 			} else {
-				paintRunner.drawPoint(xTouchCoordinate, yTouchCoordinate);
+				paintRunner.drawPoint(xTouchCoordinate, yTouchCoordinate, event.getEventTime());
 			}
 			toolButtonAnimator.fadeInToolButtons();
 			break;
@@ -288,16 +382,32 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback, Vi
 		return FloatMath.sqrt(x * x + y * y);
 	}
 
+	/**
+	 * Fill the region around the pixel that was tapped.
+	 */
+	private void handleFillTool(MotionEvent event) {
+		if (event.getAction() == MotionEvent.ACTION_UP && !hasMoved) {
+			paintRunner.floodFill(xTouchCoordinate, yTouchCoordinate);
+		}
+	}
+
 	/**
 	 * Scroll the picture.
 	 */
 	private void handleMoveTool(MotionEvent event) {
 		switch (event.getAction()) {
+		case MotionEvent.ACTION_DOWN:
+			paintRunner.beginGesture();
+			break;
 		case MotionEvent.ACTION_MOVE:
 			int dx = Math.round(xTouchCoordinate - previousX);
 			int dy = Math.round(yTouchCoordinate - previousY);
 			paintRunner.scroll(dx, dy);
 			break;
+		case MotionEvent.ACTION_UP:
+		case MotionEvent.ACTION_CANCEL:
+			paintRunner.endGesture();
+			break;
 		}
 	}
 
@@ -308,6 +418,9 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback, Vi
 		switch (event.getAction()) {
 		case MotionEvent.ACTION_POINTER_2_DOWN:
 			oldDist = spacing(event) / paintRunner.getZoom();
+			if (!pinchToZoom) {
+				paintRunner.beginGesture();
+			}
 			pinchToZoom = true;
 			break;
 		case MotionEvent.ACTION_MOVE:
@@ -320,6 +433,9 @@ public class PaintView extends SurfaceView implements SurfaceHolder.Callback, Vi
 			}
 			break;
 		default:
+			if (pinchToZoom) {
+				paintRunner.endGesture();
+			}
 			pinchToZoom = false;
 		}
 	}
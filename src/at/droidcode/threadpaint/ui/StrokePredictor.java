@@ -0,0 +1,81 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.threadpaint.ui;
+
+import at.droidcode.raster.StrokeBuffer;
+
+/**
+ * Extrapolates where a stroke will be a few milliseconds from now, so the preview can lead the
+ * finger instead of trailing it. The velocity is taken over the most recent samples to smooth out
+ * jitter of single touch events.
+ */
+final class StrokePredictor {
+	private static final float VELOCITY_WINDOW_MS = 24f; // older samples don't affect the velocity
+	private static final float MAX_DISTANCE = 96f; // never predict further ahead, in Bitmap pixels
+
+	private volatile boolean enabled;
+	private volatile float horizonMs;
+
+	StrokePredictor() {
+		horizonMs = 16f;
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * @param ms How far to look ahead, in milliseconds.
+	 */
+	void setHorizon(float ms) {
+		horizonMs = Math.max(0f, ms);
+	}
+
+	/**
+	 * @param stroke Samples of the stroke in progress.
+	 * @param out Array to store the predicted x and y in.
+	 * @return False if prediction is disabled or there is no usable velocity.
+	 */
+	boolean predict(StrokeBuffer stroke, float[] out) {
+		final int last = stroke.size() - 1;
+		if (!enabled || last < 1 || horizonMs <= 0f) {
+			return false;
+		}
+		final float now = stroke.time(last);
+		int first = last - 1;
+		while (first > 0 && now - stroke.time(first - 1) <= VELOCITY_WINDOW_MS) {
+			first--;
+		}
+		final float dt = now - stroke.time(first);
+		if (dt <= 0f) {
+			return false;
+		}
+		float dx = (stroke.x(last) - stroke.x(first)) / dt * horizonMs;
+		float dy = (stroke.y(last) - stroke.y(first)) / dt * horizonMs;
+		final float distance = (float) Math.sqrt(dx * dx + dy * dy);
+		if (distance < 1f) {
+			return false;
+		}
+		if (distance > MAX_DISTANCE) {
+			dx *= MAX_DISTANCE / distance;
+			dy *= MAX_DISTANCE / distance;
+		}
+		out[0] = stroke.x(last) + dx;
+		out[1] = stroke.y(last) + dy;
+		return true;
+	}
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.threadpaint.ui;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.Config;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+import at.droidcode.raster.TiledRaster;
+
+/**
+ * Downscaled copies of the canvas tiles for drawing the canvas zoomed out. Level n has tiles of
+ * TILE_SIZE pixels that cover TILE_SIZE << n pixels of the canvas, each one built from the four
+ * tiles of the level below. Tiles are built when they are first drawn and rebuilt after the area
+ * they cover was invalidated, so only the part of the canvas that is looked at costs anything.
+ */
+final class TileMipmap {
+	static final int MAX_LEVEL = 3;
+
+	private final Bitmap[][] tiles; // per level above 0, row by row, null where the canvas is empty
+	private final boolean[][] valid;
+	private final int[] columns;
+	private final int[] rows;
+	private final TiledRaster raster;
+	private final Canvas canvas;
+	private final Paint filterPaint; // averages 2x2 pixels when drawing at half the size
+	private final Paint backgroundPaint;
+	private final RectF dst;
+
+	/**
+	 * @param raster Canvas of AndroidRaster tiles, level 0 of the pyramid.
+	 */
+	TileMipmap(TiledRaster raster) {
+		this.raster = raster;
+		tiles = new Bitmap[MAX_LEVEL][];
+		valid = new boolean[MAX_LEVEL][];
+		columns = new int[MAX_LEVEL + 1];
+		rows = new int[MAX_LEVEL + 1];
+		for (int level = 0; level <= MAX_LEVEL; level++) {
+			final int size = TiledRaster.TILE_SIZE << level;
+			columns[level] = (raster.getWidth() + size - 1) / size;
+			rows[level] = (raster.getHeight() + size - 1) / size;
+			if (level > 0) {
+				tiles[level - 1] = new Bitmap[columns[level] * rows[level]];
+				valid[level - 1] = new boolean[tiles[level - 1].length];
+			}
+		}
+		canvas = new Canvas();
+		filterPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+		backgroundPaint = new Paint();
+		dst = new RectF();
+	}
+
+	TiledRaster raster() {
+		return raster;
+	}
+
+	/**
+	 * @param zoom Scale the canvas is drawn with.
+	 * @return Level whose tiles are drawn at no less than half their size.
+	 */
+	static int levelFor(float zoom) {
+		int level = 0;
+		while (level < MAX_LEVEL && zoom * (2 << level) <= 1f) {
+			level++;
+		}
+		return level;
+	}
+
+	int columns(int level) {
+		return columns[level];
+	}
+
+	int rows(int level) {
+		return rows[level];
+	}
+
+	/**
+	 * Mark the tiles covering an area of the canvas for rebuilding.
+	 * 
+	 * @param left Left edge in canvas pixels.
+	 * @param top Top edge in canvas pixels.
+	 * @param right Right edge in canvas pixels.
+	 * @param bottom Bottom edge in canvas pixels.
+	 */
+	void invalidate(int left, int top, int right, int bottom) {
+		for (int level = 1; level <= MAX_LEVEL; level++) {
+			final int size = TiledRaster.TILE_SIZE << level;
+			final int firstColumn = Math.max(0, left) / size;
+			final int firstRow = Math.max(0, top) / size;
+			final int endColumn = Math.min(columns[level], (Math.max(0, right) + size - 1) / size);
+			final int endRow = Math.min(rows[level], (Math.max(0, bottom) + size - 1) / size);
+			for (int r = firstRow; r < endRow; r++) {
+				for (int c = firstColumn; c < endColumn; c++) {
+					valid[level - 1][r * columns[level] + c] = false;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Free all downscaled tiles, they are built again when drawn.
+	 */
+	void recycle() {
+		for (int level = 1; level <= MAX_LEVEL; level++) {
+			Bitmap[] levelTiles = tiles[level - 1];
+			for (int i = 0; i < levelTiles.length; i++) {
+				if (levelTiles[i] != null) {
+					levelTiles[i].recycle();
+					levelTiles[i] = null;
+				}
+				valid[level - 1][i] = false;
+			}
+		}
+	}
+
+	/**
+	 * @return Tile of the level, which covers TILE_SIZE << level canvas pixels from column * that,
+	 *         row * that. Null if nothing was drawn there. Valid until the next call.
+	 */
+	Bitmap tile(int level, int column, int row) {
+		if (level == 0) {
+			AndroidRaster tile = (AndroidRaster) raster.tile(column, row);
+			return tile != null ? tile.bitmap() : null;
+		}
+		final int index = row * columns[level] + column;
+		if (!valid[level - 1][index]) {
+			build(level, column, row, index);
+		}
+		return tiles[level - 1][index];
+	}
+
+	/**
+	 * Draw the four tiles of the level below at half their size. Missing ones within the canvas get
+	 * the background color.
+	 */
+	private void build(int level, int column, int row, int index) {
+		valid[level - 1][index] = true;
+		Bitmap tile = tiles[level - 1][index];
+		final int background = raster.getBackground();
+		final int childSize = TiledRaster.TILE_SIZE << (level - 1);
+		final float scale = 1f / (1 << level);
+		boolean empty = true;
+		for (int r = row * 2; r < Math.min(rows[level - 1], row * 2 + 2); r++) {
+			for (int c = column * 2; c < Math.min(columns[level - 1], column * 2 + 2); c++) {
+				Bitmap child = tile(level - 1, c, r);
+				if (child == null && background == Color.TRANSPARENT) {
+					continue;
+				}
+				if (tile == null) {
+					tile = Bitmap.createBitmap(TiledRaster.TILE_SIZE, TiledRaster.TILE_SIZE, Config.ARGB_8888);
+					tiles[level - 1][index] = tile;
+				}
+				if (empty) {
+					tile.eraseColor(Color.TRANSPARENT);
+					empty = false;
+				}
+				canvas.setBitmap(tile); // building the child may have drawn on another tile
+				final float x = (c - column * 2) * TiledRaster.TILE_SIZE / 2f;
+				final float y = (r - row * 2) * TiledRaster.TILE_SIZE / 2f;
+				if (child != null) {
+					dst.set(x, y, x + child.getWidth() / 2f, y + child.getHeight() / 2f);
+					canvas.drawBitmap(child, null, dst, filterPaint);
+				} else {
+					backgroundPaint.setColor(background);
+					canvas.drawRect(x, y, x + Math.min(childSize, raster.getWidth() - c * childSize) * scale,
+							y + Math.min(childSize, raster.getHeight() - r * childSize) * scale, backgroundPaint);
+				}
+			}
+		}
+		if (empty && tile != null) {
+			tile.recycle();
+			tiles[level - 1][index] = null;
+		}
+	}
+}
@@ -19,22 +19,30 @@ package at.droidcode.threadpaint.ui;
 import static at.droidcode.threadpaint.TpApplication.TAG;
 
 import java.lang.Thread.State;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import android.util.Log;
 import at.droidcode.threadpaint.TpApplication;
 
 /**
- * Wrapper for a Thread executing an arbitrary Runnable.
+ * Wrapper for a Thread executing an arbitrary Runnable whenever a frame was requested.
  */
 public class TpRunner {
 	protected final Thread pThread; // let subclasses synchronize on this monitor
 	private Runnable pRunnable;
-	private boolean running;
-	private boolean paused;
+	private volatile boolean running;
+	private volatile boolean paused;
+	private final AtomicBoolean dirty; // a frame was requested since the Runnable last ran
+	private volatile long frameIntervalNanos; // 0 if the frame rate is not capped
+	private final ConcurrentLinkedQueue<Runnable> tasks; // run before the next frame, even while paused
 
 	public TpRunner() {
 		pThread = new Thread(new InternalRunnable());
 		pThread.setDaemon(true);
+		dirty = new AtomicBoolean();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
 	}
 
 	private class InternalRunnable implements Runnable {
@@ -45,24 +53,68 @@ public class TpRunner {
 	}
 
 	/**
-	 * Continously execute the Runnable.
+	 * Execute the Runnable once for every requested frame, park while nothing changed. Waiting does
+	 * not involve the monitor, so requesting a frame never blocks the caller.
 	 */
 	private void internalRun() {
+		long nextFrameNanos = 0;
 		while (running) {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				synchronized (pThread) {
+					task.run();
+				}
+			}
+			if (paused || !dirty.getAndSet(false)) {
+				LockSupport.park(this);
+				continue;
+			}
 			synchronized (pThread) {
-				if (paused) {
+				pRunnable.run();
+			}
+			final long interval = frameIntervalNanos;
+			if (interval > 0) {
+				// Sleep without the monitor so that changes for the next frame are not blocked.
+				final long now = System.nanoTime();
+				nextFrameNanos = Math.max(nextFrameNanos + interval, now);
+				final long sleep = nextFrameNanos - now;
+				if (sleep > 0) {
 					try {
-						pThread.wait();
+						Thread.sleep(sleep / 1000000, (int) (sleep % 1000000));
 					} catch (InterruptedException e) {
 						Log.e(TpApplication.TAG, "ERROR ", e);
 					}
-				} else {
-					pRunnable.run();
 				}
 			}
 		}
 	}
 
+	/**
+	 * Mark the scene as changed so that the Runnable is executed again. Requests that arrive before
+	 * the next frame is drawn are merged into one. Lock-free, can be called from any thread.
+	 */
+	public void requestFrame() {
+		if (!dirty.getAndSet(true)) {
+			LockSupport.unpark(pThread);
+		}
+	}
+
+	/**
+	 * Run a task on the internal Thread holding the monitor, before the next frame and even while
+	 * paused. Can be called from any thread, tasks posted after stop() are not run.
+	 */
+	public void post(Runnable task) {
+		tasks.add(task);
+		LockSupport.unpark(pThread);
+	}
+
+	/**
+	 * @param fps Maximum number of frames per second, 0 for no limit.
+	 */
+	public void setMaxFrameRate(int fps) {
+		frameIntervalNanos = fps > 0 ? 1000000000L / fps : 0;
+	}
+
 	/**
 	 * @param runnable Runnable to be executed by the internal Thread.
 	 */
@@ -79,6 +131,7 @@ public class TpRunner {
 			return;
 		}
 		running = true;
+		requestFrame();
 		if (paused) {
 			setPaused(false);
 		} else {
@@ -92,6 +145,7 @@ public class TpRunner {
 	public synchronized void stop() {
 		running = false;
 		setPaused(false);
+		LockSupport.unpark(pThread);
 		if (pThread.isAlive()) {
 			boolean retry = true;
 			while (retry) {
@@ -106,17 +160,18 @@ public class TpRunner {
 	}
 
 	/**
-	 * Cause the internal Thread to wait or resume. Passing false if the Thread is paused will call
-	 * notify() on the monitor.
+	 * Cause the internal Thread to wait or resume. Pausing waits for the frame in progress to
+	 * finish. Resuming wakes the Thread up if it is paused.
 	 * 
 	 * @param pause true to pause drawing, false to resume
 	 */
 	public synchronized void setPaused(boolean pause) {
 		synchronized (pThread) {
-			if (!pause && paused) {
-				pThread.notify();
-			}
+			final boolean resume = !pause && paused;
 			paused = pause;
+			if (resume) {
+				LockSupport.unpark(pThread);
+			}
 		}
 	}
 }
@@ -0,0 +1,61 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.trace;
+
+/**
+ * Binary format of input traces. A trace starts with MAGIC and continues with records until the
+ * end of the file. Every record is a type byte and the time in milliseconds since the first record,
+ * followed by the payload of its type. Coordinates are on the Bitmap.
+ */
+final class Trace {
+	static final int MAGIC = 0x54505431; // "TPT1"
+
+	/** int width, int height: a new transparent canvas, history cleared. */
+	static final byte SURFACE = 1;
+	/** float x, float y, float pressure */
+	static final byte STROKE_START = 2;
+	/** float x, float y, float pressure */
+	static final byte STROKE_MOVE = 3;
+	/** no payload */
+	static final byte STROKE_END = 4;
+	/** float x, float y */
+	static final byte POINT = 5;
+	/** no payload */
+	static final byte FILL = 6;
+	/** no payload */
+	static final byte UNDO = 7;
+	/** no payload */
+	static final byte REDO = 8;
+	/** int ARGB color, a transparent color is the eraser */
+	static final byte COLOR = 9;
+	/** float stroke width */
+	static final byte WIDTH = 10;
+	/** byte ordinal of PaintDescriptor.Cap */
+	static final byte CAP = 11;
+	/** byte ordinal of the tool selected in the PaintView */
+	static final byte TOOL = 12;
+	/** byte 1 for tile history, 0 for replay history */
+	static final byte HISTORY = 13;
+	/**
+	 * int x, int y, int tolerance, byte 1 if anti-aliased, int left, int top, int right, int bottom of
+	 * the area the fill may reach
+	 */
+	static final byte FLOOD_FILL = 14;
+
+	private Trace() {
+	}
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.trace;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+import at.droidcode.commands.Command;
+import at.droidcode.commands.CommandManager;
+import at.droidcode.raster.FillMask;
+import at.droidcode.raster.FloodFill;
+import at.droidcode.raster.IntRaster;
+import at.droidcode.raster.PaintDescriptor;
+import at.droidcode.raster.StrokeBuffer;
+import at.droidcode.raster.TiledRaster;
+
+/**
+ * Drives the drawing engine headless from a trace written by the TraceWriter, as fast as possible.
+ * Recorded times only decide which taps are coalesced, so every replay of a trace builds the same
+ * history and ends with the same canvas. Usage:
+ * 
+ * <pre>
+ * java at.droidcode.trace.TraceReplayer trace [runs]
+ * </pre>
+ * 
+ * Every run prints the total time, latency percentiles per operation and a checksum of the final
+ * canvas. Later runs are warmed up.
+ */
+public class TraceReplayer {
+	// Names of the records SURFACE to REDO and FLOOD_FILL, which are timed.
+	private static final String[] OPERATIONS = { "surface", "stroke start", "stroke move", "stroke end", "point",
+			"fill", "undo", "redo", "flood fill" };
+	private static final float[] PERCENTILES = { 50f, 90f, 99f };
+
+	private TiledRaster raster;
+	private final CommandManager commandManager;
+	private final StrokeBuffer stroke;
+	private final FloodFill floodFill;
+	private int color;
+	private float strokeWidth;
+	private PaintDescriptor.Cap cap;
+	private final Latencies[] latencies;
+	private int records;
+	private long totalNanos;
+
+	/**
+	 * Latencies of one kind of operation, in nanoseconds.
+	 */
+	private static class Latencies {
+		private long[] values = new long[64];
+		private int count;
+
+		void add(long nanos) {
+			if (count == values.length) {
+				long[] grown = new long[values.length * 2];
+				System.arraycopy(values, 0, grown, 0, count);
+				values = grown;
+			}
+			values[count++] = nanos;
+		}
+
+		/**
+		 * @param p Percentile in (0..100].
+		 * @return Nearest-rank percentile, the array must be sorted.
+		 */
+		long percentile(float p) {
+			final int rank = (int) Math.ceil(p / 100f * count);
+			return values[Math.max(0, rank - 1)];
+		}
+	}
+
+	public TraceReplayer() {
+		commandManager = new CommandManager();
+		stroke = new StrokeBuffer(128);
+		floodFill = new FloodFill();
+		// Defaults of the PaintRunner, traces start with the actual values.
+		color = 0xFF000000;
+		strokeWidth = 10f;
+		cap = PaintDescriptor.Cap.ROUND;
+		latencies = new Latencies[OPERATIONS.length];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new Latencies();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("Usage: TraceReplayer trace [runs]");
+			System.exit(2);
+		}
+		final int runs = args.length > 1 ? Integer.parseInt(args[1]) : 1;
+		long checksum = -1;
+		for (int run = 1; run <= runs; run++) {
+			TraceReplayer replayer = new TraceReplayer();
+			InputStream in = new BufferedInputStream(new FileInputStream(args[0]));
+			try {
+				replayer.replay(in);
+			} finally {
+				in.close();
+			}
+			System.out.println("Run " + run + " of " + args[0]);
+			System.out.print(replayer.report());
+			if (checksum >= 0 && checksum != replayer.checksum()) {
+				System.err.println("Checksum differs from the previous run, replay is not deterministic");
+				System.exit(1);
+			}
+			checksum = replayer.checksum();
+		}
+	}
+
+	/**
+	 * Apply all records of a trace. A record cut off at the end of the stream ends the trace.
+	 * 
+	 * @param stream Trace written by the TraceWriter.
+	 * @throws IOException If reading fails or the stream is no trace.
+	 */
+	public void replay(InputStream stream) throws IOException {
+		DataInputStream in = new DataInputStream(stream);
+		if (in.readInt() != Trace.MAGIC) {
+			throw new IOException("Not a trace");
+		}
+		while (true) {
+			final int type = in.read();
+			if (type < 0) {
+				return;
+			}
+			try {
+				apply((byte) type, in);
+			} catch (EOFException e) {
+				return;
+			}
+			records++;
+		}
+	}
+
+	private void apply(byte type, DataInputStream in) throws IOException {
+		final int time = in.readInt();
+		long start;
+		switch (type) {
+		case Trace.SURFACE:
+			final int width = in.readInt();
+			final int height = in.readInt();
+			if (width <= 0 || height <= 0) {
+				throw new IOException("Invalid surface " + width + "x" + height);
+			}
+			start = System.nanoTime();
+			// Sparse like the canvas of the PaintRunner, which records its full size.
+			raster = new TiledRaster(width, height, new IntRaster(0, 0));
+			commandManager.reset(raster);
+			measure(type, start);
+			break;
+		case Trace.STROKE_START:
+			final float startX = in.readFloat();
+			final float startY = in.readFloat();
+			final float startPressure = in.readFloat();
+			start = System.nanoTime();
+			stroke.reset();
+			stroke.add(startX, startY, startPressure, time);
+			measure(type, start);
+			break;
+		case Trace.STROKE_MOVE:
+			final float x = in.readFloat();
+			final float y = in.readFloat();
+			final float pressure = in.readFloat();
+			start = System.nanoTime();
+			stroke.add(x, y, pressure, time);
+			measure(type, start);
+			break;
+		case Trace.STROKE_END:
+			checkSurface();
+			start = System.nanoTime();
+			commandManager.commitCommand(new Command(describePaint(), stroke), raster);
+			measure(type, start);
+			break;
+		case Trace.POINT:
+			final float pointX = in.readFloat();
+			final float pointY = in.readFloat();
+			checkSurface();
+			start = System.nanoTime();
+			commandManager.commitCommand(new Command(describePaint(), pointX, pointY, time), raster);
+			measure(type, start);
+			break;
+		case Trace.FILL:
+			checkSurface();
+			start = System.nanoTime();
+			commandManager.commitCommand(new Command(describePaint()), raster);
+			measure(type, start);
+			break;
+		case Trace.FLOOD_FILL:
+			final int seedX = in.readInt();
+			final int seedY = in.readInt();
+			final int tolerance = in.readInt();
+			final boolean antiAlias = in.readByte() != 0;
+			final int left = in.readInt();
+			final int top = in.readInt();
+			final int right = in.readInt();
+			final int bottom = in.readInt();
+			checkSurface();
+			start = System.nanoTime();
+			FillMask mask = floodFill.fill(raster, left, top, right, bottom, seedX, seedY, tolerance, antiAlias);
+			if (mask != null) {
+				commandManager.commitCommand(new Command(describePaint(), mask), raster);
+			}
+			measure(type, start);
+			break;
+		case Trace.UNDO:
+			checkSurface();
+			start = System.nanoTime();
+			commandManager.undoLast();
+			measure(type, start);
+			break;
+		case Trace.REDO:
+			checkSurface();
+			start = System.nanoTime();
+			commandManager.redoLast();
+			measure(type, start);
+			break;
+		case Trace.COLOR:
+			color = in.readInt();
+			break;
+		case Trace.WIDTH:
+			strokeWidth = in.readFloat();
+			break;
+		case Trace.CAP:
+			final int ordinal = in.readByte();
+			if (ordinal < 0 || ordinal >= PaintDescriptor.Cap.values().length) {
+				throw new IOException("Invalid cap " + ordinal);
+			}
+			cap = PaintDescriptor.Cap.values()[ordinal];
+			break;
+		case Trace.TOOL:
+			in.readByte();
+			break;
+		case Trace.HISTORY:
+			commandManager.setHistoryMode(in.readByte() != 0 ? CommandManager.HistoryMode.TILES
+					: CommandManager.HistoryMode.REPLAY);
+			break;
+		default:
+			throw new IOException("Unknown record " + type);
+		}
+	}
+
+	private void checkSurface() throws IOException {
+		if (raster == null) {
+			throw new IOException("Trace draws before it defines a surface");
+		}
+	}
+
+	private void measure(byte type, long start) {
+		final long nanos = System.nanoTime() - start;
+		latencies[type == Trace.FLOOD_FILL ? OPERATIONS.length - 1 : type - Trace.SURFACE].add(nanos);
+		totalNanos += nanos;
+	}
+
+	/**
+	 * @return Paint of the PaintRunner with the recorded color, width and cap.
+	 */
+	private PaintDescriptor describePaint() {
+		return new PaintDescriptor(color, strokeWidth, cap, PaintDescriptor.Join.ROUND, PaintDescriptor.Style.STROKE,
+				true, true, (color >>> 24) == 0);
+	}
+
+	/**
+	 * @return CRC32 of the size, the background and the allocated tiles of the final canvas, 0 if
+	 *         there is none.
+	 */
+	public long checksum() {
+		if (raster == null) {
+			return 0;
+		}
+		CRC32 crc = new CRC32();
+		final int[] rects = raster.getContentRects();
+		byte[] bytes = new byte[TiledRaster.TILE_SIZE * 4];
+		int[] pixels = new int[TiledRaster.TILE_SIZE];
+		addInt(crc, bytes, raster.getWidth());
+		addInt(crc, bytes, raster.getHeight());
+		addInt(crc, bytes, raster.getBackground());
+		for (int r = 0; r < rects.length; r += 4) {
+			for (int k = 0; k < 4; k++) {
+				addInt(crc, bytes, rects[r + k]);
+			}
+			final int width = rects[r + 2];
+			for (int row = 0; row < rects[r + 3]; row++) {
+				raster.getPixels(pixels, 0, width, rects[r], rects[r + 1] + row, width, 1);
+				for (int i = 0; i < width; i++) {
+					final int p = pixels[i];
+					bytes[i * 4] = (byte) (p >>> 24);
+					bytes[i * 4 + 1] = (byte) (p >>> 16);
+					bytes[i * 4 + 2] = (byte) (p >>> 8);
+					bytes[i * 4 + 3] = (byte) p;
+				}
+				crc.update(bytes, 0, width * 4);
+			}
+		}
+		return crc.getValue();
+	}
+
+	private static void addInt(CRC32 crc, byte[] bytes, int value) {
+		bytes[0] = (byte) (value >>> 24);
+		bytes[1] = (byte) (value >>> 16);
+		bytes[2] = (byte) (value >>> 8);
+		bytes[3] = (byte) value;
+		crc.update(bytes, 0, 4);
+	}
+
+	/**
+	 * @return Time spent in the engine and latency percentiles of every operation that occurred, in
+	 *         microseconds.
+	 */
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format(Locale.US, "%d records, %.1f ms total, checksum %08x%n", records,
+				totalNanos / 1e6, checksum()));
+		sb.append(String.format(Locale.US, "%-14s %8s", "operation", "count"));
+		for (int p = 0; p < PERCENTILES.length; p++) {
+			sb.append(String.format(Locale.US, " %9s", "p" + (int) PERCENTILES[p] + " us"));
+		}
+		sb.append(String.format(Locale.US, " %9s%n", "max us"));
+		for (int i = 0; i < OPERATIONS.length; i++) {
+			Latencies l = latencies[i];
+			if (l.count == 0) {
+				continue;
+			}
+			Arrays.sort(l.values, 0, l.count);
+			sb.append(String.format(Locale.US, "%-14s %8d", OPERATIONS[i], l.count));
+			for (int p = 0; p < PERCENTILES.length; p++) {
+				sb.append(String.format(Locale.US, " %9.1f", l.percentile(PERCENTILES[p]) / 1e3));
+			}
+			sb.append(String.format(Locale.US, " %9.1f%n", l.values[l.count - 1] / 1e3));
+		}
+		return sb.toString();
+	}
+}
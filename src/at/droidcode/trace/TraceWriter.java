@@ -0,0 +1,240 @@
+/*
+ * Copyright Maximilian Fellner <max.fellner@gmail.com>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package at.droidcode.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import at.droidcode.raster.PaintDescriptor;
+
+/**
+ * Records the input that drives the drawing engine into a compact binary trace, which the
+ * TraceReplayer can play back. Methods may be called from any thread. Once writing fails the
+ * writer drops all further records, a broken trace must not disturb drawing.
+ */
+public class TraceWriter {
+	private static final int BUFFER_BYTES = 16 * 1024;
+
+	private final File file;
+	private DataOutputStream out;
+	private long startTime;
+	private boolean failed;
+
+	/**
+	 * @param file File to write the trace to, will be truncated.
+	 * @throws IOException If the file cannot be created.
+	 */
+	public TraceWriter(File file) throws IOException {
+		this.file = file;
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_BYTES));
+		out.writeInt(Trace.MAGIC);
+		startTime = -1;
+	}
+
+	/**
+	 * @return File the trace is written to.
+	 */
+	public File file() {
+		return file;
+	}
+
+	/**
+	 * @param time Time in milliseconds, all records must use the same clock.
+	 * @param width Width of the new canvas.
+	 * @param height Height of the new canvas.
+	 */
+	public synchronized void surface(long time, int width, int height) {
+		if (begin(Trace.SURFACE, time)) {
+			try {
+				out.writeInt(width);
+				out.writeInt(height);
+			} catch (IOException e) {
+				fail();
+			}
+		}
+	}
+
+	public synchronized void strokeStart(long time, float x, float y, float pressure) {
+		writeSample(Trace.STROKE_START, time, x, y, pressure);
+	}
+
+	public synchronized void strokeMove(long time, float x, float y, float pressure) {
+		writeSample(Trace.STROKE_MOVE, time, x, y, pressure);
+	}
+
+	public synchronized void strokeEnd(long time) {
+		begin(Trace.STROKE_END, time);
+	}
+
+	public synchronized void point(long time, float x, float y) {
+		if (begin(Trace.POINT, time)) {
+			try {
+				out.writeFloat(x);
+				out.writeFloat(y);
+			} catch (IOException e) {
+				fail();
+			}
+		}
+	}
+
+	public synchronized void fill(long time) {
+		begin(Trace.FILL, time);
+	}
+
+	public synchronized void floodFill(long time, int x, int y, int tolerance, boolean antiAlias, int left,
+			int top, int right, int bottom) {
+		if (begin(Trace.FLOOD_FILL, time)) {
+			try {
+				out.writeInt(x);
+				out.writeInt(y);
+				out.writeInt(tolerance);
+				out.writeByte(antiAlias ? 1 : 0);
+				out.writeInt(left);
+				out.writeInt(top);
+				out.writeInt(right);
+				out.writeInt(bottom);
+			} catch (IOException e) {
+				fail();
+			}
+		}
+	}
+
+	public synchronized void undo(long time) {
+		begin(Trace.UNDO, time);
+	}
+
+	public synchronized void redo(long time) {
+		begin(Trace.REDO, time);
+	}
+
+	public synchronized void color(long time, int color) {
+		if (begin(Trace.COLOR, time)) {
+			try {
+				out.writeInt(color);
+			} catch (IOException e) {
+				fail();
+			}
+		}
+	}
+
+	public synchronized void strokeWidth(long time, float width) {
+		if (begin(Trace.WIDTH, time)) {
+			try {
+				out.writeFloat(width);
+			} catch (IOException e) {
+				fail();
+			}
+		}
+	}
+
+	public synchronized void cap(long time, PaintDescriptor.Cap cap) {
+		writeByte(Trace.CAP, time, cap.ordinal());
+	}
+
+	/**
+	 * @param tool Ordinal of the selected tool. Tools only change how touches are interpreted, the
+	 *            replayer does not need them.
+	 */
+	public synchronized void tool(long time, int tool) {
+		writeByte(Trace.TOOL, time, tool);
+	}
+
+	/**
+	 * @param tiles True if undo restores tiles, false if it replays commands.
+	 */
+	public synchronized void historyMode(long time, boolean tiles) {
+		writeByte(Trace.HISTORY, time, tiles ? 1 : 0);
+	}
+
+	/**
+	 * Write buffered records and close the file. Further records are dropped.
+	 */
+	public synchronized void close() {
+		if (out != null) {
+			try {
+				out.close();
+			} catch (IOException e) {
+				failed = true;
+			}
+			out = null;
+		}
+	}
+
+	/**
+	 * @return True if a record could not be written, the trace ends before it.
+	 */
+	public synchronized boolean failed() {
+		return failed;
+	}
+
+	private void writeSample(byte type, long time, float x, float y, float pressure) {
+		if (begin(type, time)) {
+			try {
+				out.writeFloat(x);
+				out.writeFloat(y);
+				out.writeFloat(pressure);
+			} catch (IOException e) {
+				fail();
+			}
+		}
+	}
+
+	private void writeByte(byte type, long time, int value) {
+		if (begin(type, time)) {
+			try {
+				out.writeByte(value);
+			} catch (IOException e) {
+				fail();
+			}
+		}
+	}
+
+	/**
+	 * Write the type and time of a record.
+	 * 
+	 * @return False if records are dropped.
+	 */
+	private boolean begin(byte type, long time) {
+		if (out == null) {
+			return false;
+		}
+		if (startTime < 0) {
+			startTime = time;
+		}
+		try {
+			out.writeByte(type);
+			out.writeInt((int) Math.max(0, time - startTime));
+		} catch (IOException e) {
+			fail();
+			return false;
+		}
+		return true;
+	}
+
+	private void fail() {
+		failed = true;
+		try {
+			out.close();
+		} catch (IOException e) {
+			// already failed
+		}
+		out = null;
+	}
+}